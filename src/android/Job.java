@@ -0,0 +1,368 @@
+package org.apache.cordova.videoeditor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.ffmpeg.android.ProcessGroup;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Job
+ *
+ * One queued or running plugin call. A job owns its own callback (through
+ * its ProgressDispatcher), so concurrent calls no longer share state.
+ * Jobs order by priority class first and submission order second.
+ */
+public class Job implements Runnable, Comparable<Job> {
+
+    private static final String TAG = "VideoEditor";
+
+    public enum Priority {
+        INTERACTIVE(Process.THREAD_PRIORITY_DEFAULT),
+        NORMAL(Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE),
+        BACKGROUND(Process.THREAD_PRIORITY_BACKGROUND);
+
+        /**
+         * The thread priority the job runs at; ffmpeg processes it starts
+         * inherit it.
+         */
+        final int threadPriority;
+
+        Priority(int threadPriority) {
+            this.threadPriority = threadPriority;
+        }
+
+        public static Priority parse(String value, Priority fallback) {
+            if (value == null || value.length() == 0) {
+                return fallback;
+            }
+            try {
+                return Priority.valueOf(value.toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                return fallback;
+            }
+        }
+    }
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        SUCCEEDED,
+        FAILED,
+        CANCELLED
+    }
+
+    /**
+     * The body of a job, run on a scheduler thread. Implementations report
+     * their outcome through job.success or job.error.
+     */
+    public interface Work {
+        void run(Job job) throws Exception;
+    }
+
+    private final String id;
+    private final String action;
+    private final Priority priority;
+    private final long sequence;
+    private final ProgressDispatcher dispatcher;
+    private final Work work;
+    private final JobScheduler scheduler;
+
+    private final ProcessGroup processGroup = new ProcessGroup();
+    private final List<File> partialFiles = new CopyOnWriteArrayList<File>();
+    private final List<File> tempFiles = new CopyOnWriteArrayList<File>();
+    private final List<Runnable> finishListeners = new ArrayList<Runnable>();
+    private boolean cleanedUp = false;
+
+    private volatile State state = State.QUEUED;
+    private final long queuedAt;
+    private volatile long startedAt = -1;
+    private volatile long finishedAt = -1;
+
+    Job(JobScheduler scheduler, String id, String action, Priority priority, long sequence,
+            ProgressDispatcher dispatcher, Work work) {
+        this.scheduler = scheduler;
+        this.id = id;
+        this.action = action;
+        this.priority = priority;
+        this.sequence = sequence;
+        this.dispatcher = dispatcher;
+        this.work = work;
+        this.queuedAt = SystemClock.elapsedRealtime();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public ProgressDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * The processes this job starts. Hand it to the controllers so cancel()
+     * can kill them.
+     */
+    public ProcessGroup getProcessGroup() {
+        return processGroup;
+    }
+
+    /**
+     * Registers an output that is only useful if the job completes; it is
+     * deleted when the job is cancelled.
+     */
+    public void addPartialFile(File file) {
+        partialFiles.add(file);
+    }
+
+    /**
+     * Registers a scratch file or directory that is deleted when the job
+     * ends, whatever the outcome.
+     */
+    public void addTempFile(File file) {
+        tempFiles.add(file);
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (state == State.CANCELLED) {
+                scheduler.onFinished(this);
+                return;
+            }
+            state = State.RUNNING;
+            startedAt = SystemClock.elapsedRealtime();
+        }
+
+        // pool threads are shared, so every job sets its own
+        Process.setThreadPriority(priority.threadPriority);
+
+        try {
+            work.run(this);
+            if (!dispatcher.isFinished()) {
+                error("job ended without a result");
+            }
+        } catch (Throwable e) {
+            Log.d(TAG, action + " exception ", e);
+            error(e.toString());
+        } finally {
+            cleanup();
+            scheduler.onFinished(this);
+        }
+    }
+
+    /**
+     * cancel
+     *
+     * Stops the job. A queued job never starts; a running job has its
+     * processes killed. Either way the error callback gets
+     * { cancelled: true, jobId } right away, without waiting for the
+     * work to unwind.
+     *
+     * @return boolean - false if the job had already finished
+     */
+    boolean cancel() {
+        boolean wasQueued;
+
+        synchronized (this) {
+            if (dispatcher.isFinished() || (state != State.QUEUED && state != State.RUNNING)) {
+                return false;
+            }
+            wasQueued = state == State.QUEUED;
+            state = State.CANCELLED;
+            finishedAt = SystemClock.elapsedRealtime();
+        }
+
+        JSONObject result = new JSONObject();
+        try {
+            result.put("cancelled", true);
+            result.put("jobId", id);
+        } catch (JSONException e) {
+            Log.d(TAG, "PluginResult error: " + e);
+        }
+        // sent before the kill, so the error the work unwinds with is dropped
+        dispatcher.error(result);
+
+        processGroup.cancel();
+
+        if (wasQueued) {
+            // no worker will pick it up to clean after it
+            cleanup();
+        }
+        return true;
+    }
+
+    /**
+     * Runs the listener once the job has ended, whatever the outcome, and
+     * after its files were cleaned up; right away if that already happened.
+     */
+    public void addFinishListener(Runnable listener) {
+        synchronized (finishListeners) {
+            if (!cleanedUp) {
+                finishListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    private void cleanup() {
+        if (state == State.CANCELLED) {
+            for (File file : partialFiles) {
+                delete(file);
+            }
+        }
+        for (File file : tempFiles) {
+            delete(file);
+        }
+
+        List<Runnable> listeners;
+        synchronized (finishListeners) {
+            cleanedUp = true;
+            listeners = new ArrayList<Runnable>(finishListeners);
+            finishListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                Log.d(TAG, "finish listener failed", e);
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            Log.d(TAG, "could not delete " + file);
+        }
+    }
+
+    /**
+     * Posts a { progress: {...} } payload, tagged with this job's id so the
+     * JS progress callback can tell concurrent jobs apart.
+     */
+    public void progress(JSONObject payload, boolean isFinal) {
+        try {
+            JSONObject progress = payload.optJSONObject("progress");
+            (progress != null ? progress : payload).put("jobId", id);
+        } catch (JSONException e) {
+            Log.d(TAG, "PluginResult error: " + e);
+        }
+        dispatcher.progress(payload, isFinal);
+    }
+
+    /**
+     * Posts a { progress: {...} } payload that is never dropped in favour of
+     * a newer one, tagged with this job's id like progress().
+     */
+    public void post(JSONObject payload) {
+        try {
+            JSONObject progress = payload.optJSONObject("progress");
+            (progress != null ? progress : payload).put("jobId", id);
+        } catch (JSONException e) {
+            Log.d(TAG, "PluginResult error: " + e);
+        }
+        dispatcher.post(payload);
+    }
+
+    public void success(String message) {
+        if (complete(State.SUCCEEDED)) {
+            dispatcher.success(message);
+        }
+    }
+
+    public void success(JSONObject message) {
+        if (complete(State.SUCCEEDED)) {
+            dispatcher.success(message);
+        }
+    }
+
+    public void success(JSONArray message) {
+        if (complete(State.SUCCEEDED)) {
+            dispatcher.success(message);
+        }
+    }
+
+    public void success() {
+        if (complete(State.SUCCEEDED)) {
+            dispatcher.success();
+        }
+    }
+
+    public void error(String message) {
+        if (complete(State.FAILED)) {
+            dispatcher.error(message);
+        }
+    }
+
+    /**
+     * @return false if the job already ended, in which case the result is
+     *         dropped; a cancelled job keeps its state
+     */
+    private synchronized boolean complete(State finalState) {
+        if (state == State.CANCELLED || dispatcher.isFinished()) {
+            return false;
+        }
+        state = finalState;
+        finishedAt = SystemClock.elapsedRealtime();
+        return true;
+    }
+
+    @Override
+    public int compareTo(Job other) {
+        int result = priority.compareTo(other.priority);
+        if (result == 0) {
+            result = sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+        return result;
+    }
+
+    /**
+     * toJSON
+     *
+     * Describes the job for the getJobs action.
+     *
+     * @return JSONObject
+     */
+    public JSONObject toJSON() throws JSONException {
+        long now = SystemClock.elapsedRealtime();
+
+        JSONObject json = new JSONObject();
+        json.put("jobId", id);
+        json.put("action", action);
+        json.put("priority", priority.name().toLowerCase(Locale.US));
+        json.put("state", state.name().toLowerCase(Locale.US));
+        json.put("queuedMs", (startedAt < 0 ? now : startedAt) - queuedAt);
+        if (startedAt >= 0) {
+            json.put("runningMs", (finishedAt < 0 ? now : finishedAt) - startedAt);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,152 @@
+package org.apache.cordova.videoeditor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * JobScheduler
+ *
+ * Runs plugin jobs on a dedicated pool instead of cordova's shared thread
+ * pool. The number of jobs running at once is capped from the core count,
+ * because every job drives a CPU heavy ffmpeg process that is multithreaded
+ * on its own. Waiting jobs are taken from a priority queue, so an interactive
+ * trim starts ahead of queued background transcodes.
+ */
+public class JobScheduler {
+
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    public JobScheduler() {
+        this(defaultConcurrency());
+    }
+
+    public JobScheduler(int concurrency) {
+        executor = new ThreadPoolExecutor(
+            concurrency,
+            concurrency,
+            30, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    // each job sets the thread's priority from its own class
+                    Thread thread = new Thread(r, "VideoEditor-job-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+        );
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * One ffmpeg per two cores leaves room for its own worker threads and
+     * keeps the UI responsive.
+     */
+    public static int defaultConcurrency() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    /**
+     * submit
+     *
+     * Queues a job. Ids must be unique among jobs that have not finished.
+     *
+     * @param String jobId - caller supplied id, or null to generate one
+     * @param String action
+     * @param Priority priority
+     * @param ProgressDispatcher dispatcher
+     * @param Work work
+     * @return Job
+     */
+    public Job submit(String jobId, String action, Job.Priority priority, ProgressDispatcher dispatcher, Job.Work work) {
+        if (jobId == null || jobId.length() == 0) {
+            jobId = UUID.randomUUID().toString();
+        }
+
+        Job job = new Job(this, jobId, action, priority, sequence.incrementAndGet(), dispatcher, work);
+
+        synchronized (jobs) {
+            if (jobs.containsKey(jobId)) {
+                throw new IllegalStateException("a job with id " + jobId + " is already active");
+            }
+            jobs.put(jobId, job);
+        }
+
+        executor.execute(job);
+        return job;
+    }
+
+    public Job getJob(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    /**
+     * getJobs
+     *
+     * Lists active jobs, running ones first, then queued ones in the order
+     * they will start.
+     *
+     * @return JSONArray
+     */
+    public JSONArray getJobs() throws JSONException {
+        ArrayList<Job> active = new ArrayList<Job>(jobs.values());
+        Collections.sort(active);
+
+        JSONArray result = new JSONArray();
+        for (Job job : active) {
+            if (job.getState() == Job.State.RUNNING) {
+                result.put(job.toJSON());
+            }
+        }
+        for (Job job : active) {
+            if (job.getState() == Job.State.QUEUED) {
+                result.put(job.toJSON());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * cancel
+     *
+     * Cancels an active job, see Job.cancel.
+     *
+     * @param String jobId
+     * @return boolean - false if there is no such active job
+     */
+    public boolean cancel(String jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null || !job.cancel()) {
+            return false;
+        }
+        if (executor.remove(job)) {
+            onFinished(job);
+        }
+        return true;
+    }
+
+    void onFinished(Job job) {
+        jobs.remove(job.getId());
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
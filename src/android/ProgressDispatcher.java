@@ -0,0 +1,172 @@
+package org.apache.cordova.videoeditor;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.os.SystemClock;
+
+/**
+ * ProgressDispatcher
+ *
+ * Delivers progress for one call to its CallbackContext at no more than one
+ * message per interval. Progress posted between two emissions is coalesced,
+ * only the latest value is sent. Posting never blocks: the value is swapped
+ * into an atomic slot and a flush is scheduled on a shared dispatcher thread,
+ * so ffmpeg's output readers are never held up by the bridge.
+ *
+ * Final progress, posted events and the terminal success/error result skip
+ * the rate limit and are always delivered, in order, after anything already
+ * queued.
+ */
+public class ProgressDispatcher {
+
+    public static final long DEFAULT_INTERVAL_MS = 250;
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "VideoEditor-progress");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final CallbackContext callbackContext;
+    private final long intervalMs;
+
+    private final AtomicReference<JSONObject> latest = new AtomicReference<JSONObject>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    private volatile long lastEmitMs = 0;
+
+    // only touched on the dispatcher thread, after the terminal result went out
+    private boolean terminalSent = false;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            flush();
+        }
+    };
+
+    public ProgressDispatcher(CallbackContext callbackContext, long intervalMs) {
+        this.callbackContext = callbackContext;
+        this.intervalMs = Math.max(0, intervalMs);
+    }
+
+    /**
+     * Posts a progress payload. Intermediate payloads may be dropped in
+     * favour of newer ones; a final payload is flushed right away.
+     *
+     * @param JSONObject payload
+     * @param boolean isFinal
+     */
+    public void progress(JSONObject payload, boolean isFinal) {
+        if (finished.get()) {
+            return;
+        }
+
+        latest.set(payload);
+
+        if (isFinal) {
+            executor.execute(flushTask);
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            long delay = Math.max(0, lastEmitMs + intervalMs - SystemClock.elapsedRealtime());
+            executor.schedule(flushTask, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Posts a payload that must not be coalesced away, such as a finished
+     * chunk. It is sent right away, in order with everything else.
+     *
+     * @param JSONObject payload
+     */
+    public void post(final JSONObject payload) {
+        if (finished.get()) {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (terminalSent) {
+                    return;
+                }
+                PluginResult result = new PluginResult(PluginResult.Status.OK, payload);
+                result.setKeepCallback(true);
+                callbackContext.sendPluginResult(result);
+            }
+        });
+    }
+
+    public void success(final String message) {
+        finish(new PluginResult(PluginResult.Status.OK, message));
+    }
+
+    public void success(final JSONObject message) {
+        finish(new PluginResult(PluginResult.Status.OK, message));
+    }
+
+    public void success(final JSONArray message) {
+        finish(new PluginResult(PluginResult.Status.OK, message));
+    }
+
+    public void success() {
+        finish(new PluginResult(PluginResult.Status.OK));
+    }
+
+    public void error(final String message) {
+        finish(new PluginResult(PluginResult.Status.ERROR, message));
+    }
+
+    public void error(final JSONObject message) {
+        finish(new PluginResult(PluginResult.Status.ERROR, message));
+    }
+
+    public boolean isFinished() {
+        return finished.get();
+    }
+
+    /**
+     * Sends the terminal result once; any later result is ignored.
+     */
+    private void finish(final PluginResult result) {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                latest.set(null);
+                terminalSent = true;
+                callbackContext.sendPluginResult(result);
+            }
+        });
+    }
+
+    private void flush() {
+        JSONObject payload = latest.getAndSet(null);
+        if (payload == null || terminalSent) {
+            return;
+        }
+
+        lastEmitMs = SystemClock.elapsedRealtime();
+
+        PluginResult progressResult = new PluginResult(PluginResult.Status.OK, payload);
+        progressResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(progressResult);
+    }
+}
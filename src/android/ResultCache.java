@@ -0,0 +1,352 @@
+package org.apache.cordova.videoeditor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * ResultCache
+ *
+ * Remembers finished transcodes by what went in, so the same video with the
+ * same options is not encoded twice. The key is a hash of the input's length
+ * and three sampled blocks (head, middle and tail) read through a mapped
+ * file, plus the options that shape the output. The whole file is never
+ * read, so a key costs a few milliseconds even for long videos.
+ *
+ * Outputs written under the app's cache dirs count against a size budget
+ * and the least recently used ones are deleted once it is exceeded. Outputs
+ * elsewhere, such as the gallery, are only forgotten, never deleted. The
+ * index is kept as a small JSON file in the external cache dir.
+ *
+ * While a transcode for a key is running, identical requests wait for it
+ * instead of starting their own.
+ */
+public class ResultCache {
+
+    private static final String TAG = "VideoEditor";
+
+    private static final String DIR_NAME = "results";
+    private static final String INDEX_NAME = "index.json";
+
+    public static final long DEFAULT_BUDGET_BYTES = 512L * 1024 * 1024;
+
+    // bytes hashed at each of the head, middle and tail
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    // options that do not change the output
+    private static final String[] IGNORED_OPTIONS = {
+        "fileUri", "outputFileName", "jobId", "priority", "progressIntervalMs", "progress", "deleteInputFile", "cache"
+    };
+
+    private static ResultCache instance;
+
+    private final File indexFile;
+    private final File[] ownedDirs;
+    private final long budgetBytes;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<String, List<CallbackContext>> running = new HashMap<String, List<CallbackContext>>();
+
+    private static class Entry {
+        String path;
+        long length;
+    }
+
+    public static synchronized ResultCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ResultCache(context, DEFAULT_BUDGET_BYTES);
+        }
+        return instance;
+    }
+
+    private ResultCache(Context context, long budgetBytes) {
+        File cacheDir = context.getExternalCacheDir() != null ? context.getExternalCacheDir() : context.getCacheDir();
+        this.indexFile = new File(new File(cacheDir, DIR_NAME), INDEX_NAME);
+        this.ownedDirs = new File[] { context.getCacheDir(), context.getExternalCacheDir() };
+        this.budgetBytes = budgetBytes;
+        load();
+    }
+
+    /**
+     * key
+     *
+     * @param File input
+     * @param JSONObject options - the call's options; only those that shape the output count
+     * @return String - hex key for the input and options
+     */
+    public static String key(File input, JSONObject options) throws IOException, JSONException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+
+        RandomAccessFile file = new RandomAccessFile(input, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long length = channel.size();
+            digest.update(Long.toString(length).getBytes("UTF-8"));
+
+            long[] offsets = { 0, Math.max(0, length / 2 - SAMPLE_SIZE / 2), Math.max(0, length - SAMPLE_SIZE) };
+            for (long offset : offsets) {
+                long size = Math.min(SAMPLE_SIZE, length - offset);
+                if (size > 0) {
+                    MappedByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+                    digest.update(block);
+                }
+            }
+        } finally {
+            file.close();
+        }
+
+        digest.update(normalize(options).getBytes("UTF-8"));
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the options that shape the output, with sorted keys, as a string
+     */
+    private static String normalize(JSONObject options) throws JSONException {
+        List<String> names = new ArrayList<String>();
+        Iterator<String> keys = options.keys();
+        while (keys.hasNext()) {
+            names.add(keys.next());
+        }
+        names.removeAll(Arrays.asList(IGNORED_OPTIONS));
+        Collections.sort(names);
+
+        StringBuilder normalized = new StringBuilder();
+        for (String name : names) {
+            normalized.append(name).append('=').append(options.get(name)).append('\n');
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * lookup
+     *
+     * @param String key
+     * @return String - path of the cached output, or null if there is none or it changed
+     */
+    public synchronized String lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        File file = new File(entry.path);
+        if (!file.isFile() || file.length() != entry.length) {
+            entries.remove(key);
+            save();
+            return null;
+        }
+
+        // the access moved it to the most recent end
+        save();
+        return entry.path;
+    }
+
+    /**
+     * join
+     *
+     * Attaches a request to a running transcode with the same key. The
+     * callback gets that transcode's result.
+     *
+     * @param String key
+     * @param CallbackContext callback
+     * @return boolean - false if no transcode for the key is running; the
+     *                   caller is then registered as running it
+     */
+    public synchronized boolean join(String key, CallbackContext callback) {
+        List<CallbackContext> waiting = running.get(key);
+        if (waiting != null) {
+            waiting.add(callback);
+            return true;
+        }
+
+        running.put(key, new ArrayList<CallbackContext>());
+        return false;
+    }
+
+    /**
+     * finish
+     *
+     * Ends the running transcode for a key. On success the output is cached
+     * and the waiting requests get its path; otherwise they get the error.
+     *
+     * @param String key
+     * @param String path - the output, or null if the transcode failed
+     * @param String error - why it failed
+     */
+    public void finish(String key, String path, String error) {
+        List<CallbackContext> waiting;
+
+        synchronized (this) {
+            waiting = running.remove(key);
+            if (path != null) {
+                put(key, path);
+            }
+        }
+
+        if (waiting != null) {
+            for (CallbackContext callback : waiting) {
+                if (path != null) {
+                    callback.success(path);
+                } else {
+                    callback.error(error != null ? error : "transcode failed");
+                }
+            }
+        }
+    }
+
+    private void put(String key, String path) {
+        File file = new File(path);
+        if (!file.isFile()) {
+            return;
+        }
+
+        Entry entry = new Entry();
+        entry.path = file.getAbsolutePath();
+        entry.length = file.length();
+        entries.put(key, entry);
+
+        evict(key);
+        save();
+    }
+
+    /**
+     * Deletes the least recently used outputs the cache owns until they fit
+     * the budget. The entry just added is never evicted.
+     */
+    private void evict(String keep) {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            if (isOwned(entry.path)) {
+                total += entry.length;
+            }
+        }
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (total > budgetBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            Entry entry = eldest.getValue();
+            if (eldest.getKey().equals(keep) || !isOwned(entry.path)) {
+                continue;
+            }
+
+            Log.d(TAG, "evicting cached result " + entry.path);
+            new File(entry.path).delete();
+            total -= entry.length;
+            it.remove();
+        }
+    }
+
+    private boolean isOwned(String path) {
+        for (File dir : ownedDirs) {
+            if (dir != null && path.startsWith(dir.getAbsolutePath() + File.separator)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void load() {
+        if (!indexFile.isFile()) {
+            return;
+        }
+
+        try {
+            byte[] bytes = new byte[(int) indexFile.length()];
+            FileInputStream in = new FileInputStream(indexFile);
+            try {
+                int read = 0;
+                while (read < bytes.length) {
+                    int count = in.read(bytes, read, bytes.length - read);
+                    if (count < 0) {
+                        break;
+                    }
+                    read += count;
+                }
+            } finally {
+                in.close();
+            }
+
+            // least recently used first
+            JSONArray list = new JSONArray(new String(bytes, "UTF-8"));
+            for (int i = 0; i < list.length(); i++) {
+                JSONObject json = list.getJSONObject(i);
+                Entry entry = new Entry();
+                entry.path = json.getString("path");
+                entry.length = json.getLong("length");
+                entries.put(json.getString("key"), entry);
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "could not read " + indexFile + ": " + e);
+        } catch (JSONException e) {
+            Log.d(TAG, "damaged result cache index: " + e);
+            entries.clear();
+        }
+    }
+
+    private void save() {
+        try {
+            JSONArray list = new JSONArray();
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                JSONObject json = new JSONObject();
+                json.put("key", entry.getKey());
+                json.put("path", entry.getValue().path);
+                json.put("length", entry.getValue().length);
+                list.put(json);
+            }
+
+            File dir = indexFile.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("cannot create " + dir);
+            }
+
+            // written aside and renamed, so a crash never leaves half an index
+            File temp = new File(dir, INDEX_NAME + ".tmp");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(list.toString().getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(indexFile)) {
+                throw new IOException("cannot replace " + indexFile);
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "could not write " + indexFile + ": " + e);
+        } catch (JSONException e) {
+            Log.d(TAG, "could not write " + indexFile + ": " + e);
+        }
+    }
+}
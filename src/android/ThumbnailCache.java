@@ -0,0 +1,201 @@
+package org.apache.cordova.videoeditor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * ThumbnailCache
+ *
+ * Keeps encoded thumbnails so that asking for the same frame again costs a
+ * lookup instead of a decode. Entries are keyed on the source file's path,
+ * length and last modified time plus the thumbnail parameters, so a changed
+ * video is never served stale thumbnails.
+ *
+ * Two tiers: an LRU of encoded bytes in memory, and files in the cache dir
+ * that survive restarts. The disk tier is trimmed by last use once it goes
+ * over its budget.
+ */
+public class ThumbnailCache {
+
+    private static final String TAG = "VideoEditor";
+
+    private static final String DIR_NAME = "thumbnails";
+
+    private static final int MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final long DISK_BYTES = 32L * 1024 * 1024;
+
+    private static ThumbnailCache instance;
+
+    private final File dir;
+
+    private final LruCache<String, byte[]> memory = new LruCache<String, byte[]>(MEMORY_BYTES) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+
+    public static synchronized ThumbnailCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThumbnailCache(context);
+        }
+        return instance;
+    }
+
+    private ThumbnailCache(Context context) {
+        File cacheDir = context.getExternalCacheDir() != null ? context.getExternalCacheDir() : context.getCacheDir();
+        this.dir = new File(cacheDir, DIR_NAME);
+    }
+
+    /**
+     * key
+     *
+     * @param File source - the video
+     * @param String params - everything else that changes the thumbnail
+     * @return String - hex key
+     */
+    public static String key(File source, String params) throws IOException {
+        File file = source.getCanonicalFile();
+        String identity = file.getPath() + "|" + file.length() + "|" + file.lastModified() + "|" + params;
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(identity.getBytes("UTF-8"))) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * @return the disk tier file for a key; it may not exist
+     */
+    public File file(String key, String extension) {
+        return new File(dir, key + extension);
+    }
+
+    /**
+     * get
+     *
+     * @return byte[] - the encoded thumbnail from memory or disk, or null
+     */
+    public byte[] get(String key, String extension) {
+        byte[] data = memory.get(key);
+        if (data != null) {
+            return data;
+        }
+
+        File file = file(key, extension);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            data = new byte[(int) file.length()];
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int read = 0;
+                while (read < data.length) {
+                    int count = in.read(data, read, data.length - read);
+                    if (count < 0) {
+                        return null;
+                    }
+                    read += count;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "could not read " + file + ": " + e);
+            return null;
+        }
+
+        // marks it as recently used for trim
+        file.setLastModified(System.currentTimeMillis());
+        memory.put(key, data);
+        return data;
+    }
+
+    /**
+     * put
+     *
+     * Stores an encoded thumbnail in both tiers.
+     *
+     * @return File - the disk tier file
+     */
+    public File put(String key, String extension, byte[] data) throws IOException {
+        memory.put(key, data);
+
+        File file = file(key, extension);
+        write(file, data);
+        trim();
+        return file;
+    }
+
+    /**
+     * Writes the bytes aside and renames them into place, so a reader never
+     * sees half a file. The temporary name is unique, so jobs writing the
+     * same file at once do not write into each other's.
+     */
+    public static void write(File file, byte[] data) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("cannot create " + parent);
+        }
+
+        File temp = File.createTempFile(file.getName(), ".tmp", parent);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("cannot write " + file);
+        }
+    }
+
+    private synchronized void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= DISK_BYTES) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < files.length && total > DISK_BYTES; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package org.apache.cordova.videoeditor;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -10,17 +12,23 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CallbackContext;
-import org.apache.cordova.PluginResult;
 import org.ffmpeg.android.ShellUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import org.ffmpeg.android.FfmpegController;
+import org.ffmpeg.android.KeyframeIndex;
 import org.ffmpeg.android.Clip;
+import org.ffmpeg.android.ProgressCallback;
+import org.ffmpeg.android.Mp4Trimmer;
+import org.ffmpeg.android.ProgressEvent;
+import org.ffmpeg.android.ProgressParser;
+import org.ffmpeg.android.SegmentCallback;
 import org.ffmpeg.android.ShellUtils.ShellCallback;
 
 import android.content.ContentUris;
@@ -32,7 +40,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.media.ThumbnailUtils;
+import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
@@ -48,7 +56,7 @@ public class VideoEditor extends CordovaPlugin {
 
     private static final String TAG = "VideoEditor";
 
-    private CallbackContext callback;
+    private JobScheduler scheduler;
 
     private static final int HighQuality = 0;
     private static final int MediumQuality = 1;
@@ -59,44 +67,120 @@ public class VideoEditor extends CordovaPlugin {
     private static final int M4A = 2;
     private static final int QUICK_TIME = 3;
 
+    @Override
+    protected void pluginInitialize() {
+        scheduler = new JobScheduler();
+    }
+
+    @Override
+    public void onDestroy() {
+        scheduler.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
         Log.d(TAG, "execute method starting");
 
-        this.callback = callbackContext;
-
         if (action.equals("transcodeVideo")) {
             try {
-                this.transcodeVideo(args);
+                this.transcodeVideo(args, callbackContext);
             } catch (IOException e) {
-                callback.error(e.toString());
+                callbackContext.error(e.toString());
             }
             return true;
         } else if (action.equals("trim")) {
             try {
-                this.trim(args);
+                this.trim(args, callbackContext);
             } catch (IOException e) {
-                callback.error(e.toString());
+                callbackContext.error(e.toString());
             }
             return true;
         } else if (action.equals("createThumbnail")) {
             try {
-                this.createThumbnail(args);
+                this.createThumbnail(args, callbackContext);
             } catch (IOException e) {
-                callback.error(e.toString());
+                callbackContext.error(e.toString());
+            }
+            return true;
+        } else if (action.equals("createThumbnailStrip")) {
+            try {
+                this.createThumbnailStrip(args, callbackContext);
+            } catch (IOException e) {
+                callbackContext.error(e.toString());
             }
             return true;
         } else if (action.equals("execFFMPEG")) {
             try {
-                this.execFFMPEG(args);
+                this.execFFMPEG(args, callbackContext);
             } catch (IOException e) {
-                callback.error(e.toString());
+                callbackContext.error(e.toString());
+            }
+            return true;
+        } else if (action.equals("getJobs")) {
+            callbackContext.success(scheduler.getJobs());
+            return true;
+        } else if (action.equals("getKeyframes")) {
+            try {
+                this.getKeyframes(args, callbackContext);
+            } catch (IOException e) {
+                callbackContext.error(e.toString());
+            }
+            return true;
+        } else if (action.equals("split")) {
+            try {
+                this.split(args, callbackContext);
+            } catch (IOException e) {
+                callbackContext.error(e.toString());
+            }
+            return true;
+        } else if (action.equals("cancel")) {
+            this.cancel(args, callbackContext);
+            return true;
+        } else if (action.equals("resume")) {
+            try {
+                this.resume(args, callbackContext);
+            } catch (IOException e) {
+                callbackContext.error(e.toString());
             }
             return true;
         }
         return false;
     }
 
+    /**
+     * submitJob
+     *
+     * Queues work on the plugin's job scheduler with its own callback.
+     *
+     * Common options:
+     * jobId              - optional caller chosen id, generated if missing
+     * priority           - 'interactive', 'normal' or 'background'
+     * progressIntervalMs - minimum time between progress messages
+     *
+     * @param String action
+     * @param JSONObject options
+     * @param Priority defaultPriority
+     * @param CallbackContext callbackContext
+     * @param Work work
+     * @return Job
+     */
+    private Job submitJob(String action, JSONObject options, Job.Priority defaultPriority,
+            CallbackContext callbackContext, Job.Work work) {
+        ProgressDispatcher dispatcher = new ProgressDispatcher(
+            callbackContext,
+            options.optLong("progressIntervalMs", ProgressDispatcher.DEFAULT_INTERVAL_MS)
+        );
+        Job.Priority priority = Job.Priority.parse(options.optString("priority", null), defaultPriority);
+
+        try {
+            return scheduler.submit(options.optString("jobId", null), action, priority, dispatcher, work);
+        } catch (IllegalStateException e) {
+            dispatcher.error(e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * transcodeVideo
      *
@@ -111,16 +195,35 @@ public class VideoEditor extends CordovaPlugin {
      * outputFileType:  - output file type
      * saveToLibrary:   - save to gallery
      * deleteInputFile: - optionally remove input file
+     * passthrough:     - copy streams that already meet the target instead of re-encoding them, defaults to true
+     * parallel:        - encode the video in segments on all cores at once, defaults to false
+     * renditions:      - optional list of { width, height, videoBitrate, audioBitrate, audioChannels, fps, name },
+     *                    all written from one decode, each to VID_<outputFileName>_<name>;
+     *                    name defaults to <height>p and must differ between renditions
+     * streaming:       - 'hls' or 'cmaf' to write a playlist and segments instead of one file,
+     *                    each segment is reported to the progress callback as it is finished
+     * segmentDuration: - with streaming, seconds per segment, defaults to 4
+     * faststart:       - put the MP4 index (moov) at the front so playback can start before the file is read, defaults to false
+     * fragmented:      - write a fragmented MP4 instead, readable while it is being written, defaults to false
+     * resumable:       - encode in segments that are kept until the end, so resume can finish an interrupted
+     *                    transcode, defaults to false
+     * cache:           - return an earlier output of the same input and options instead of transcoding again,
+     *                    and wait for an identical running transcode instead of starting another, defaults to false
+     * progressIntervalMs: - minimum time between progress messages
+     * jobId:           - optional job id, see getJobs
+     * priority:        - job priority, defaults to 'background'
      *
      * RESPONSE
      * ========
      *
-     * outputFilePath - path to output file
+     * outputFilePath - path to output file (the playlist when streaming), or with renditions an array of paths
+     *                  in the same order
      *
      * @param JSONArray args
+     * @param CallbackContext callback
      * @return void
      */
-    private void transcodeVideo(JSONArray args) throws JSONException, IOException {
+    private void transcodeVideo(JSONArray args, final CallbackContext callback) throws JSONException, IOException {
         Log.d(TAG, "transcodeVideo firing");
 
         JSONObject options = args.optJSONObject(0);
@@ -138,6 +241,8 @@ public class VideoEditor extends CordovaPlugin {
             "outputFileName",
             new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.ENGLISH).format(new Date())
         );
+        // a resumed transcode must write to the same file
+        final JSONObject resumeOptions = options.put("outputFileName", outputFileName);
         final int videoQuality = options.optInt("quality", HighQuality);
         final int outputType = options.optInt("outputFileType", MPEG4);
 
@@ -219,49 +324,195 @@ public class VideoEditor extends CordovaPlugin {
 
         final double videoDuration = options.optDouble("duration", 0);
         final boolean deleteInputFile = options.optBoolean("deleteInputFile", false);
+        final boolean passthrough = options.optBoolean("passthrough", true);
+        final boolean parallel = options.optBoolean("parallel", false);
+        final boolean resumable = options.optBoolean("resumable", false);
+        final String layout = options.optBoolean("fragmented", false) ? Clip.LAYOUT_FRAGMENTED
+            : (options.optBoolean("faststart", false) ? Clip.LAYOUT_FASTSTART : null);
+
+        // a playlist and segments instead of one file
+        final String streaming = options.optString("streaming", "");
+        final double segmentDuration = options.optDouble("segmentDuration", 4);
+        final String playlistPath = new File(
+            mediaStorageDir.getPath(),
+            "VID_" + outputFileName + ".m3u8"
+        ).getAbsolutePath();
 
-        cordova.getThreadPool().execute(new Runnable() {
-            public void run() {
+        if (streaming.length() > 0 && !streaming.equals("hls") && !streaming.equals("cmaf")) {
+            callback.error("streaming must be 'hls' or 'cmaf'");
+            return;
+        }
+
+        // several outputs from one decode, named after each rendition
+        final JSONArray renditions = options.optJSONArray("renditions");
+        final List<String> renditionPaths = new ArrayList<String>();
+        if (renditions != null) {
+            for (int i = 0; i < renditions.length(); i++) {
+                JSONObject rendition = renditions.getJSONObject(i);
+                String name = rendition.optString("name", rendition.optInt("height", i) + "p");
+                String path = new File(
+                    mediaStorageDir.getPath(),
+                    "VID_" + outputFileName + "_" + name + outputExtension
+                ).getAbsolutePath();
+                if (renditionPaths.contains(path)) {
+                    callback.error("renditions: name '" + name + "' is used by more than one rendition");
+                    return;
+                }
+                renditionPaths.add(path);
+            }
+        }
+
+        // the same input with the same options gives the same output
+        final ResultCache resultCache = ResultCache.getInstance(appContext);
+        String cacheKey = null;
+        if (options.optBoolean("cache", false) && renditions == null && streaming.length() == 0) {
+            cacheKey = ResultCache.key(inFile, options);
+
+            String cached = resultCache.lookup(cacheKey);
+            if (cached != null) {
+                Log.d(TAG, "cached result: " + cached);
+                if (deleteInputFile) {
+                    inFile.delete();
+                }
+                callback.success(cached);
+                return;
+            }
+            if (resultCache.join(cacheKey, callback)) {
+                Log.d(TAG, "waiting for a running transcode of the same input");
+                return;
+            }
+        }
+        final String resultKey = cacheKey;
+
+        final Job transcodeJob = submitJob("transcodeVideo", options, Job.Priority.BACKGROUND, callback, new Job.Work() {
+            public void run(Job job) throws Exception {
                 try {
                     File tempFile = File.createTempFile("ffmpeg", null, appContext.getCacheDir());
+                    job.addTempFile(tempFile);
+                    job.addPartialFile(new File(outputFilePath));
+
                     FfmpegController ffmpegController = new FfmpegController(appContext, tempFile);
+                    ffmpegController.setProcessGroup(job.getProcessGroup());
+
+                    if (resumable) {
+                        saveResumeOptions(appContext, job.getId(), resumeOptions);
+                        job.addPartialFile(resumeDir(appContext, job.getId()));
+                    }
 
                     Clip clipIn = new Clip(videoSrcPath);
 
+                    // upper limits: the resolver never goes above what the source has
                     Clip clipOut = new Clip(outputFilePath);
                     clipOut.videoCodec = "libx264";
                     clipOut.videoFps = "30"; // Original FPS 24, ours 30, tailor this to your needs 
                     clipOut.videoBitrate = 2560; // Original Bitrate: 512 kbps - tailor this to your needs
                     // Our bitrate: 1024 + 1024 + 512 = 2048 + 512 = 2560
                     clipOut.audioChannels = 1;
-                    clipOut.width = outputWidth;
+                    clipOut.width = outputWidth; // bounding box, the aspect ratio is kept
                     clipOut.height = outputHeight;
                     clipOut.duration = videoDuration;
+                    clipOut.layout = layout;
+
+                    Clip clipInfo = ffmpegController.getInfo(clipIn);
+
+                    if (renditions != null && renditions.length() > 0) {
+                        List<Clip> clipsOut = new ArrayList<Clip>();
+                        for (int i = 0; i < renditions.length(); i++) {
+                            JSONObject rendition = renditions.getJSONObject(i);
+                            Clip rendered = new Clip(renditionPaths.get(i));
+                            rendered.videoCodec = "libx264";
+                            rendered.width = rendition.optInt("width", outputWidth);
+                            rendered.height = rendition.optInt("height", outputHeight);
+                            rendered.videoBitrate = rendition.optInt("videoBitrate", 2560);
+                            rendered.audioBitrate = rendition.optInt("audioBitrate", -1);
+                            rendered.audioChannels = rendition.optInt("audioChannels", 1);
+                            rendered.videoFps = rendition.optString("fps", "30");
+                            rendered.duration = videoDuration;
+                            rendered.layout = layout;
+                            job.addPartialFile(new File(rendered.path));
+                            clipsOut.add(ffmpegController.resolveOutput(clipInfo, rendered));
+                        }
+
+                        ffmpegController.processRenditions(clipIn, clipsOut, new ProgressReporter(job));
 
-                    ffmpegController.processVideo(clipIn, clipOut, true, new ShellUtils.ShellCallback() {
-                        @Override
-                        public void shellOut(String shellLine) {
-                            Log.d(TAG, "shellOut: " + shellLine);
-                            try {
-                                JSONObject jsonObj = new JSONObject();
-                                jsonObj.put("progress", shellLine.toString());
-                                PluginResult progressResult = new PluginResult(PluginResult.Status.OK, jsonObj);
-                                progressResult.setKeepCallback(true);
-                                callback.sendPluginResult(progressResult);
-                            } catch (JSONException e) {
-                                Log.d(TAG, "PluginResult error: " + e);
+                        JSONArray paths = new JSONArray();
+                        for (Clip rendered : clipsOut) {
+                            File outFile = new File(rendered.path);
+                            if (saveToLibrary) {
+                                Intent scanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
+                                scanIntent.setData(Uri.fromFile(outFile));
+                                appContext.sendBroadcast(scanIntent);
                             }
+                            paths.put(rendered.path);
+                        }
+
+                        if (deleteInputFile) {
+                            inFile.delete();
+                        }
+
+                        job.success(paths);
+                        return;
+                    }
+
+                    clipOut = ffmpegController.resolveOutput(clipInfo, clipOut);
+                    Log.d(TAG, "resolved output: " + clipOut.width + "x" + clipOut.height
+                        + " fps " + clipOut.videoFps + " " + clipOut.videoBitrate + "k");
+
+                    if (streaming.length() > 0) {
+                        clipOut.path = playlistPath;
+                        job.addPartialFile(new File(playlistPath));
+
+                        String extension = streaming.equals("cmaf") ? ".m4s" : ".ts";
+                        String segmentPattern = new File(
+                            new File(playlistPath).getParent(),
+                            "VID_" + outputFileName + "_%05d" + extension
+                        ).getAbsolutePath();
+                        if (streaming.equals("cmaf")) {
+                            job.addPartialFile(new File(new File(playlistPath).getParent(), "VID_" + outputFileName + "_init.mp4"));
+                        }
+
+                        ffmpegController.processStreaming(clipIn, clipOut, streaming.equals("cmaf"), segmentDuration,
+                            new SegmentReporter(job, segmentPattern));
+
+                        if (deleteInputFile) {
+                            inFile.delete();
                         }
-                        @Override
-                        public void processComplete(int exitValue) {}
-                    });
+
+                        job.success(playlistPath);
+                        return;
+                    }
+
+                    // one encoder process per core; each segment gets a share of the threads
+                    int processes = Runtime.getRuntime().availableProcessors();
+
+                    if (passthrough) {
+                        // copy whatever already meets the target instead of encoding it again
+                        FfmpegController.TranscodePlan plan = ffmpegController.planTranscode(clipInfo, clipOut);
+                        Log.d(TAG, "transcode plan: " + plan.getMode() + " " + plan.reasons);
+
+                        JSONObject decision = new JSONObject();
+                        decision.put("type", "decision");
+                        decision.put("mode", plan.getMode());
+                        decision.put("reasons", new JSONArray(plan.reasons));
+                        JSONObject jsonObj = new JSONObject();
+                        jsonObj.put("progress", decision);
+                        job.post(jsonObj);
+
+                        if (plan.copyVideo) {
+                            ffmpegController.processVideo(clipIn, clipOut, plan, new ProgressReporter(job));
+                        } else {
+                            encodeVideo(ffmpegController, clipIn, clipOut, job, processes);
+                        }
+                    } else {
+                        encodeVideo(ffmpegController, clipIn, clipOut, job, processes);
+                    }
 
                     Log.d(TAG, "ffmpeg finished");
 
                     File outFile = new File(outputFilePath);
                     if (!outFile.exists()) {
                         Log.d(TAG, "outputFile doesn't exist!");
-                        callback.error("an error ocurred during transcoding");
+                        job.error("an error ocurred during transcoding");
                         return;
                     }
 
@@ -277,13 +528,142 @@ public class VideoEditor extends CordovaPlugin {
                         inFile.delete();
                     }
 
-                    callback.success(outputFilePath);
+                    if (resumable) {
+                        // nothing left to resume
+                        job.addTempFile(resumeDir(appContext, job.getId()));
+                    }
+
+                    job.success(outputFilePath);
                 } catch (Throwable e) {
                     Log.d(TAG, "transcode exception ", e);
-                    callback.error(e.toString());
+                    job.error(e.toString());
+                }
+            }
+
+            private void encodeVideo(FfmpegController ffmpegController, Clip clipIn, Clip clipOut, Job job,
+                    int processes) throws Exception {
+                if (resumable) {
+                    // segments and their journal outlive the process, see resume
+                    File segmentsDir = new File(resumeDir(appContext, job.getId()), "segments");
+                    ffmpegController.processVideoResumable(clipIn, clipOut, parallel ? processes : 1, segmentsDir,
+                        new ProgressReporter(job));
+                } else if (parallel) {
+                    ffmpegController.processVideoParallel(clipIn, clipOut, processes, new ProgressReporter(job));
+                } else {
+                    ffmpegController.processVideo(clipIn, clipOut, true, new ProgressReporter(job));
                 }
             }
         });
+
+        if (resultKey != null) {
+            if (transcodeJob == null) {
+                resultCache.finish(resultKey, null, "transcode could not be started");
+            } else {
+                transcodeJob.addFinishListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean succeeded = transcodeJob.getState() == Job.State.SUCCEEDED;
+                        resultCache.finish(resultKey, succeeded ? outputFilePath : null, "transcode failed");
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * @return where a resumable transcode keeps its options and segments
+     */
+    private static File resumeDir(Context context, String jobId) {
+        return new File(new File(context.getCacheDir(), "resume"), jobId);
+    }
+
+    /**
+     * Writes the options of a resumable transcode next to its segments, once,
+     * so resume can run it again with exactly the same settings.
+     */
+    private static void saveResumeOptions(Context context, String jobId, JSONObject options)
+            throws IOException, JSONException {
+        File dir = resumeDir(context, jobId);
+        File file = new File(dir, "options.json");
+        if (file.exists()) {
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+
+        JSONObject saved = new JSONObject(options.toString());
+        saved.put("jobId", jobId);
+        saved.remove("progressIntervalMs");
+        saved.remove("priority");
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(saved.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * resume
+     *
+     * Continues a resumable transcode that was interrupted, for instance
+     * because the app was killed. Only the segments that were not finished
+     * are encoded, then all of them are joined. Progress and the result are
+     * the same as for transcodeVideo.
+     *
+     * ARGUMENTS
+     * =========
+     *
+     * jobId              - id of the interrupted transcodeVideo call
+     * progressIntervalMs - minimum time between progress messages
+     * priority           - job priority, defaults to 'background'
+     *
+     * RESPONSE
+     * ========
+     *
+     * outputFilePath - path to output file
+     *
+     * @param JSONArray args
+     * @param CallbackContext callback
+     * @return void
+     */
+    private void resume(JSONArray args, CallbackContext callback) throws JSONException, IOException {
+        JSONObject options = args.optJSONObject(0);
+        String jobId = options != null ? options.optString("jobId", "") : "";
+
+        Context appContext = cordova.getActivity().getApplicationContext();
+        File file = new File(resumeDir(appContext, jobId), "options.json");
+        if (jobId.length() == 0 || !file.isFile()) {
+            callback.error("nothing to resume for job " + jobId);
+            return;
+        }
+
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+
+        JSONObject saved = new JSONObject(new String(bytes, "UTF-8"));
+        if (options.has("progressIntervalMs")) {
+            saved.put("progressIntervalMs", options.getLong("progressIntervalMs"));
+        }
+        if (options.has("priority")) {
+            saved.put("priority", options.getString("priority"));
+        }
+
+        transcodeVideo(new JSONArray().put(saved), callback);
     }
 
     /**
@@ -298,16 +678,23 @@ public class VideoEditor extends CordovaPlugin {
      * trimStart      - time to start trimming
      * trimEnd        - time to end trimming
      * outputFileName - output file name
+     * precise        - cut exactly at trimStart, re-encoding only up to the next keyframe
+     * ranges         - instead of trimStart/trimEnd, a list of { start, end } to keep
+     * split          - with ranges, write each range to its own file instead of joining them
+     * progressIntervalMs - minimum time between progress messages
+     * jobId          - optional job id, see getJobs
+     * priority       - job priority, defaults to 'interactive'
      *
      * RESPONSE
      * ========
      *
-     * outputFilePath - path to output file
+     * outputFilePath - path to output file, or with ranges an array of paths
      *
      * @param JSONArray args
+     * @param CallbackContext callback
      * @return void
      */
-    private void trim(JSONArray args) throws JSONException, IOException {
+    private void trim(JSONArray args, final CallbackContext callback) throws JSONException, IOException {
         Log.d(TAG, "trim firing");
 
         // parse arguments
@@ -333,8 +720,14 @@ public class VideoEditor extends CordovaPlugin {
             return;
         }
 
+        JSONArray ranges = options.optJSONArray("ranges");
+        if (ranges != null) {
+            this.trimRanges(options, ranges, inFile, outputFileName, outputFileExt, callback);
+            return;
+        }
+
         // trim points
-        double trim0 = options.optDouble("trimStart");
+        final double trim0 = options.optDouble("trimStart");
         final String trimstart = this.durationFormat(trim0);
         double trimend = options.getDouble("trimEnd");
         trimend = trimend - trim0;
@@ -342,7 +735,9 @@ public class VideoEditor extends CordovaPlugin {
             callback.error("trim: failed to trim video; duration is 0");
             return;
         }
+        final double trimDuration = trimend;
         final String duration = this.durationFormat(trimend);
+        final boolean precise = options.optBoolean("precise", false);
 
         // tempDir
         final Context appContext = cordova.getActivity().getApplicationContext();
@@ -353,10 +748,29 @@ public class VideoEditor extends CordovaPlugin {
         final String outputFilePath = outputFile.getAbsolutePath();
 
         // start task
-        cordova.getThreadPool().execute(new Runnable() {
-            public void run() {
+        submitJob("trim", options, Job.Priority.INTERACTIVE, callback, new Job.Work() {
+            public void run(Job job) throws Exception {
                 try {
+                    job.addPartialFile(outputFile);
+
                     FfmpegController ffmpegController = new FfmpegController(appContext, tempDir);
+                    ffmpegController.setProcessGroup(job.getProcessGroup());
+
+                    if (precise) {
+                        // frame accurate: re-encode up to the first keyframe, copy the rest
+                        ffmpegController.trimPrecise(new Clip(inFile.getCanonicalPath()), trim0, trimDuration,
+                            outputFilePath, new ProgressReporter(job));
+
+                        job.success(outputFilePath);
+                        return;
+                    }
+
+                    // MP4/MOV: cut the sample tables in Java, no ffmpeg run at all
+                    if (Mp4Trimmer.trim(inFile, trim0, trimDuration, outputFile, job.getProcessGroup(),
+                            new ProgressReporter(job))) {
+                        job.success(outputFilePath);
+                        return;
+                    }
 
                     // ffmpeg -ss [start1] -i [INPUT] -ss [start2] -t [duration] -c copy [OUTPUT]
                     ArrayList<String> cmd = new ArrayList<String>();
@@ -375,41 +789,290 @@ public class VideoEditor extends CordovaPlugin {
                     cmd.add("copy");
 
                     cmd.add(outputFilePath);
-                    ffmpegController.execFFMPEG(cmd, new ShellUtils.ShellCallback() {
-                        @Override
-                        public void shellOut(String shellLine) {
-                            Log.d(TAG, "shellOut: " + shellLine);
-                            try {
-                                JSONObject jsonObj = new JSONObject();
-                                jsonObj.put("progress", shellLine.toString());
-                                PluginResult progressResult = new PluginResult(PluginResult.Status.OK, jsonObj);
-                                progressResult.setKeepCallback(true);
-                                callback.sendPluginResult(progressResult);
-                            } catch (JSONException e) {
-                                Log.d(TAG, "PluginResult error: " + e);
-                            }
-                        }
-                        @Override
-                        public void processComplete(int exitValue) {}
-                    });
+                    ffmpegController.execFFMPEG(cmd, new ProgressReporter(job));
 
                     Log.d(TAG, "ffmpeg finished");
                     if (!outputFile.exists()) {
                         Log.d(TAG, "outputFile doesn't exist!");
-                        callback.error("trim: failed to trim video");
+                        job.error("trim: failed to trim video");
                         return;
                     }
 
-                    callback.success(outputFilePath);
+                    job.success(outputFilePath);
                 } catch (Throwable e) {
                     Log.d(TAG, "transcode exception ", e);
-                    callback.error(e.toString());
+                    job.error(e.toString());
                 }
             }
         });
 
     }
 
+    /**
+     * trimRanges
+     *
+     * Keeps several ranges of one input with a single ffmpeg run, either
+     * joined into one file or split into one file per range. Everything is
+     * stream copied; each range starts at the keyframe before its start.
+     *
+     * @param JSONObject options - the trim options
+     * @param JSONArray ranges - { start, end } in seconds
+     * @param File inFile
+     * @param String outputFileName
+     * @param String outputFileExt
+     * @param CallbackContext callback
+     * @return void
+     */
+    private void trimRanges(JSONObject options, JSONArray ranges, final File inFile, String outputFileName,
+            String outputFileExt, CallbackContext callback) throws JSONException, IOException {
+        if (ranges.length() == 0) {
+            callback.error("trim: ranges is empty");
+            return;
+        }
+        if (options.optBoolean("precise", false)) {
+            callback.error("trim: precise is not supported together with ranges");
+            return;
+        }
+
+        final boolean split = options.optBoolean("split", false);
+
+        final Context appContext = cordova.getActivity().getApplicationContext();
+        final File tempDir = this.getTempDir(appContext, outputFileExt);
+        final String inputPath = inFile.getCanonicalPath();
+
+        final ArrayList<Clip> clips = new ArrayList<Clip>();
+        for (int i = 0; i < ranges.length(); i++) {
+            JSONObject range = ranges.getJSONObject(i);
+            double start = range.getDouble("start");
+            double end = range.getDouble("end");
+            if (end <= start) {
+                callback.error("trim: range " + i + " ends before it starts");
+                return;
+            }
+
+            Clip clip = new Clip(split
+                ? new File(tempDir, outputFileName + "_" + (i + 1) + outputFileExt).getAbsolutePath()
+                : inputPath);
+            clip.startTime = this.durationFormat(start);
+            clip.duration = end - start;
+            clips.add(clip);
+        }
+
+        final String outputFilePath = new File(tempDir, outputFileName + outputFileExt).getAbsolutePath();
+
+        submitJob("trim", options, Job.Priority.INTERACTIVE, callback, new Job.Work() {
+            public void run(Job job) throws Exception {
+                try {
+                    FfmpegController ffmpegController = new FfmpegController(appContext, tempDir);
+                    ffmpegController.setProcessGroup(job.getProcessGroup());
+
+                    JSONArray paths = new JSONArray();
+
+                    if (split) {
+                        for (Clip clip : clips) {
+                            job.addPartialFile(new File(clip.path));
+                        }
+                        for (Clip clipOut : ffmpegController.splitRanges(new Clip(inputPath), clips, new ProgressReporter(job))) {
+                            paths.put(clipOut.path);
+                        }
+                    } else {
+                        job.addPartialFile(new File(outputFilePath));
+                        ffmpegController.joinRanges(clips, new Clip(outputFilePath), new ProgressReporter(job));
+                        paths.put(outputFilePath);
+                    }
+
+                    Log.d(TAG, "ffmpeg finished");
+                    job.success(paths);
+                } catch (Throwable e) {
+                    Log.d(TAG, "trim exception ", e);
+                    job.error(e.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * split
+     *
+     * Splits a video into consecutive chunks in one stream copy pass. Chunks
+     * start on keyframes and are limited by duration, size or both.
+     *
+     * ARGUMENTS
+     * =========
+     *
+     * fileUri         - path to input video
+     * segmentDuration - seconds per chunk
+     * segmentSize     - bytes per chunk
+     * outputFileName  - output file name, chunks are named outputFileName_000, _001, ...
+     * progressIntervalMs - minimum time between progress messages
+     * jobId           - optional job id, see getJobs
+     * priority        - job priority, defaults to 'normal'
+     *
+     * RESPONSE
+     * ========
+     *
+     * outputFilePaths - array of chunk paths, in order. Each chunk is also
+     *                   sent as soon as it is written, as a progress message
+     *                   { type: 'chunk', index, path, startMs, durationMs }
+     *
+     * @param JSONArray args
+     * @param CallbackContext callback
+     * @return void
+     */
+    private void split(JSONArray args, final CallbackContext callback) throws JSONException, IOException {
+        Log.d(TAG, "split firing");
+
+        JSONObject options = args.optJSONObject(0);
+        Log.d(TAG, "options: " + options.toString());
+
+        final String outputFileName = options.optString(
+                "outputFileName",
+                new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.ENGLISH).format(new Date())
+        );
+        final String inputFilePath = options.getString("fileUri");
+        final String outputFileExt = this.getFileExt(inputFilePath);
+
+        final File inFile = this.resolveLocalFileSystemURI(inputFilePath);
+        if (!inFile.exists()) {
+            Log.d(TAG, "input file does not exist");
+            callback.error("input video does not exist.");
+            return;
+        }
+
+        final double segmentDuration = options.optDouble("segmentDuration", 0);
+        final long segmentSize = options.optLong("segmentSize", 0);
+        if (!(segmentDuration > 0) && segmentSize <= 0) {
+            callback.error("split: segmentDuration or segmentSize is required");
+            return;
+        }
+
+        final Context appContext = cordova.getActivity().getApplicationContext();
+        final File tempDir = this.getTempDir(appContext, outputFileExt);
+        final String outputPattern = new File(tempDir, outputFileName + "_%03d" + outputFileExt).getAbsolutePath();
+
+        submitJob("split", options, Job.Priority.NORMAL, callback, new Job.Work() {
+            public void run(Job job) throws Exception {
+                try {
+                    FfmpegController ffmpegController = new FfmpegController(appContext, tempDir);
+                    ffmpegController.setProcessGroup(job.getProcessGroup());
+
+                    // the chunk ffmpeg writes first; later ones are registered as they follow
+                    job.addPartialFile(new File(String.format(Locale.US, outputPattern, 0)));
+
+                    JSONArray paths = new JSONArray();
+                    for (Clip chunk : ffmpegController.split(new Clip(inFile.getCanonicalPath()), segmentDuration,
+                            segmentSize, outputPattern, new SegmentReporter(job, outputPattern))) {
+                        paths.put(chunk.path);
+                    }
+
+                    Log.d(TAG, "ffmpeg finished");
+                    job.success(paths);
+                } catch (Throwable e) {
+                    Log.d(TAG, "split exception ", e);
+                    job.error(e.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends every chunk of a split to the JS progress callback as soon as it
+     * is closed, as { progress: { type: 'chunk', index, path, startMs, durationMs } },
+     * on top of the usual progress.
+     */
+    private class SegmentReporter extends ProgressReporter implements SegmentCallback {
+
+        private final Job job;
+        private final String outputPattern;
+
+        public SegmentReporter(Job job, String outputPattern) {
+            super(job);
+            this.job = job;
+            this.outputPattern = outputPattern;
+        }
+
+        @Override
+        public void segment(Clip segment, int index) {
+            job.addPartialFile(new File(segment.path));
+            job.addPartialFile(new File(String.format(Locale.US, outputPattern, index + 1)));
+
+            try {
+                JSONObject chunk = new JSONObject();
+                chunk.put("type", "chunk");
+                chunk.put("index", index);
+                chunk.put("path", segment.path);
+                chunk.put("startMs", Math.round(ProgressParser.parseTime(segment.startTime) * 1000));
+                chunk.put("durationMs", Math.round(segment.duration * 1000));
+
+                JSONObject jsonObj = new JSONObject();
+                jsonObj.put("progress", chunk);
+                job.post(jsonObj);
+            } catch (JSONException e) {
+                Log.d(TAG, "PluginResult error: " + e);
+            }
+        }
+
+    }
+
+    /**
+     * Forwards ffmpeg's parsed progress to the JS progress callback as
+     * { progress: { percent, etaMs, frame, fps, outTimeMs, totalSize, speed, durationMs } }
+     * through the job's rate limited dispatcher.
+     */
+    private class ProgressReporter implements ProgressCallback {
+
+        private final Job job;
+
+        public ProgressReporter(Job job) {
+            this.job = job;
+        }
+
+        @Override
+        public void progress(ProgressEvent event) {
+            try {
+                JSONObject jsonObj = new JSONObject();
+                jsonObj.put("progress", progressToJSON(event));
+                job.progress(jsonObj, event.done);
+            } catch (JSONException e) {
+                Log.d(TAG, "PluginResult error: " + e);
+            }
+        }
+
+        @Override
+        public void shellOut(String shellLine) {
+            Log.d(TAG, "shellOut: " + shellLine);
+        }
+
+        @Override
+        public void processComplete(int exitValue) {
+            Log.d(TAG, "processComplete: " + exitValue);
+        }
+
+    }
+
+    /**
+     * progressToJSON
+     *
+     * Converts a progress event into the object handed to the JS progress
+     * callback. Times are in milliseconds; unknown values are omitted.
+     *
+     * @param ProgressEvent event
+     * @return JSONObject
+     */
+    private static JSONObject progressToJSON(ProgressEvent event) throws JSONException {
+        JSONObject json = new JSONObject();
+        if (event.percent >= 0) json.put("percent", Math.round(event.percent * 10) / 10d);
+        if (event.etaMs >= 0) json.put("etaMs", event.etaMs);
+        if (event.frame >= 0) json.put("frame", event.frame);
+        if (event.fps >= 0) json.put("fps", event.fps);
+        if (event.outTimeUs >= 0) json.put("outTimeMs", event.outTimeUs / 1000);
+        if (event.durationUs >= 0) json.put("durationMs", event.durationUs / 1000);
+        if (event.totalSize >= 0) json.put("totalSize", event.totalSize);
+        if (event.speed >= 0) json.put("speed", event.speed);
+        json.put("done", event.done);
+        return json;
+    }
+
     private class TranscodeCallback implements ShellCallback {
 
         @Override
@@ -424,74 +1087,304 @@ public class VideoEditor extends CordovaPlugin {
 
     }
 
-    @SuppressWarnings("unused")
-    private void createThumbnail(JSONArray args) throws JSONException, IOException {
+    /**
+     * createThumbnail
+     *
+     * Creates a thumbnail of a video on a worker thread. Thumbnails are
+     * cached in memory and on disk by source file and parameters, so asking
+     * for the same one again costs a lookup instead of a decode.
+     *
+     * ARGUMENTS
+     * =========
+     *
+     * fileUri        - path to input video
+     * outputFileName - output file name, defaults to a timestamp; the image is always copied out
+     *                  of the cache to PIC_<outputFileName>, which the cache never removes
+     * atTime         - seconds into the video, defaults to a representative frame picked by the platform
+     * width          - maximum width, defaults to 512
+     * height         - maximum height, defaults to 384; the aspect ratio is kept
+     * quality        - 0 to 100, defaults to 75
+     * format         - 'jpeg', 'png' or 'webp', defaults to 'jpeg'
+     * mode           - 'exact' decodes up to atTime, 'fast' returns the nearest keyframe instead,
+     *                  which skips decoding the frames in between; defaults to 'exact'
+     * jobId          - optional job id, see getJobs
+     * priority       - job priority, defaults to 'interactive'
+     *
+     * RESPONSE
+     * ========
+     *
+     * outputFilePath - path to the image
+     *
+     * @param JSONArray args
+     * @param CallbackContext callback
+     * @return void
+     */
+    private void createThumbnail(JSONArray args, final CallbackContext callback) throws JSONException, IOException {
         Log.d(TAG, "createThumbnail firing");
-        /*  createThumbnail arguments:
-         fileUri: video input url
-         outputFileName: output file name
-         */
 
         JSONObject options = args.optJSONObject(0);
         Log.d(TAG, "options: " + options.toString());
 
         String fileUri = options.getString("fileUri");
-        if (!fileUri.startsWith("file:/")) {
+        if (!fileUri.startsWith("file:/") && !fileUri.startsWith("content:")) {
             fileUri = "file:/" + fileUri;
         }
 
-        File inFile = this.resolveLocalFileSystemURI(fileUri);
+        final File inFile = this.resolveLocalFileSystemURI(fileUri);
         if (!inFile.exists()) {
             Log.d(TAG, "input file does not exist");
             callback.error("input video does not exist.");
             return;
         }
-        String srcVideoPath = inFile.getAbsolutePath();
-        String outputFileName = options.optString(
+
+        final String outputFileName = options.optString(
             "outputFileName",
             new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.ENGLISH).format(new Date())
         );
+        final double atTime = options.optDouble("atTime", -1);
+        final int maxWidth = options.optInt("width", 512);
+        final int maxHeight = options.optInt("height", 384);
+        final int quality = Math.max(0, Math.min(100, options.optInt("quality", 75)));
+        final boolean fast = options.optString("mode", "exact").equals("fast");
+
+        String format = options.optString("format", "jpeg");
+        final CompressFormat compressFormat;
+        final String extension;
+        if (format.equals("png")) {
+            compressFormat = CompressFormat.PNG;
+            extension = ".png";
+        } else if (format.equals("webp")) {
+            compressFormat = CompressFormat.WEBP;
+            extension = ".webp";
+        } else {
+            compressFormat = CompressFormat.JPEG;
+            extension = ".jpg";
+        }
 
-        Context appContext = cordova.getActivity().getApplicationContext();
-        PackageManager pm = appContext.getPackageManager();
+        final Context appContext = cordova.getActivity().getApplicationContext();
+        final ThumbnailCache cache = ThumbnailCache.getInstance(appContext);
 
-        ApplicationInfo ai;
-        try {
-            ai = pm.getApplicationInfo(cordova.getActivity().getPackageName(), 0);
-        } catch (final NameNotFoundException e) {
-            ai = null;
+        submitJob("createThumbnail", options, Job.Priority.INTERACTIVE, callback, new Job.Work() {
+            public void run(Job job) throws Exception {
+                try {
+                    String key = ThumbnailCache.key(inFile,
+                        atTime + "|" + maxWidth + "x" + maxHeight + "|" + quality + "|" + extension + (fast ? "|fast" : ""));
+
+                    byte[] data = cache.get(key, extension);
+                    File cached = cache.file(key, extension);
+
+                    if (data == null) {
+                        long timeUs = atTime >= 0 ? Math.round(atTime * 1000000) : -1;
+                        Bitmap frame = FfmpegController.getVideoFrame(inFile.getAbsolutePath(), timeUs,
+                            fast ? MediaMetadataRetriever.OPTION_CLOSEST_SYNC : MediaMetadataRetriever.OPTION_CLOSEST);
+                        if (frame == null) {
+                            job.error("Could not create thumbnail.");
+                            return;
+                        }
+
+                        Bitmap thumbnail = scaleToFit(frame, maxWidth, maxHeight);
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        thumbnail.compress(compressFormat, quality, bytes);
+                        if (thumbnail != frame) {
+                            thumbnail.recycle();
+                        }
+                        frame.recycle();
+
+                        data = bytes.toByteArray();
+                        cached = cache.put(key, extension, data);
+                    } else if (!cached.isFile()) {
+                        // trimmed from disk but still in memory
+                        ThumbnailCache.write(cached, data);
+                    }
+
+                    File outputFile = new File(appContext.getExternalCacheDir(), "PIC_" + outputFileName + extension);
+                    ThumbnailCache.write(outputFile, data);
+                    job.success(outputFile.getAbsolutePath());
+                } catch (Throwable e) {
+                    Log.d(TAG, "createThumbnail exception ", e);
+                    job.error(e.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the bitmap scaled down to fit the box, keeping its aspect
+     *         ratio, or the bitmap itself if it already fits
+     */
+    private static Bitmap scaleToFit(Bitmap bitmap, int maxWidth, int maxHeight) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        double scale = 1;
+        if (maxWidth > 0 && width > maxWidth) {
+            scale = Math.min(scale, maxWidth / (double) width);
         }
-        final String appName = (String) (ai != null ? pm.getApplicationLabel(ai) : "Unknown");
+        if (maxHeight > 0 && height > maxHeight) {
+            scale = Math.min(scale, maxHeight / (double) height);
+        }
+        if (scale >= 1) {
+            return bitmap;
+        }
+        return Bitmap.createScaledBitmap(bitmap,
+            Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale)), true);
+    }
 
-        File tempStoragePath = appContext.getExternalCacheDir();
+    /**
+     * createThumbnailStrip
+     *
+     * Renders thumbnails at a fixed interval into tiled sprite sheets in one
+     * ffmpeg pass that decodes only keyframes, plus an index that maps time
+     * ranges to tiles, for scrubbing timelines.
+     *
+     * ARGUMENTS
+     * =========
+     *
+     * fileUri        - path to input video
+     * outputFileName - output file name, sheets are STRIP_<name>_001.jpg and so on
+     * interval       - seconds between tiles, defaults to a hundredth of the duration, at least 1
+     * width          - tile width in pixels, defaults to 160
+     * height         - tile height in pixels, defaults to keeping the video's aspect ratio
+     * columns        - tiles per row, defaults to 10
+     * rows           - rows per sheet, defaults to as many as all tiles need
+     * format         - 'jpeg' or 'webp', defaults to 'jpeg'
+     * index          - 'vtt' or 'json', defaults to 'vtt'
+     * jobId          - optional job id, see getJobs
+     * priority       - job priority, defaults to 'interactive'
+     *
+     * RESPONSE
+     * ========
+     *
+     * { sprites: [paths], index: path, tiles, width, height, interval }
+     * The vtt index has a cue per tile pointing at sheet.jpg#xywh=x,y,w,h;
+     * the json index is a list of { start, end, sprite, x, y, width, height }.
+     *
+     * @param JSONArray args
+     * @param CallbackContext callback
+     * @return void
+     */
+    private void createThumbnailStrip(JSONArray args, final CallbackContext callback) throws JSONException, IOException {
+        Log.d(TAG, "createThumbnailStrip firing");
 
-        File outputFile =  new File(
-            tempStoragePath.getPath(),
-            "PIC_" + outputFileName + ".jpg"
+        JSONObject options = args.optJSONObject(0);
+        Log.d(TAG, "options: " + options.toString());
+
+        final File inFile = this.resolveLocalFileSystemURI(options.getString("fileUri"));
+        if (!inFile.exists()) {
+            Log.d(TAG, "input file does not exist");
+            callback.error("input video does not exist.");
+            return;
+        }
+
+        final String outputFileName = options.optString(
+            "outputFileName",
+            new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.ENGLISH).format(new Date())
         );
+        final double requestedInterval = options.optDouble("interval", 0);
+        final int tileWidth = options.optInt("width", 160);
+        final int requestedHeight = options.optInt("height", 0);
+        final int columns = Math.max(1, options.optInt("columns", 10));
+        final int requestedRows = options.optInt("rows", 0);
+        final String extension = options.optString("format", "jpeg").equals("webp") ? ".webp" : ".jpg";
+        final boolean jsonIndex = options.optString("index", "vtt").equals("json");
 
-        Bitmap thumbnail = ThumbnailUtils.createVideoThumbnail(srcVideoPath, MediaStore.Images.Thumbnails.MINI_KIND);
+        final Context appContext = cordova.getActivity().getApplicationContext();
+        final File outputDir = appContext.getExternalCacheDir();
 
-        FileOutputStream theOutputStream;
-        try {
-            if (!outputFile.exists()) {
-                if (!outputFile.createNewFile()) {
-                    callback.error("Could not save thumbnail.");
-                }
-            }
-            if (outputFile.canWrite()) {
-                theOutputStream = new FileOutputStream(outputFile);
-                if (theOutputStream != null) {
-                    thumbnail.compress(CompressFormat.JPEG, 75, theOutputStream);
-                } else {
-                    callback.error("Could not save thumbnail; target not writeable");
+        submitJob("createThumbnailStrip", options, Job.Priority.INTERACTIVE, callback, new Job.Work() {
+            public void run(Job job) throws Exception {
+                try {
+                    FfmpegController ffmpegController = new FfmpegController(appContext, appContext.getCacheDir());
+                    ffmpegController.setProcessGroup(job.getProcessGroup());
+
+                    Clip info = ffmpegController.getInfo(new Clip(inFile.getCanonicalPath()));
+                    if (info.duration <= 0 || info.videoCodec == null) {
+                        job.error("cannot read the duration or video of " + inFile);
+                        return;
+                    }
+
+                    double interval = requestedInterval > 0 ? requestedInterval : Math.max(1, info.duration / 100);
+                    int tiles = Math.max(1, (int) Math.ceil(info.duration / interval));
+                    int rows = requestedRows > 0 ? requestedRows : (tiles + columns - 1) / columns;
+
+                    // keep the displayed aspect ratio, even for the encoders
+                    int tileHeight = requestedHeight;
+                    if (tileHeight <= 0) {
+                        boolean turned = info.rotation == 90 || info.rotation == 270;
+                        int displayWidth = turned ? info.height : info.width;
+                        int displayHeight = turned ? info.width : info.height;
+                        tileHeight = displayWidth > 0 && displayHeight > 0
+                            ? Math.max(2, (int) Math.round(tileWidth * displayHeight / (double) displayWidth / 2) * 2)
+                            : tileWidth * 9 / 16;
+                    }
+
+                    String pattern = new File(outputDir, "STRIP_" + outputFileName + "_%03d" + extension).getAbsolutePath();
+                    ArrayList<File> sheets = ffmpegController.createThumbnailStrip(new Clip(inFile.getCanonicalPath()),
+                        interval, tileWidth, tileHeight, columns, rows, pattern, new ProgressReporter(job));
+                    for (File sheet : sheets) {
+                        job.addPartialFile(sheet);
+                    }
+
+                    // tiles the sheets have no room for are left out of the index
+                    int perSheet = columns * rows;
+                    tiles = Math.min(tiles, perSheet * sheets.size());
+
+                    StringBuilder vtt = new StringBuilder("WEBVTT\n");
+                    JSONArray entries = new JSONArray();
+                    for (int i = 0; i < tiles; i++) {
+                        double start = i * interval;
+                        double end = Math.min((i + 1) * interval, info.duration);
+                        File sheet = sheets.get(i / perSheet);
+                        int x = (i % perSheet) % columns * tileWidth;
+                        int y = (i % perSheet) / columns * tileHeight;
+
+                        if (jsonIndex) {
+                            JSONObject entry = new JSONObject();
+                            entry.put("start", Math.round(start * 1000) / 1000.0);
+                            entry.put("end", Math.round(end * 1000) / 1000.0);
+                            entry.put("sprite", sheet.getAbsolutePath());
+                            entry.put("x", x);
+                            entry.put("y", y);
+                            entry.put("width", tileWidth);
+                            entry.put("height", tileHeight);
+                            entries.put(entry);
+                        } else {
+                            vtt.append('\n')
+                                .append(ProgressParser.formatTime(start)).append(" --> ")
+                                .append(ProgressParser.formatTime(end)).append('\n')
+                                .append(sheet.getName()).append("#xywh=")
+                                .append(x).append(',').append(y).append(',')
+                                .append(tileWidth).append(',').append(tileHeight).append('\n');
+                        }
+                    }
+
+                    File indexFile = new File(outputDir, "STRIP_" + outputFileName + (jsonIndex ? ".json" : ".vtt"));
+                    job.addPartialFile(indexFile);
+                    FileOutputStream out = new FileOutputStream(indexFile);
+                    try {
+                        out.write((jsonIndex ? entries.toString() : vtt.toString()).getBytes("UTF-8"));
+                    } finally {
+                        out.close();
+                    }
+
+                    JSONArray sprites = new JSONArray();
+                    for (File sheet : sheets) {
+                        sprites.put(sheet.getAbsolutePath());
+                    }
+
+                    JSONObject result = new JSONObject();
+                    result.put("sprites", sprites);
+                    result.put("index", indexFile.getAbsolutePath());
+                    result.put("tiles", tiles);
+                    result.put("width", tileWidth);
+                    result.put("height", tileHeight);
+                    result.put("interval", interval);
+                    job.success(result);
+                } catch (Throwable e) {
+                    Log.d(TAG, "createThumbnailStrip exception ", e);
+                    job.error(e.toString());
                 }
             }
-        } catch (IOException e) {
-            callback.error(e.toString());
-        }
-
-        callback.success(outputFile.getAbsolutePath());
+        });
     }
 
     /**
@@ -503,6 +1396,9 @@ public class VideoEditor extends CordovaPlugin {
      * =========
      *
      * cmd - ffmpeg command as a string array
+     * progressIntervalMs - minimum time between progress messages
+     * jobId - optional job id, see getJobs
+     * priority - job priority, defaults to 'normal'
      *
      * RESPONSE
      * ========
@@ -510,10 +1406,11 @@ public class VideoEditor extends CordovaPlugin {
      * VOID
      *
      * @param JSONArray args
+     * @param CallbackContext callback
      * @return void
      */
     @SuppressWarnings("unused")
-    private void execFFMPEG(JSONArray args) throws JSONException, IOException {
+    private void execFFMPEG(JSONArray args, final CallbackContext callback) throws JSONException, IOException {
         Log.d(TAG, "execFFMPEG firing");
 
         // parse arguments
@@ -525,11 +1422,14 @@ public class VideoEditor extends CordovaPlugin {
         final Context appContext = cordova.getActivity().getApplicationContext();
 
         // start task
-        cordova.getThreadPool().execute(new Runnable() {
-            public void run() {
+        submitJob("execFFMPEG", options, Job.Priority.NORMAL, callback, new Job.Work() {
+            public void run(Job job) throws Exception {
                 try {
                     File tempFile = File.createTempFile("ffmpeg", null, appContext.getCacheDir());
+                    job.addTempFile(tempFile);
+
                     FfmpegController ffmpegController = new FfmpegController(appContext, tempFile);
+                    ffmpegController.setProcessGroup(job.getProcessGroup());
 
                     ArrayList<String> al = new ArrayList<String>();
                     al.add(ffmpegController.getBinaryPath());
@@ -539,34 +1439,105 @@ public class VideoEditor extends CordovaPlugin {
                         al.add(cmds.optString(i));
                     }
 
-                    ffmpegController.execFFMPEG(al, new ShellUtils.ShellCallback() {
-                        @Override
-                        public void shellOut(String shellLine) {
-                            Log.d(TAG, "shellOut: " + shellLine);
-                            try {
-                                JSONObject jsonObj = new JSONObject();
-                                jsonObj.put("progress", shellLine.toString());
-                                PluginResult progressResult = new PluginResult(PluginResult.Status.OK, jsonObj);
-                                progressResult.setKeepCallback(true);
-                                callback.sendPluginResult(progressResult);
-                            } catch (JSONException e) {
-                                Log.d(TAG, "PluginResult error: " + e);
-                            }
-                        }
-                        @Override
-                        public void processComplete(int exitValue) {}
-                    });
+                    ffmpegController.execFFMPEG(al, new ProgressReporter(job));
                     Log.d(TAG, "ffmpeg finished");
 
-                    callback.success();
+                    job.success();
                 } catch (Throwable e) {
                     Log.d(TAG, "ffmpeg exception ", e);
-                    callback.error(e.toString());
+                    job.error(e.toString());
                 }
             }
         });
     }
 
+    /**
+     * getKeyframes
+     *
+     * Lists the keyframe times of a video, read from the sample tables of
+     * MP4/MOV files or from a packet scan for other containers. Nothing is
+     * decoded, and results are cached until the file changes.
+     *
+     * ARGUMENTS
+     * =========
+     *
+     * fileUri  - path to input video
+     * jobId    - optional job id, see getJobs
+     * priority - job priority, defaults to 'interactive'
+     *
+     * RESPONSE
+     * ========
+     *
+     * keyframes - presentation times of the keyframes in seconds, ascending
+     *
+     * @param JSONArray args
+     * @param CallbackContext callback
+     * @return void
+     */
+    private void getKeyframes(JSONArray args, final CallbackContext callback) throws JSONException, IOException {
+        JSONObject options = args.optJSONObject(0);
+
+        final File inFile = this.resolveLocalFileSystemURI(options.getString("fileUri"));
+        final Context appContext = cordova.getActivity().getApplicationContext();
+
+        submitJob("getKeyframes", options, Job.Priority.INTERACTIVE, callback, new Job.Work() {
+            public void run(Job job) throws Exception {
+                try {
+                    FfmpegController ffmpegController = new FfmpegController(appContext, appContext.getCacheDir());
+                    ffmpegController.setProcessGroup(job.getProcessGroup());
+
+                    KeyframeIndex index = ffmpegController.getKeyframes(new Clip(inFile.getCanonicalPath()));
+
+                    JSONArray keyframes = new JSONArray();
+                    for (int i = 0; i < index.size(); i++) {
+                        keyframes.put(Math.round(index.get(i) * 1000) / 1000.0);
+                    }
+
+                    JSONObject result = new JSONObject();
+                    result.put("keyframes", keyframes);
+                    job.success(result);
+                } catch (Throwable e) {
+                    Log.d(TAG, "getKeyframes exception ", e);
+                    job.error(e.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * cancel
+     *
+     * Cancels a queued or running job. Its ffmpeg processes are killed, its
+     * partial output and temp files are deleted and its error callback gets
+     * { cancelled: true, jobId }.
+     *
+     * ARGUMENTS
+     * =========
+     *
+     * jobId - id of the job to cancel
+     *
+     * RESPONSE
+     * ========
+     *
+     * VOID, or an error if there is no such active job
+     *
+     * @param JSONArray args
+     * @param CallbackContext callback
+     * @return void
+     */
+    private void cancel(JSONArray args, CallbackContext callback) throws JSONException {
+        JSONObject options = args.optJSONObject(0);
+        String jobId = options != null ? options.optString("jobId", null) : null;
+
+        if (jobId == null || jobId.length() == 0) {
+            callback.error("cancel: jobId is required");
+        } else if (scheduler.cancel(jobId)) {
+            callback.success();
+        } else {
+            callback.error("cancel: no active job with id " + jobId);
+        }
+    }
+
     @SuppressWarnings("deprecation")
     private File resolveLocalFileSystemURI(String url) throws IOException, JSONException {
         String decoded = URLDecoder.decode(url, "UTF-8");
@@ -775,8 +1746,7 @@ public class VideoEditor extends CordovaPlugin {
 
         if (!mediaStorageDir.exists()) {
             if (!mediaStorageDir.mkdirs()) {
-                callback.error("Can't access or make Movies directory");
-                return null;
+                throw new IOException("Can't access or make Movies directory");
             }
         }
 
@@ -836,12 +1806,11 @@ public class VideoEditor extends CordovaPlugin {
      * @param String ext
      * @return File
      */
-    private File getTempDir(Context appContext, String ext){
+    private File getTempDir(Context appContext, String ext) throws IOException {
         final File tempDir = new File(appContext.getCacheDir(), ext.substring(1));
         if(!tempDir.exists()){
             if (!tempDir.mkdirs()) {
-                callback.error("Can't access or make temporary cache directory");
-                return null;
+                throw new IOException("Can't access or make temporary cache directory");
             }
         }
         return tempDir;
@@ -1,17 +1,16 @@
 package net.sourceforge.sox;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
+import org.ffmpeg.android.BinaryInstaller;
+import org.ffmpeg.android.ProcessGroup;
+import org.ffmpeg.android.ProcessRunner;
 import org.ffmpeg.android.R;
 import org.ffmpeg.android.ShellUtils.ShellCallback;
 
@@ -24,6 +23,7 @@ public class SoxController {
 	private String soxBin;
 	private File fileBinDir;
 	private ShellCallback callback;
+	private ProcessGroup processGroup;
 
 	public SoxController(Context context, File fileAppRoot, ShellCallback _callback) throws FileNotFoundException, IOException {
 		callback = _callback;
@@ -46,45 +46,12 @@ public class SoxController {
 	
 	private static String installBinary(Context ctx, int resId, String filename, boolean upgrade) {
 		try {
-			File f = new File(ctx.getDir("bin", 0), filename);
-			if (f.exists()) {
-				f.delete();
-			}
-			copyRawFile(ctx, resId, f, "0755");
-			return f.getCanonicalPath();
+			return BinaryInstaller.install(ctx, resId, filename, upgrade);
 		} catch (Exception e) {
 			Log.e(TAG, "installBinary failed: " + e.getLocalizedMessage());
 			return null;
 		}
 	}
-	
-	/**
-	 * Copies a raw resource file, given its ID to the given location
-	 * @param ctx context
-	 * @param resid resource id
-	 * @param file destination file
-	 * @param mode file permissions (E.g.: "755")
-	 * @throws IOException on error
-	 * @throws InterruptedException when interrupted
-	 */
-	private static void copyRawFile(Context ctx, int resid, File file, String mode) throws IOException, InterruptedException
-	{
-		final String abspath = file.getAbsolutePath();
-		// Write the iptables binary
-		final FileOutputStream out = new FileOutputStream(file);
-		final InputStream is = ctx.getResources().openRawResource(resid);
-		byte buf[] = new byte[1024];
-		int len;
-		while ((len = is.read(buf)) > 0) {
-			out.write(buf, 0, len);
-		}
-		out.close();
-		is.close();
-		// Change the permissions
-		Runtime.getRuntime().exec("chmod "+mode+" "+abspath).waitFor();
-	}
-	
-	
 
 	
 	private class LengthParser implements ShellCallback {
@@ -298,12 +265,13 @@ public class SoxController {
 		return String.format(Locale.US, "%s:%s.%s", dateTime.getHours(),dateTime.getMinutes(),dateTime.getSeconds());
 	}*/
 
+	public void setProcessGroup(ProcessGroup group) {
+		processGroup = group;
+	}
+
 	public int execSox(List<String> cmd, ShellCallback sc) throws IOException,
 			InterruptedException {
 
-		String soxBin = new File(fileBinDir, "sox").getCanonicalPath();
-		
-		Runtime.getRuntime().exec("chmod 700 " + soxBin);
 		return execProcess(cmd, sc);
 	}
 
@@ -316,9 +284,6 @@ public class SoxController {
 			cmd = String.format(Locale.US, "%s", cmd);
 		}
 		
-		ProcessBuilder pb = new ProcessBuilder(cmds);
-		pb.directory(fileBinDir);
-
 		StringBuffer cmdlog = new StringBuffer();
 
 		for (String cmd : cmds) {
@@ -328,53 +293,8 @@ public class SoxController {
 
 		sc.shellOut(cmdlog.toString());
 		
-		// pb.redirectErrorStream(true);
-		Process process = pb.start();
-
-		// any error message?
-		StreamGobbler errorGobbler = new StreamGobbler(
-				process.getErrorStream(), "ERROR", sc);
-
-		// any output?
-		StreamGobbler outputGobbler = new StreamGobbler(
-				process.getInputStream(), "OUTPUT", sc);
-
-		// kick them off
-		errorGobbler.start();
-		outputGobbler.start();
-
-		int exitVal = process.waitFor();
-
-		while (outputGobbler.isAlive() || errorGobbler.isAlive());
-		
-		sc.processComplete(exitVal);
+		int exitVal = ProcessRunner.getInstance().run(cmds, fileBinDir, sc, processGroup);
 
 		return exitVal;
 	}
-
-	class StreamGobbler extends Thread {
-		InputStream is;
-		String type;
-		ShellCallback sc;
-
-		StreamGobbler(InputStream is, String type, ShellCallback sc) {
-			this.is = is;
-			this.type = type;
-			this.sc = sc;
-		}
-
-		public void run() {
-			try {
-				InputStreamReader isr = new InputStreamReader(is);
-				BufferedReader br = new BufferedReader(isr);
-				String line = null;
-				while ((line = br.readLine()) != null)
-					if (sc != null)
-						sc.shellOut(line);
-
-			} catch (IOException ioe) {
-				ioe.printStackTrace();
-			}
-		}
-	}
 }
@@ -0,0 +1,268 @@
+package org.ffmpeg.android;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Properties;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.util.Log;
+
+/**
+ * Installs the packaged ffmpeg/sox binaries into the app's private bin dir.
+ *
+ * Every installed binary gets a small stamp file next to it recording the
+ * package version it came from and the SHA-1 of its contents. As long as the
+ * stamp matches the running package the binary is reused as-is, so building a
+ * new controller per job no longer costs a multi-megabyte copy and a chmod.
+ * When the package version changes the raw resource is hashed first and only
+ * copied again when its digest actually differs.
+ *
+ * Installs are serialized per binary inside the process and guarded by a
+ * FileLock across processes, so concurrent jobs can safely race to install.
+ */
+public class BinaryInstaller {
+
+	private final static String TAG = "BinaryInstaller";
+
+	private final static String BIN_DIR = "bin";
+	private final static String STAMP_SUFFIX = ".stamp";
+	private final static String LOCK_SUFFIX = ".lock";
+	private final static String TMP_SUFFIX = ".tmp";
+
+	private final static String KEY_VERSION = "version";
+	private final static String KEY_DIGEST = "digest";
+	private final static String KEY_LENGTH = "length";
+
+	private final static int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+	//canonical paths of binaries already verified by this process, keyed by file name
+	private final static HashMap<String, String> sInstalled = new HashMap<String, String>();
+
+	//one monitor per binary so ffmpeg and sox installs do not block each other
+	private final static HashMap<String, Object> sLocks = new HashMap<String, Object>();
+
+	/**
+	 * Returns the canonical path of the installed binary, copying the raw
+	 * resource only when no matching install is present.
+	 * @param ctx context
+	 * @param resId raw resource id of the binary
+	 * @param filename name of the binary inside the bin dir
+	 * @param overwrite force a fresh copy even if the stamp matches
+	 * @return canonical path of the executable
+	 * @throws IOException on error
+	 */
+	public static String install(Context ctx, int resId, String filename, boolean overwrite) throws IOException
+	{
+		synchronized (lockFor(filename))
+		{
+			if (!overwrite)
+			{
+				String path;
+				synchronized (sInstalled) {
+					path = sInstalled.get(filename);
+				}
+				if (path != null && new File(path).canExecute())
+					return path;
+			}
+
+			File binDir = ctx.getDir(BIN_DIR, Context.MODE_PRIVATE);
+			File fileBin = new File(binDir, filename);
+			File fileStamp = new File(binDir, filename + STAMP_SUFFIX);
+
+			RandomAccessFile lockFile = new RandomAccessFile(new File(binDir, filename + LOCK_SUFFIX), "rw");
+			FileLock lock = null;
+
+			try
+			{
+				lock = lockFile.getChannel().lock();
+
+				String version = getPackageVersion(ctx);
+				Properties stamp = readStamp(fileStamp);
+
+				boolean current = !overwrite && fileBin.exists()
+						&& version.equals(stamp.getProperty(KEY_VERSION))
+						&& String.valueOf(fileBin.length()).equals(stamp.getProperty(KEY_LENGTH));
+
+				if (!current)
+				{
+					String digest = digestResource(ctx, resId);
+
+					if (overwrite || !fileBin.exists()
+							|| !digest.equals(stamp.getProperty(KEY_DIGEST))
+							|| !String.valueOf(fileBin.length()).equals(stamp.getProperty(KEY_LENGTH)))
+					{
+						Log.d(TAG, "installing " + filename + " (" + digest + ")");
+						copyRawFile(ctx, resId, fileBin);
+					}
+
+					stamp.setProperty(KEY_VERSION, version);
+					stamp.setProperty(KEY_DIGEST, digest);
+					stamp.setProperty(KEY_LENGTH, String.valueOf(fileBin.length()));
+					writeStamp(fileStamp, stamp);
+				}
+
+				if (!fileBin.canExecute() && !fileBin.setExecutable(true, true))
+					throw new IOException("unable to mark executable: " + fileBin);
+
+				String path = fileBin.getCanonicalPath();
+
+				synchronized (sInstalled) {
+					sInstalled.put(filename, path);
+				}
+
+				return path;
+			}
+			finally
+			{
+				if (lock != null)
+					lock.release();
+				lockFile.close();
+			}
+		}
+	}
+
+	private static Object lockFor(String filename)
+	{
+		synchronized (sLocks)
+		{
+			Object lock = sLocks.get(filename);
+			if (lock == null)
+			{
+				lock = new Object();
+				sLocks.put(filename, lock);
+			}
+			return lock;
+		}
+	}
+
+	private static String getPackageVersion(Context ctx)
+	{
+		try {
+			PackageInfo pi = ctx.getPackageManager().getPackageInfo(ctx.getPackageName(), 0);
+			return pi.versionCode + ":" + pi.lastUpdateTime;
+		} catch (NameNotFoundException e) {
+			return "unknown";
+		}
+	}
+
+	private static Properties readStamp(File fileStamp)
+	{
+		Properties stamp = new Properties();
+
+		if (fileStamp.exists())
+		{
+			FileInputStream in = null;
+			try {
+				in = new FileInputStream(fileStamp);
+				stamp.load(in);
+			} catch (IOException e) {
+				Log.w(TAG, "ignoring unreadable stamp " + fileStamp + ": " + e.getLocalizedMessage());
+				stamp.clear();
+			} finally {
+				closeQuietly(in);
+			}
+		}
+
+		return stamp;
+	}
+
+	private static void writeStamp(File fileStamp, Properties stamp) throws IOException
+	{
+		File fileTmp = new File(fileStamp.getPath() + TMP_SUFFIX);
+		FileOutputStream out = new FileOutputStream(fileTmp);
+		try {
+			stamp.store(out, null);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		if (!fileTmp.renameTo(fileStamp))
+			throw new IOException("unable to write stamp: " + fileStamp);
+	}
+
+	private static String digestResource(Context ctx, int resId) throws IOException
+	{
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 not available");
+		}
+
+		InputStream is = ctx.getResources().openRawResource(resId);
+		try {
+			byte[] buf = new byte[DIGEST_BUFFER_SIZE];
+			int len;
+			while ((len = is.read(buf)) != -1)
+				md.update(buf, 0, len);
+		} finally {
+			is.close();
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : md.digest())
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	/**
+	 * Copies a raw resource into place through a temp file so a concurrent
+	 * reader never sees a half written binary.
+	 * @param ctx context
+	 * @param resid resource id
+	 * @param file destination file
+	 * @throws IOException on error
+	 */
+	private static void copyRawFile(Context ctx, int resid, File file) throws IOException
+	{
+		File fileTmp = new File(file.getPath() + TMP_SUFFIX);
+
+		ReadableByteChannel in = Channels.newChannel(ctx.getResources().openRawResource(resid));
+		FileOutputStream out = new FileOutputStream(fileTmp);
+
+		try {
+			FileChannel fc = out.getChannel();
+			long pos = 0;
+			long count;
+			while ((count = fc.transferFrom(in, pos, DIGEST_BUFFER_SIZE)) > 0)
+				pos += count;
+			out.getFD().sync();
+		} finally {
+			out.close();
+			in.close();
+		}
+
+		if (!fileTmp.setExecutable(true, true))
+			throw new IOException("unable to mark executable: " + fileTmp);
+
+		if (!fileTmp.renameTo(file))
+		{
+			file.delete();
+			if (!fileTmp.renameTo(file))
+				throw new IOException("unable to move binary into place: " + file);
+		}
+	}
+
+	private static void closeQuietly(InputStream in)
+	{
+		if (in != null)
+		{
+			try { in.close(); }
+			catch (IOException e) {}
+		}
+	}
+}
@@ -10,10 +10,16 @@ public class Clip implements Cloneable
 	public String videoFps;
 	public int videoBitrate = -1;
 	public String videoBitStreamFilter;
+	public int rotation = 0; //degrees clockwise the video should be turned for display
+	public double keyframeInterval = -1; //average seconds between video keyframes
+	public String videoProfile; //as ffmpeg names it, e.g. "High" or "Constrained Baseline"
+	public int videoLevel = -1; //H.264 level_idc, e.g. 31 for level 3.1
+	public String pixelFormat; //e.g. yuv420p
 	
 	public String audioCodec;
 	public int audioChannels = -1;
 	public int audioBitrate = -1;
+	public int audioSampleRate = -1;
 	public String audioQuality;
 	public int audioVolume = -1;
 	public String audioBitStreamFilter;
@@ -21,9 +27,11 @@ public class Clip implements Cloneable
 	public String path;
 	public String format;
 	public String mimeType;
+	public String layout; //MP4 output: LAYOUT_FASTSTART, LAYOUT_FRAGMENTED or null for moov at the end
 	
 	public String startTime; //00:00:00 or seconds format
 	public double duration = -1; //00:00:00 or seconds format
+	public int bitrate = -1; //overall kb/s of the container
 	
 	public String videoFilter;
 	public String audioFilter;
@@ -31,6 +39,9 @@ public class Clip implements Cloneable
 	public String qscale;
 	public String aspect;
 	public int passCount = 1; //default
+
+	public final static String LAYOUT_FASTSTART = "faststart"; //moov moved to the front when done
+	public final static String LAYOUT_FRAGMENTED = "fragmented"; //moof fragments written as it goes
 		
 	public Clip ()
 	{
@@ -5,15 +5,21 @@ import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.StringTokenizer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.ffmpeg.android.ShellUtils.ShellCallback;
 
@@ -37,10 +43,16 @@ public class FfmpegController {
 
 	private String mCmdCat = "sh cat";
 
+	private ProcessGroup mProcessGroup;
+
+	private ProbeCache mProbeCache;
+
 	public FfmpegController(Context context, File fileTemp) throws FileNotFoundException, IOException {
 		mFileTemp = fileTemp;
 
 		installBinaries(context, false);
+
+		mProbeCache = ProbeCache.getInstance(context);
 	}
 
 	public void installBinaries(Context context, boolean overwrite)
@@ -53,14 +65,18 @@ public class FfmpegController {
 		return mFfmpegBin;
 	}
 
+	/**
+	 * Processes started from now on are registered in the group, so they can
+	 * all be stopped with {@link ProcessGroup#cancel()}.
+	 */
+	public void setProcessGroup (ProcessGroup group)
+	{
+		mProcessGroup = group;
+	}
+
 	private static String installBinary(Context ctx, int resId, String filename, boolean upgrade) {
 		try {
-			File f = new File(ctx.getDir("bin", 0), filename);
-			if (f.exists()) {
-				f.delete();
-			}
-			copyRawFile(ctx, resId, f, "0755");
-			return f.getCanonicalPath();
+			return BinaryInstaller.install(ctx, resId, filename, upgrade);
 		} catch (Exception e) {
 			Log.e(TAG, "installBinary failed: " + e.getLocalizedMessage());
 			return null;
@@ -68,44 +84,57 @@ public class FfmpegController {
 	}
 
 	/**
-	 * Copies a raw resource file, given its ID to the given location
-	 * @param ctx context
-	 * @param resid resource id
-	 * @param file destination file
-	 * @param mode file permissions (E.g.: "755")
-	 * @throws IOException on error
-	 * @throws InterruptedException when interrupted
+	 * Runs ffmpeg and waits for it.
+	 * @throws IOException if ffmpeg exits with an error; an output it leaves
+	 * behind may be cut short and must not be used
 	 */
-	private static void copyRawFile(Context ctx, int resid, File file, String mode) throws IOException, InterruptedException
-	{
-		final String abspath = file.getAbsolutePath();
-		// Write the iptables binary
-		final FileOutputStream out = new FileOutputStream(file);
-		final InputStream is = ctx.getResources().openRawResource(resid);
-		byte buf[] = new byte[1024];
-		int len;
-		while ((len = is.read(buf)) > 0) {
-			out.write(buf, 0, len);
+	public void execFFMPEG (List<String> cmd, ShellCallback sc, File fileExec) throws IOException, InterruptedException {
+
+		if (sc instanceof ProgressCallback)
+		{
+			cmd = withProgress(cmd);
+			sc = new ProgressParser((ProgressCallback) sc, cmd);
 		}
-		out.close();
-		is.close();
-		// Change the permissions
-		Runtime.getRuntime().exec("chmod "+mode+" "+abspath).waitFor();
-	}
 
+		int exitValue = execProcess (cmd, sc, fileExec);
 
+		if (exitValue != 0)
+			throw new IOException("There was a problem rendering the video: ffmpeg exited with " + exitValue);
+	}
 
-	public void execFFMPEG (List<String> cmd, ShellCallback sc, File fileExec) throws IOException, InterruptedException {
+	/**
+	 * Starts ffmpeg set up as execFFMPEG would, without waiting for it.
+	 */
+	private ProcessRunner.Handle startFFMPEG (List<String> cmd, ShellCallback sc) throws IOException
+	{
+		if (sc instanceof ProgressCallback)
+		{
+			cmd = withProgress(cmd);
+			sc = new ProgressParser((ProgressCallback) sc, cmd);
+		}
 
-		enablePermissions();
+		StringBuffer cmdlog = new StringBuffer();
+		for (String arg : cmd)
+		{
+			cmdlog.append(arg);
+			cmdlog.append(' ');
+		}
+		sc.shellOut(cmdlog.toString());
 
-		execProcess (cmd, sc, fileExec);
+		return ProcessRunner.getInstance().start(cmd, new File(mFfmpegBin).getParentFile(), sc, mProcessGroup);
 	}
 
-	private void enablePermissions () throws IOException
+	/**
+	 * @return the command with machine readable progress on stdout instead of
+	 * the human readable stats line on stderr
+	 */
+	private static List<String> withProgress (List<String> cmd)
 	{
-		Runtime.getRuntime().exec("chmod 700 " + mFfmpegBin);
-
+		ArrayList<String> cmdProgress = new ArrayList<String>(cmd);
+		cmdProgress.add(1, "-nostats");
+		cmdProgress.add(1, "pipe:1");
+		cmdProgress.add(1, "-progress");
+		return cmdProgress;
 	}
 
 	public void execFFMPEG (List<String> cmd, ShellCallback sc) throws IOException, InterruptedException {
@@ -120,9 +149,6 @@ public class FfmpegController {
 			cmd = String.format(Locale.US, "%s", cmd);
 		}
 
-		ProcessBuilder pb = new ProcessBuilder(cmds);
-		pb.directory(fileExec);
-
 		StringBuffer cmdlog = new StringBuffer();
 
 		for (String cmd : cmds)
@@ -133,63 +159,7 @@ public class FfmpegController {
 
 		sc.shellOut(cmdlog.toString());
 
-		//pb.redirectErrorStream(true);
-
-		Process process = pb.start();
-
-
-		// any error message?
-		StreamGobbler errorGobbler = new StreamGobbler(
-				process.getErrorStream(), "ERROR", sc);
-
-    	 // any output?
-        StreamGobbler outputGobbler = new
-            StreamGobbler(process.getInputStream(), "OUTPUT", sc);
-
-        errorGobbler.start();
-        outputGobbler.start();
-
-        int exitVal = process.waitFor();
-
-        sc.processComplete(exitVal);
-
-        return exitVal;
-
-	}
-
-
-	private int execProcess(String cmd, ShellCallback sc, File fileExec) throws IOException, InterruptedException {
-
-		//ensure that the argument is in the correct Locale format
-		cmd = String.format(Locale.US, "%s", cmd);
-
-		ProcessBuilder pb = new ProcessBuilder(cmd);
-		pb.directory(fileExec);
-
-	//	pb.redirectErrorStream(true);
-    	Process process = pb.start();
-
-
-    	  // any error message?
-        StreamGobbler errorGobbler = new
-            StreamGobbler(process.getErrorStream(), "ERROR", sc);
-
-    	 // any output?
-        StreamGobbler outputGobbler = new
-            StreamGobbler(process.getInputStream(), "OUTPUT", sc);
-
-        // kick them off
-        errorGobbler.start();
-        outputGobbler.start();
-
-
-        int exitVal = process.waitFor();
-
-        sc.processComplete(exitVal);
-
-        return exitVal;
-
-
+		return ProcessRunner.getInstance().run(cmds, fileExec, sc, mProcessGroup);
 
 	}
 
@@ -340,6 +310,7 @@ public class FfmpegController {
 		// cmd.add("-metadata:s:v:0");
 		// cmd.add("rotate=0");
 
+		addLayout(cmd, out);
 		cmd.add(new File(out.path).getCanonicalPath());
 
 		execFFMPEG(cmd, sc);
@@ -347,367 +318,1636 @@ public class FfmpegController {
 	}
 
 
-	public Clip createSlideshowFromImagesAndAudio (ArrayList<Clip> images, Clip audio,  Clip out, int durationPerSlide, ShellCallback sc) throws Exception
+	/**
+	 * Which streams of a clip can be copied as they are to get the requested
+	 * output, and why the others have to be encoded.
+	 */
+	public static class TranscodePlan
 	{
+		public boolean copyVideo;
+		public boolean copyAudio;
+		public final ArrayList<String> reasons = new ArrayList<String>();
+
+		/**
+		 * @return "remux" when everything is copied, "audio" when only the audio
+		 * is encoded, otherwise "transcode"
+		 */
+		public String getMode ()
+		{
+			if (copyVideo && copyAudio)
+				return "remux";
 
-		final String imageBasePath = new File(mFileTemp,"image-").getCanonicalPath();
-		final String imageBaseVariablePath = imageBasePath + "%03d.jpg";
+			return copyVideo ? "audio" : "transcode";
+		}
+	}
 
+	//sources up to this much over a bitrate target still count as meeting it
+	private final static double BITRATE_SLACK = 1.1;
 
-		ArrayList<String> cmd = new ArrayList<String>();
+	/**
+	 * Compares a probed clip with the requested output. A stream is only
+	 * copied when every property of it that out asks for is known and already
+	 * met; anything unknown means encoding.
+	 * @param in the probed input, see getInfo
+	 * @param out the requested output, as for processVideo
+	 */
+	public TranscodePlan planTranscode (Clip in, Clip out)
+	{
+		TranscodePlan plan = new TranscodePlan();
+		ArrayList<String> reasons = plan.reasons;
 
+		//video
+		int before = reasons.size();
 
-		String newImagePath = null;
-		int imageCounter = 0;
+		if (in.videoCodec == null)
+			reasons.add("video codec unknown");
+		else if (out.videoCodec != null && !in.videoCodec.equals(out.videoCodec.equals("libx264") ? "h264" : out.videoCodec))
+			reasons.add("video codec " + in.videoCodec);
 
-		Clip imageCover = images.get(0); //add the first image twice
+		if (out.width > 0 && out.height > 0)
+		{
+			if (in.width <= 0 || in.height <= 0)
+				reasons.add("video size unknown");
+			else if (Math.max(in.width, in.height) > Math.max(out.width, out.height)
+					|| Math.min(in.width, in.height) > Math.min(out.width, out.height))
+				reasons.add("video size " + in.width + "x" + in.height);
+		}
 
-		cmd = new ArrayList<String>();
-		cmd.add(mFfmpegBin);
-		cmd.add("-y");
+		if (out.videoFps != null)
+		{
+			double fps = parseFps(in.videoFps);
+			if (fps <= 0)
+				reasons.add("frame rate unknown");
+			else if (fps > parseFps(out.videoFps) + 0.5)
+				reasons.add("frame rate " + in.videoFps);
+		}
 
-		cmd.add("-i");
-		cmd.add(new File(imageCover.path).getCanonicalPath());
+		if (out.videoBitrate > 0)
+		{
+			int bitrate = in.videoBitrate > 0 ? in.videoBitrate : in.bitrate;
+			if (bitrate <= 0)
+				reasons.add("video bitrate unknown");
+			else if (bitrate > out.videoBitrate * BITRATE_SLACK)
+				reasons.add("video bitrate " + bitrate + "k");
+		}
 
-		if (out.width != -1 && out.height != -1)
+		if (out.videoFilter != null || out.videoBitStreamFilter != null)
+			reasons.add("video filter");
+
+		plan.copyVideo = reasons.size() == before;
+
+		//audio, which may be missing altogether
+		before = reasons.size();
+
+		if (in.audioCodec != null)
 		{
-			cmd.add("-s");
-			cmd.add(out.width + "x" + out.height);
+			if (!in.audioCodec.equals(out.audioCodec != null ? out.audioCodec : "aac"))
+				reasons.add("audio codec " + in.audioCodec);
+
+			if (out.audioChannels > 0)
+			{
+				if (in.audioChannels <= 0)
+					reasons.add("audio channels unknown");
+				else if (in.audioChannels > out.audioChannels)
+					reasons.add("audio channels " + in.audioChannels);
+			}
+
+			if (out.audioBitrate > 0 && (in.audioBitrate <= 0 || in.audioBitrate > out.audioBitrate * BITRATE_SLACK))
+				reasons.add("audio bitrate " + (in.audioBitrate > 0 ? in.audioBitrate + "k" : "unknown"));
+
+			if (out.audioFilter != null || out.audioBitStreamFilter != null)
+				reasons.add("audio filter");
 		}
 
-		newImagePath = imageBasePath + String.format(Locale.US, "%03d", imageCounter++) + ".jpg";
-		cmd.add(newImagePath);
+		plan.copyAudio = reasons.size() == before;
 
-		execFFMPEG(cmd, sc);
+		return plan;
+	}
 
-		for (Clip image : images)
+	/**
+	 * Fits the requested output to the source, so encoding never creates
+	 * pixels, frames or bits the source does not have. out's width and height
+	 * are a bounding box, in either orientation; the result keeps the display
+	 * aspect ratio of the source (after rotation), has even dimensions and is
+	 * never larger than the source. A frame rate at or above the source's is
+	 * dropped so the source timing is kept; bitrates and audio channels are
+	 * capped at the source's. Values the source does not report are left as
+	 * requested; an unknown size is handed to ffmpeg's scale filter instead.
+	 * @param in the probed input, see getInfo
+	 * @param out the requested output, left untouched
+	 * @return a copy of out with the resolved values
+	 */
+	public Clip resolveOutput (Clip in, Clip out) throws CloneNotSupportedException
+	{
+		Clip resolved = out.clone();
+
+		if (out.width > 0 && out.height > 0)
 		{
-			cmd = new ArrayList<String>();
-			cmd.add(mFfmpegBin);
-			cmd.add("-y");
+			int boxLong = Math.max(out.width, out.height);
+			int boxShort = Math.min(out.width, out.height);
 
-			cmd.add("-i");
-			cmd.add(new File(image.path).getCanonicalPath());
+			if (in.width > 0 && in.height > 0)
+			{
+				//ffmpeg rotates while encoding, so the output has the display orientation
+				boolean turned = in.rotation == 90 || in.rotation == 270;
+				int displayWidth = turned ? in.height : in.width;
+				int displayHeight = turned ? in.width : in.height;
 
-			if (out.width != -1 && out.height != -1)
+				double scale = Math.min(1, Math.min(
+						boxLong / (double) Math.max(displayWidth, displayHeight),
+						boxShort / (double) Math.min(displayWidth, displayHeight)));
+
+				resolved.width = evenDimension(displayWidth * scale);
+				resolved.height = evenDimension(displayHeight * scale);
+			}
+			else
 			{
-				cmd.add("-s");
-				cmd.add(out.width + "x" + out.height);
+				resolved.width = -1;
+				resolved.height = -1;
+				//the box is turned to the frame's orientation, so both of its sides bound
+				resolved.videoFilter = appendFilter(out.videoFilter, String.format(Locale.US,
+						"scale=w='if(gte(iw,ih),min(%1$d,iw),min(%2$d,iw))':h='if(gte(iw,ih),min(%2$d,ih),min(%1$d,ih))'"
+						+ ":force_original_aspect_ratio=decrease,scale=trunc(iw/2)*2:trunc(ih/2)*2",
+						boxLong, boxShort));
 			}
+		}
 
-			newImagePath = imageBasePath + String.format(Locale.US, "%03d", imageCounter++) + ".jpg";
-			cmd.add(newImagePath);
+		//no -r at all keeps the source timing exactly, variable frame rate included
+		double fps = parseFps(in.videoFps);
+		if (out.videoFps != null && fps > 0 && fps <= parseFps(out.videoFps))
+			resolved.videoFps = null;
 
-			execFFMPEG(cmd, sc);
+		int videoBitrate = in.videoBitrate > 0 ? in.videoBitrate : in.bitrate;
+		if (out.videoBitrate > 0 && videoBitrate > 0)
+			resolved.videoBitrate = Math.min(out.videoBitrate, videoBitrate);
 
+		if (out.audioBitrate > 0 && in.audioBitrate > 0)
+			resolved.audioBitrate = Math.min(out.audioBitrate, in.audioBitrate);
+
+		if (out.audioChannels > 0 && in.audioChannels > 0)
+			resolved.audioChannels = Math.min(out.audioChannels, in.audioChannels);
+
+		return resolved;
+	}
+
+	private static int evenDimension (double size)
+	{
+		//rounded down, so an odd source size is never exceeded; the epsilon keeps
+		//a box side that came out as 639.999... from dropping to 638
+		return Math.max(2, ((int) (size + 1e-6)) & ~1);
+	}
+
+	private static String appendFilter (String chain, String filter)
+	{
+		return chain == null ? filter : chain + "," + filter;
+	}
 
+	/**
+	 * Adds the muxer flags for out.layout. Neither needs a second copy of the
+	 * file: faststart makes ffmpeg shift the data down inside the finished
+	 * file to make room for moov at the front, and fragmented writes an empty
+	 * moov up front and a moof before each keyframe as it goes.
+	 */
+	private static void addLayout (ArrayList<String> cmd, Clip out)
+	{
+		if (Clip.LAYOUT_FASTSTART.equals(out.layout))
+		{
+			cmd.add("-movflags");
+			cmd.add("+faststart");
+		}
+		else if (Clip.LAYOUT_FRAGMENTED.equals(out.layout))
+		{
+			cmd.add("-movflags");
+			cmd.add("+frag_keyframe+empty_moov+default_base_moof");
 		}
+	}
 
-		//then combine them
-		cmd = new ArrayList<String>();
+	/**
+	 * Produces the output the way the plan says: processVideo when the video
+	 * has to be encoded, otherwise a remux that copies the video and copies
+	 * or encodes the audio.
+	 */
+	public void processVideo (Clip in, Clip out, TranscodePlan plan, ShellCallback sc) throws Exception
+	{
+		if (!plan.copyVideo)
+		{
+			processVideo(new Clip(in.path), out, true, sc);
+			return;
+		}
 
+		ArrayList<String> cmd = new ArrayList<String>();
 		cmd.add(mFfmpegBin);
 		cmd.add("-y");
+		cmd.add("-i");
+		cmd.add(new File(in.path).getCanonicalPath());
+		cmd.add("-map");
+		cmd.add("0:v:0?");
+		cmd.add("-map");
+		cmd.add("0:a:0?");
+		cmd.add("-c:v");
+		cmd.add("copy");
 
-		cmd.add("-loop");
-		cmd.add("0");
-
-		cmd.add("-f");
-		cmd.add("image2");
+		if (plan.copyAudio)
+		{
+			cmd.add("-c:a");
+			cmd.add("copy");
+		}
+		else
+		{
+			cmd.add("-c:a");
+			cmd.add(out.audioCodec != null ? out.audioCodec : "aac");
 
-		cmd.add("-r");
-		cmd.add("1/" + durationPerSlide);
+			if (out.audioChannels > 0)
+			{
+				cmd.add(Argument.CHANNELS_AUDIO);
+				cmd.add(out.audioChannels + "");
+			}
 
-		cmd.add("-i");
-		cmd.add(imageBaseVariablePath);
+			if (out.audioBitrate > 0)
+			{
+				cmd.add(Argument.BITRATE_AUDIO);
+				cmd.add(out.audioBitrate + "k");
+			}
 
-		cmd.add("-strict");
-		cmd.add("-2");//experimental
+			cmd.add("-strict");
+			cmd.add("-2");
+		}
 
-		String fileTempMpg = new File(mFileTemp,"tmp.mpg").getCanonicalPath();
+		if (out.duration > 0)
+		{
+			cmd.add(Argument.DURATION);
+			cmd.add(out.duration + "");
+		}
 
-		cmd.add(fileTempMpg);
+		addLayout(cmd, out);
+		cmd.add(new File(out.path).getCanonicalPath());
 
 		execFFMPEG(cmd, sc);
+		checkOutput(out.path);
+	}
 
-		//now combine and encode
-		cmd = new ArrayList<String>();
+	//seconds between the keyframes shared by all renditions
+	private final static int RENDITION_KEYFRAME_SECONDS = 2;
 
+	/**
+	 * Writes several renditions of the input with a single decode. The
+	 * decoded video is split into one branch per output, each scaled and
+	 * paced on its own, and all outputs are encoded in the same ffmpeg run.
+	 * Each output takes the same fields as for processVideo; resolve them
+	 * with resolveOutput first so none is larger than the source. Keyframes
+	 * are forced at the same times in every output, so a player can switch
+	 * between them at any GOP boundary.
+	 * @param in the input
+	 * @param outs the renditions to write, at least one
+	 */
+	public void processRenditions (Clip in, List<Clip> outs, ShellCallback sc) throws Exception
+	{
+		ArrayList<String> cmd = new ArrayList<String>();
 		cmd.add(mFfmpegBin);
 		cmd.add("-y");
-
 		cmd.add("-i");
-		cmd.add(fileTempMpg);
+		cmd.add(new File(in.path).getCanonicalPath());
 
-		if (audio != null && audio.path != null)
+		//[0:v]split=3[v0][v1][v2];[v0]scale=1920:1080,format=yuv420p[out0];...
+		StringBuffer graph = new StringBuffer();
+		graph.append("[0:v]split=").append(outs.size());
+		for (int i = 0; i < outs.size(); i++)
+			graph.append("[v").append(i).append(']');
+
+		for (int i = 0; i < outs.size(); i++)
 		{
-			cmd.add("-i");
-			cmd.add(new File(audio.path).getCanonicalPath());
+			Clip out = outs.get(i);
+
+			String chain = null;
+			if (out.width > 0)
+				chain = appendFilter(chain, "scale=" + out.width + ":" + out.height);
+			if (out.videoFps != null)
+				chain = appendFilter(chain, "fps=" + out.videoFps);
+			if (out.videoFilter != null)
+				chain = appendFilter(chain, out.videoFilter);
+			chain = appendFilter(chain, "format=yuv420p");
+
+			graph.append(";[v").append(i).append(']').append(chain).append("[out").append(i).append(']');
+		}
 
-			cmd.add("-map");
-			cmd.add("0:0");
+		cmd.add("-filter_complex");
+		cmd.add(graph.toString());
+
+		for (int i = 0; i < outs.size(); i++)
+		{
+			Clip out = outs.get(i);
 
 			cmd.add("-map");
-			cmd.add("1:0");
+			cmd.add("[out" + i + "]");
+			cmd.add("-map");
+			cmd.add("0:a:0?");
 
-			cmd.add(Argument.AUDIOCODEC);
-			cmd.add("aac");
+			cmd.add(Argument.VIDEOCODEC);
+			cmd.add(out.videoCodec != null ? out.videoCodec : "libx264");
 
-			cmd.add(Argument.BITRATE_AUDIO);
-			cmd.add("128k");
+			if (out.videoBitrate > 0)
+			{
+				cmd.add(Argument.BITRATE_VIDEO);
+				cmd.add(out.videoBitrate + "k");
+			}
 
-		}
+			//scene cuts would add keyframes to some renditions only
+			cmd.add("-force_key_frames");
+			cmd.add("expr:gte(t,n_forced*" + RENDITION_KEYFRAME_SECONDS + ")");
+			cmd.add("-sc_threshold");
+			cmd.add("0");
 
-		cmd.add("-strict");
-		cmd.add("-2");//experimental
+			cmd.add(Argument.AUDIOCODEC);
+			cmd.add(out.audioCodec != null ? out.audioCodec : "aac");
 
-		cmd.add(Argument.VIDEOCODEC);
+			if (out.audioChannels > 0)
+			{
+				cmd.add(Argument.CHANNELS_AUDIO);
+				cmd.add(out.audioChannels + "");
+			}
 
+			if (out.audioBitrate > 0)
+			{
+				cmd.add(Argument.BITRATE_AUDIO);
+				cmd.add(out.audioBitrate + "k");
+			}
 
-		if (out.videoCodec != null)
-			cmd.add(out.videoCodec);
-		else
-			cmd.add("mpeg4");
+			if (out.duration > 0)
+			{
+				cmd.add(Argument.DURATION);
+				cmd.add(out.duration + "");
+			}
 
-		if (out.videoBitrate != -1)
-		{
-			cmd.add(Argument.BITRATE_VIDEO);
-			cmd.add(out.videoBitrate + "k");
+			cmd.add("-strict");
+			cmd.add("-2");
+			addLayout(cmd, out);
+			cmd.add(new File(out.path).getCanonicalPath());
 		}
 
-		cmd.add(new File(out.path).getCanonicalPath());
-
-
 		execFFMPEG(cmd, sc);
 
-		return out;
+		for (Clip out : outs)
+			checkOutput(out.path);
 	}
 
-	/*
-	 * ffmpeg -y -loop 0 -f image2 -r 0.5 -i image-%03d.jpg -s:v 1280x720 -b:v 1M \
-   -i soundtrack.mp3 -t 01:05:00 -map 0:0 -map 1:0 out.avi
+	//shorter segments cost more in encoder warm up and keyframes than they gain
+	private final static double MIN_PARALLEL_SEGMENT = 5;
 
-   -loop_input – loops the images. Disable this if you want to stop the encoding when all images are used or the soundtrack is finished.
+	//x264 preset for parallel segments; the extra cores pay for a better one than ultrafast
+	private final static String PARALLEL_PRESET = "fast";
 
--r 0.5 – sets the framerate to 0.5, which means that each image will be shown for 2 seconds. Just take the inverse, for example if you want each image to last for 3 seconds, set it to 0.33.
+	//seconds of work lost at most when a resumable encode is interrupted, per process
+	private final static double CHECKPOINT_SEGMENT = 30;
 
--i image-%03d.jpg – use these input files. %03d means that there will be three digit numbers for the images.
+	/**
+	 * Encodes the video in several ffmpeg processes at once. The input is cut
+	 * at keyframes into about twice as many segments as processes, so a slow
+	 * segment does not hold the others up. Each segment is encoded on its own,
+	 * the audio is encoded once in a process of its own, and the results are
+	 * joined with a stream copy. Cuts sit just before a keyframe, and the
+	 * segments are decoded from there, so every frame lands in exactly one
+	 * segment. Falls back to processVideo when the clip is too short to be
+	 * worth splitting.
+	 * @param in the input, probed here if needed
+	 * @param out the output, as for processVideo
+	 * @param processes how many ffmpeg processes may run at once
+	 */
+	public void processVideoParallel (Clip in, Clip out, int processes, ShellCallback sc) throws Exception
+	{
+		Clip info = getInfo(new Clip(in.path));
+		double duration = out.duration > 0 && info.duration > 0 ? Math.min(out.duration, info.duration) : info.duration;
 
--s 1280x720 – sets the output frame size.
+		int count = (int) Math.min(processes * 2, duration / MIN_PARALLEL_SEGMENT);
+		List<Double> cuts = processes < 2 || count < 2 || info.videoCodec == null ? null : segmentCuts(info, duration, count);
 
--b 1M – sets the bitrate. You want 500MB for one hour, which equals to 4000MBit in 3600 seconds, thus a bitrate of approximately 1MBit/s should be sufficient.
+		if (cuts == null || cuts.size() < 3)
+		{
+			processVideo(new Clip(in.path), out, true, sc);
+			return;
+		}
 
--i soundtrack.mp3 – use this soundtrack file. Can be any format.
+		//scratch space next to the temp file, or in it when it is a directory
+		File dir = mFileTemp.isDirectory() ? mFileTemp : mFileTemp.getParentFile();
+		String prefix = "parallel" + System.nanoTime() + "-";
 
--t 01:05:00 – set the output length in hh:mm:ss format.
+		encodeSegments(in, out, info, duration, cuts, processes, dir, prefix, null, sc);
+	}
 
-out.avi – create this output file. Change it as you like, for example using another container like MP4.
+	/**
+	 * Encodes the video like processVideoParallel, but keeps the segments and
+	 * a journal of the finished ones in workDir until the output is written.
+	 * Called again with the same workDir after the app was killed, it only
+	 * encodes the segments that were not finished and then joins them all.
+	 * The journal is thrown away when the input file or the output settings
+	 * changed in between.
+	 * @param processes how many ffmpeg processes may run at once, 1 to encode
+	 * the segments one after the other
+	 * @param workDir a directory for this encode alone, deleted when it succeeds
 	 */
-	public Clip combineAudioAndVideo (Clip videoIn, Clip audioIn, Clip out, ShellCallback sc) throws Exception
+	public void processVideoResumable (Clip in, Clip out, int processes, File workDir, ShellCallback sc) throws Exception
 	{
-		ArrayList<String> cmd = new ArrayList<String>();
+		Clip info = getInfo(new Clip(in.path));
+		double duration = out.duration > 0 && info.duration > 0 ? Math.min(out.duration, info.duration) : info.duration;
 
-		cmd.add(mFfmpegBin);
-		cmd.add("-y");
+		if (info.videoCodec == null || duration <= 0)
+		{
+			processVideo(new Clip(in.path), out, true, sc);
+			return;
+		}
 
-		cmd.add("-i");
-		cmd.add(new File(videoIn.path).getCanonicalPath());
+		SegmentJournal journal = SegmentJournal.open(workDir, signature(in, out));
+		List<Double> cuts = journal.getCuts();
 
-		cmd.add("-i");
-		cmd.add(new File(audioIn.path).getCanonicalPath());
+		if (cuts.isEmpty())
+		{
+			int count = (int) Math.max(processes * 2, duration / CHECKPOINT_SEGMENT);
+			count = (int) Math.max(1, Math.min(count, duration / MIN_PARALLEL_SEGMENT));
 
+			cuts = segmentCuts(info, duration, count);
+			journal.start(cuts);
+		}
+		else
+		{
+			Log.d(TAG, "resuming " + in.path + " from " + workDir);
+		}
 
-		cmd.add("-strict");
-		cmd.add("-2");//experimental
+		encodeSegments(in, out, info, duration, cuts, Math.max(1, processes), workDir, "", journal, sc);
+		journal.delete();
+	}
 
-		cmd.add(Argument.AUDIOCODEC);
-		if (out.audioCodec != null)
-			cmd.add(out.audioCodec);
-		else
+	/**
+	 * @return what a journal is valid for: the input file as it is now and
+	 * every output setting that changes the segments
+	 */
+	private static String signature (Clip in, Clip out) throws IOException
+	{
+		File file = new File(in.path).getCanonicalFile();
+
+		return file.getPath() + "|" + file.length() + "|" + file.lastModified()
+				+ "|" + out.videoCodec + "|" + out.videoBitrate + "|" + out.width + "x" + out.height
+				+ "|" + out.videoFps + "|" + out.videoFilter + "|" + out.duration
+				+ "|" + out.audioCodec + "|" + out.audioBitrate + "|" + out.audioChannels;
+	}
+
+	/**
+	 * @return the segment boundaries, from 0 to duration: just before the
+	 * keyframe nearest each of count equal shares, dropping any that would
+	 * make a segment shorter than half the minimum
+	 */
+	private List<Double> segmentCuts (Clip info, double duration, int count) throws IOException, InterruptedException
+	{
+		KeyframeIndex keyframes = getKeyframes(info);
+		ArrayList<Double> cuts = new ArrayList<Double>();
+		cuts.add(0d);
+		for (int i = 1; i < count; i++)
 		{
-			cmd.add("copy");
+			double target = duration * i / count;
+			double keyframe = keyframes.floor(target);
+			double cut = (keyframe > 0 ? keyframe : target) - KEYFRAME_TOLERANCE / 2;
 
+			if (cut - cuts.get(cuts.size() - 1) >= MIN_PARALLEL_SEGMENT / 2)
+				cuts.add(cut);
 		}
+		cuts.add(duration);
 
-		cmd.add(Argument.VIDEOCODEC);
-		if (out.videoCodec != null)
-			cmd.add(out.videoCodec);
-		else
+		return cuts;
+	}
+
+	/**
+	 * Encodes the audio and each segment between the cuts in up to processes
+	 * ffmpeg runs at once, then joins them into out. With a journal, parts it
+	 * lists as finished are not encoded again, each part is recorded as it
+	 * finishes, and the parts are left in dir; without one they are deleted.
+	 */
+	private void encodeSegments (Clip in, Clip out, Clip info, double duration, List<Double> cuts, int processes,
+			File dir, String prefix, SegmentJournal journal, ShellCallback sc) throws Exception
+	{
+		String inPath = new File(in.path).getCanonicalPath();
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / processes);
+
+		double[] lengths = new double[cuts.size() - 1];
+		for (int i = 0; i < lengths.length; i++)
+			lengths[i] = cuts.get(i + 1) - cuts.get(i);
+
+		ParallelProgress progress = new ParallelProgress(sc, lengths);
+
+		ArrayList<List<String>> commands = new ArrayList<List<String>>();
+		ArrayList<ShellCallback> callbacks = new ArrayList<ShellCallback>();
+		ArrayList<File> outputs = new ArrayList<File>();
+		ArrayList<File> files = new ArrayList<File>();
+
+		//the audio first, it is the longest single task
+		File fileAudio = null;
+		if (info.audioCodec != null)
+		{
+			fileAudio = new File(dir, prefix + "audio.m4a");
+			files.add(fileAudio);
+
+			if (journal == null || !journal.isDone(fileAudio))
+			{
+				ArrayList<String> cmd = new ArrayList<String>();
+				cmd.add(mFfmpegBin);
+				cmd.add("-y");
+				cmd.add("-i");
+				cmd.add(inPath);
+				cmd.add("-map");
+				cmd.add("0:a:0");
+				cmd.add("-vn");
+				cmd.add(Argument.AUDIOCODEC);
+				cmd.add(out.audioCodec != null ? out.audioCodec : "aac");
+				if (out.audioChannels > 0)
+				{
+					cmd.add(Argument.CHANNELS_AUDIO);
+					cmd.add(out.audioChannels + "");
+				}
+				if (out.audioBitrate > 0)
+				{
+					cmd.add(Argument.BITRATE_AUDIO);
+					cmd.add(out.audioBitrate + "k");
+				}
+				cmd.add("-strict");
+				cmd.add("-2");
+				cmd.add(Argument.DURATION);
+				cmd.add(ProgressParser.formatTime(duration));
+				cmd.add(fileAudio.getCanonicalPath());
+
+				commands.add(cmd);
+				callbacks.add(progress.forTask(-1));
+				outputs.add(fileAudio);
+			}
+		}
+
+		ArrayList<File> segments = new ArrayList<File>();
+		for (int i = 0; i < lengths.length; i++)
+		{
+			File fileSegment = new File(dir, prefix + i + ".mp4");
+			files.add(fileSegment);
+			segments.add(fileSegment);
+
+			if (journal != null && journal.isDone(fileSegment))
+			{
+				progress.skip(i);
+				continue;
+			}
+
+			ArrayList<String> cmd = new ArrayList<String>();
+			cmd.add(mFfmpegBin);
+			cmd.add("-y");
+			cmd.add(Argument.STARTTIME);
+			cmd.add(ProgressParser.formatTime(cuts.get(i)));
+			cmd.add("-i");
+			cmd.add(inPath);
+			cmd.add(Argument.DURATION);
+			cmd.add(ProgressParser.formatTime(lengths[i]));
+			cmd.add("-map");
+			cmd.add("0:v:0");
+			cmd.add("-an");
+			addVideoEncoder(cmd, out);
+			cmd.add("-threads");
+			cmd.add(threads + "");
+			cmd.add(fileSegment.getCanonicalPath());
+
+			commands.add(cmd);
+			callbacks.add(progress.forTask(i));
+			outputs.add(fileSegment);
+		}
+
+		File fileList = new File(dir, prefix + "list.txt");
+
+		try
 		{
+			runAll(commands, callbacks, outputs, processes, journal);
+
+			for (File file : files)
+				checkOutput(file.getCanonicalPath());
+
+			writeConcatList(fileList, segments.toArray(new File[segments.size()]));
+
+			ArrayList<String> cmd = new ArrayList<String>();
+			cmd.add(mFfmpegBin);
+			cmd.add("-y");
+			cmd.add("-f");
+			cmd.add("concat");
+			cmd.add("-safe");
+			cmd.add("0");
+			cmd.add("-i");
+			cmd.add(fileList.getCanonicalPath());
+			if (fileAudio != null)
+			{
+				cmd.add("-i");
+				cmd.add(fileAudio.getCanonicalPath());
+			}
+			cmd.add("-map");
+			cmd.add("0:v:0");
+			if (fileAudio != null)
+			{
+				cmd.add("-map");
+				cmd.add("1:a:0");
+			}
+			cmd.add("-c");
 			cmd.add("copy");
+			addLayout(cmd, out);
+			cmd.add(new File(out.path).getCanonicalPath());
+
+			execFFMPEG(cmd, StepProgress.wrap(sc, 95, 100, true));
+			checkOutput(out.path);
+		}
+		finally
+		{
+			//a journaled encode keeps its parts for the next attempt
+			if (journal == null)
+			{
+				for (File file : files)
+					file.delete();
+			}
+			fileList.delete();
 		}
+	}
 
-		if (out.videoBitrate != -1)
+	/**
+	 * The video encoding options of processVideo, for the encoders that
+	 * build their own command.
+	 */
+	private static void addVideoEncoder (ArrayList<String> cmd, Clip out)
+	{
+		cmd.add(Argument.VIDEOCODEC);
+		cmd.add(out.videoCodec != null ? out.videoCodec : "libx264");
+		cmd.add("-preset");
+		cmd.add(PARALLEL_PRESET);
+		cmd.add("-pix_fmt");
+		cmd.add("yuv420p");
+
+		if (out.videoBitrate > 0)
 		{
 			cmd.add(Argument.BITRATE_VIDEO);
 			cmd.add(out.videoBitrate + "k");
 		}
 
+		if (out.width > 0)
+		{
+			cmd.add(Argument.SIZE);
+			cmd.add(out.width + "x" + out.height);
+		}
+
 		if (out.videoFps != null)
 		{
 			cmd.add(Argument.FRAMERATE);
 			cmd.add(out.videoFps);
 		}
 
-		if (out.audioBitrate != -1)
+		if (out.videoFilter != null)
 		{
-			cmd.add(Argument.BITRATE_AUDIO);
-			cmd.add(out.audioBitrate + "k");
+			cmd.add("-vf");
+			cmd.add(out.videoFilter);
 		}
-		cmd.add("-y");
+	}
 
-		cmd.add("-cutoff");
-		cmd.add("15000");
+	/**
+	 * Runs the commands with at most max of them at a time, in order. If one
+	 * fails the others are killed.
+	 * @param callbacks the callback of each command
+	 * @param outputs the file each command writes, recorded in the journal,
+	 * if there is one, as soon as the command succeeds
+	 */
+	private void runAll (List<List<String>> commands, List<ShellCallback> callbacks, List<File> outputs, int max,
+			SegmentJournal journal) throws Exception
+	{
+		ArrayList<ProcessRunner.Handle> running = new ArrayList<ProcessRunner.Handle>();
+		ArrayList<Integer> indexes = new ArrayList<Integer>();
+		final LinkedBlockingQueue<ProcessRunner.Handle> finished = new LinkedBlockingQueue<ProcessRunner.Handle>();
+		int next = 0;
 
-// TODO - implement ability to specify originl width and height
-		// if (out.width > 0)
-		// {
-		// 	cmd.add(Argument.SIZE);
-		// 	cmd.add(out.width + "x" + out.height);
-		//
-		// }
+		try
+		{
+			while (next < commands.size() || !running.isEmpty())
+			{
+				while (next < commands.size() && running.size() < max)
+				{
+					final ProcessRunner.Handle handle = startFFMPEG(commands.get(next), callbacks.get(next));
+					running.add(handle);
+					indexes.add(next);
+					next++;
+
+					handle.setDoneListener(new Runnable()
+					{
+						public void run ()
+						{
+							finished.add(handle);
+						}
+					});
+				}
 
-		if (out.format != null)
+				//whichever ends first, so a free slot is refilled and a failure
+				//is seen at once, not behind the long audio encode
+				ProcessRunner.Handle done = finished.take();
+				int exitValue = done.waitFor();
+				int position = running.indexOf(done);
+				running.remove(position);
+				int index = indexes.remove(position);
+
+				if (mProcessGroup != null)
+					mProcessGroup.check();
+
+				if (exitValue != 0)
+					throw new Exception("There was a problem rendering the video: ffmpeg exited with " + exitValue
+							+ " on " + outputs.get(index).getName());
+
+				if (journal != null)
+					journal.done(outputs.get(index));
+			}
+		}
+		finally
 		{
-			cmd.add("-f");
-			cmd.add(out.format);
+			for (ProcessRunner.Handle handle : running)
+			{
+				handle.kill();
+				handle.waitFor();
+			}
 		}
+	}
 
-		File fileOut = new File(out.path);
-		cmd.add(fileOut.getCanonicalPath());
+	/**
+	 * Folds the progress of the segment encodes into one event stream, taking
+	 * the first 95% of the overall progress; the join takes the rest.
+	 */
+	private static class ParallelProgress
+	{
+		private final ShellCallback mCallback;
+		private final double[] mLengths;
+		private final double mTotal;
+		private final double[] mDone;
+		private double mSkipped = 0; //finished before this run, not part of the rate
+		private final long mStartMs = System.currentTimeMillis();
+
+		ParallelProgress (ShellCallback callback, double[] lengths)
+		{
+			mCallback = callback;
+			mLengths = lengths;
+			mDone = new double[lengths.length];
+
+			double total = 0;
+			for (double length : lengths)
+				total += length;
+			mTotal = total;
+		}
 
-		execFFMPEG(cmd, sc);
+		/**
+		 * Counts a segment finished by an earlier run as done.
+		 */
+		synchronized void skip (int segment)
+		{
+			mDone[segment] = mLengths[segment];
+			mSkipped += mLengths[segment];
+		}
+
+		/**
+		 * @return the callback for the segment at the index; the audio, -1,
+		 * only passes its output on
+		 */
+		ShellCallback forTask (final int segment)
+		{
+			if (segment < 0 || !(mCallback instanceof ProgressCallback))
+				return new ShellCallback()
+				{
+					public void shellOut (String line)
+					{
+						mCallback.shellOut(line);
+					}
 
+					public void processComplete (int exitValue)
+					{
+					}
+				};
 
-		return out;
+			return new ProgressCallback()
+			{
+				public void progress (ProgressEvent event)
+				{
+					update(segment, event);
+				}
+
+				public void shellOut (String line)
+				{
+					mCallback.shellOut(line);
+				}
+
+				public void processComplete (int exitValue)
+				{
+				}
+			};
+		}
+
+		private synchronized void update (int segment, ProgressEvent event)
+		{
+			if (event.done)
+				mDone[segment] = mLengths[segment];
+			else if (event.outTimeUs >= 0)
+				mDone[segment] = Math.min(mLengths[segment], event.outTimeUs / 1000000d);
+
+			double done = 0;
+			for (double value : mDone)
+				done += value;
 
+			ProgressEvent overall = new ProgressEvent();
+			overall.durationUs = (long) (mTotal * 1000000d);
+			overall.outTimeUs = (long) (done * 1000000d);
+			overall.percent = mTotal > 0 ? done * 95 / mTotal : -1;
+
+			long elapsedMs = System.currentTimeMillis() - mStartMs;
+			if (done > mSkipped)
+				overall.etaMs = (long) (elapsedMs * (mTotal - done) / (done - mSkipped));
+
+			((ProgressCallback) mCallback).progress(overall);
+		}
 	}
 
-	public Clip convertImageToMP4 (Clip mediaIn, int duration, String outPath, ShellCallback sc) throws Exception
+	/**
+	 * @return frames per second from "30", "29.97" or "30000/1001", or -1
+	 */
+	private static double parseFps (String fps)
 	{
-		Clip result = new Clip ();
+		if (fps == null)
+			return -1;
+
+		try
+		{
+			int slash = fps.indexOf('/');
+			if (slash == -1)
+				return Double.parseDouble(fps);
+
+			double den = Double.parseDouble(fps.substring(slash + 1));
+			return den > 0 ? Double.parseDouble(fps.substring(0, slash)) / den : -1;
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	public Clip createSlideshowFromImagesAndAudio (ArrayList<Clip> images, Clip audio,  Clip out, int durationPerSlide, ShellCallback sc) throws Exception
+	{
+
+		final String imageBasePath = new File(mFileTemp,"image-").getCanonicalPath();
+		final String imageBaseVariablePath = imageBasePath + "%03d.jpg";
+
+
 		ArrayList<String> cmd = new ArrayList<String>();
 
-		// ffmpeg -loop 1 -i IMG_1338.jpg -t 10 -r 29.97 -s 640x480 -qscale 5 test.mp4
 
-		cmd = new ArrayList<String>();
+		String newImagePath = null;
+		int imageCounter = 0;
+
+		Clip imageCover = images.get(0); //add the first image twice
+
+		cmd = new ArrayList<String>();
+		cmd.add(mFfmpegBin);
+		cmd.add("-y");
+
+		cmd.add("-i");
+		cmd.add(new File(imageCover.path).getCanonicalPath());
+
+		if (out.width != -1 && out.height != -1)
+		{
+			cmd.add("-s");
+			cmd.add(out.width + "x" + out.height);
+		}
+
+		newImagePath = imageBasePath + String.format(Locale.US, "%03d", imageCounter++) + ".jpg";
+		cmd.add(newImagePath);
+
+		execFFMPEG(cmd, sc);
+
+		for (Clip image : images)
+		{
+			cmd = new ArrayList<String>();
+			cmd.add(mFfmpegBin);
+			cmd.add("-y");
+
+			cmd.add("-i");
+			cmd.add(new File(image.path).getCanonicalPath());
+
+			if (out.width != -1 && out.height != -1)
+			{
+				cmd.add("-s");
+				cmd.add(out.width + "x" + out.height);
+			}
+
+			newImagePath = imageBasePath + String.format(Locale.US, "%03d", imageCounter++) + ".jpg";
+			cmd.add(newImagePath);
+
+			execFFMPEG(cmd, sc);
+
+
+		}
+
+		//then combine them
+		cmd = new ArrayList<String>();
+
+		cmd.add(mFfmpegBin);
+		cmd.add("-y");
+
+		cmd.add("-loop");
+		cmd.add("0");
+
+		cmd.add("-f");
+		cmd.add("image2");
+
+		cmd.add("-r");
+		cmd.add("1/" + durationPerSlide);
+
+		cmd.add("-i");
+		cmd.add(imageBaseVariablePath);
+
+		cmd.add("-strict");
+		cmd.add("-2");//experimental
+
+		String fileTempMpg = new File(mFileTemp,"tmp.mpg").getCanonicalPath();
+
+		cmd.add(fileTempMpg);
+
+		execFFMPEG(cmd, sc);
+
+		//now combine and encode
+		cmd = new ArrayList<String>();
+
+		cmd.add(mFfmpegBin);
+		cmd.add("-y");
+
+		cmd.add("-i");
+		cmd.add(fileTempMpg);
+
+		if (audio != null && audio.path != null)
+		{
+			cmd.add("-i");
+			cmd.add(new File(audio.path).getCanonicalPath());
+
+			cmd.add("-map");
+			cmd.add("0:0");
+
+			cmd.add("-map");
+			cmd.add("1:0");
+
+			cmd.add(Argument.AUDIOCODEC);
+			cmd.add("aac");
+
+			cmd.add(Argument.BITRATE_AUDIO);
+			cmd.add("128k");
+
+		}
+
+		cmd.add("-strict");
+		cmd.add("-2");//experimental
+
+		cmd.add(Argument.VIDEOCODEC);
+
+
+		if (out.videoCodec != null)
+			cmd.add(out.videoCodec);
+		else
+			cmd.add("mpeg4");
+
+		if (out.videoBitrate != -1)
+		{
+			cmd.add(Argument.BITRATE_VIDEO);
+			cmd.add(out.videoBitrate + "k");
+		}
+
+		cmd.add(new File(out.path).getCanonicalPath());
+
+
+		execFFMPEG(cmd, sc);
+
+		return out;
+	}
+
+	/*
+	 * ffmpeg -y -loop 0 -f image2 -r 0.5 -i image-%03d.jpg -s:v 1280x720 -b:v 1M \
+   -i soundtrack.mp3 -t 01:05:00 -map 0:0 -map 1:0 out.avi
+
+   -loop_input – loops the images. Disable this if you want to stop the encoding when all images are used or the soundtrack is finished.
+
+-r 0.5 – sets the framerate to 0.5, which means that each image will be shown for 2 seconds. Just take the inverse, for example if you want each image to last for 3 seconds, set it to 0.33.
+
+-i image-%03d.jpg – use these input files. %03d means that there will be three digit numbers for the images.
+
+-s 1280x720 – sets the output frame size.
+
+-b 1M – sets the bitrate. You want 500MB for one hour, which equals to 4000MBit in 3600 seconds, thus a bitrate of approximately 1MBit/s should be sufficient.
+
+-i soundtrack.mp3 – use this soundtrack file. Can be any format.
+
+-t 01:05:00 – set the output length in hh:mm:ss format.
+
+out.avi – create this output file. Change it as you like, for example using another container like MP4.
+	 */
+	public Clip combineAudioAndVideo (Clip videoIn, Clip audioIn, Clip out, ShellCallback sc) throws Exception
+	{
+		ArrayList<String> cmd = new ArrayList<String>();
+
+		cmd.add(mFfmpegBin);
+		cmd.add("-y");
+
+		cmd.add("-i");
+		cmd.add(new File(videoIn.path).getCanonicalPath());
+
+		cmd.add("-i");
+		cmd.add(new File(audioIn.path).getCanonicalPath());
+
+
+		cmd.add("-strict");
+		cmd.add("-2");//experimental
+
+		cmd.add(Argument.AUDIOCODEC);
+		if (out.audioCodec != null)
+			cmd.add(out.audioCodec);
+		else
+		{
+			cmd.add("copy");
+
+		}
+
+		cmd.add(Argument.VIDEOCODEC);
+		if (out.videoCodec != null)
+			cmd.add(out.videoCodec);
+		else
+		{
+			cmd.add("copy");
+		}
+
+		if (out.videoBitrate != -1)
+		{
+			cmd.add(Argument.BITRATE_VIDEO);
+			cmd.add(out.videoBitrate + "k");
+		}
+
+		if (out.videoFps != null)
+		{
+			cmd.add(Argument.FRAMERATE);
+			cmd.add(out.videoFps);
+		}
+
+		if (out.audioBitrate != -1)
+		{
+			cmd.add(Argument.BITRATE_AUDIO);
+			cmd.add(out.audioBitrate + "k");
+		}
+		cmd.add("-y");
+
+		cmd.add("-cutoff");
+		cmd.add("15000");
+
+// TODO - implement ability to specify originl width and height
+		// if (out.width > 0)
+		// {
+		// 	cmd.add(Argument.SIZE);
+		// 	cmd.add(out.width + "x" + out.height);
+		//
+		// }
+
+		if (out.format != null)
+		{
+			cmd.add("-f");
+			cmd.add(out.format);
+		}
+
+		addLayout(cmd, out);
+
+		File fileOut = new File(out.path);
+		cmd.add(fileOut.getCanonicalPath());
+
+		execFFMPEG(cmd, sc);
+
+
+		return out;
+
+	}
+
+	public Clip convertImageToMP4 (Clip mediaIn, int duration, String outPath, ShellCallback sc) throws Exception
+	{
+		Clip result = new Clip ();
+		ArrayList<String> cmd = new ArrayList<String>();
+
+		// ffmpeg -loop 1 -i IMG_1338.jpg -t 10 -r 29.97 -s 640x480 -qscale 5 test.mp4
+
+		cmd = new ArrayList<String>();
+
+		//convert images to MP4
+		cmd.add(mFfmpegBin);
+		cmd.add("-y");
+
+		cmd.add("-loop");
+		cmd.add("1");
+
+		cmd.add("-i");
+		cmd.add(new File(mediaIn.path).getCanonicalPath());
+
+		cmd.add(Argument.FRAMERATE);
+		cmd.add(mediaIn.videoFps);
+
+		cmd.add("-t");
+		cmd.add(duration + "");
+
+		cmd.add("-qscale");
+		cmd.add("5"); //a good value 1 is best 30 is worst
+
+		if (mediaIn.width != -1)
+		{
+			cmd.add(Argument.SIZE);
+			cmd.add(mediaIn.width + "x" + mediaIn.height);
+		//	cmd.add("-vf");
+		//	cmd.add("\"scale=-1:" + mediaIn.width + "\"");
+		}
+
+		if (mediaIn.videoBitrate != -1)
+		{
+			cmd.add(Argument.BITRATE_VIDEO);
+			cmd.add(mediaIn.videoBitrate + "");
+		}
+
+
+	//	-ar 44100 -acodec pcm_s16le -f s16le -ac 2 -i /dev/zero -acodec aac -ab 128k \
+	//	-map 0:0 -map 1:0
+
+		result.path = outPath;
+		result.videoBitrate = mediaIn.videoBitrate;
+		result.videoFps = mediaIn.videoFps;
+		result.mimeType = "video/mp4";
+
+		cmd.add(new File(result.path).getCanonicalPath());
+
+		execFFMPEG(cmd, sc);
+
+		return result;
+	}
+
+	//based on this gist: https://gist.github.com/3757344
+	//ffmpeg -i input1.mp4 -vcodec copy -vbsf h264_mp4toannexb -acodec copy part1.ts
+	//ffmpeg -i input2.mp4 -c copy -bsf:v h264_mp4toannexb -f mpegts intermediate2.ts
+
+	public Clip convertToMP4Stream (Clip mediaIn, String startTime, double duration, String outPath, ShellCallback sc) throws Exception
+	{
+		ArrayList<String> cmd = new ArrayList<String>();
+
+		Clip mediaOut = new Clip();
+		mediaOut.path = outPath;
+
+		String mediaPath = new File(mediaIn.path).getCanonicalPath();
+
+		cmd = new ArrayList<String>();
+
+		cmd.add(mFfmpegBin);
+		cmd.add("-y");
+
+		if (startTime != null)
+		{
+			cmd.add(Argument.STARTTIME);
+			cmd.add(startTime);
+		}
+
+		if (duration != -1)
+		{
+			cmd.add(Argument.DURATION);
+
+			double dValue = mediaIn.duration;
+			int hours = (int)(dValue/3600f);
+			dValue -= (hours*3600);
+
+			cmd.add("0");
+			cmd.add(String.format(Locale.US,"%s",hours));
+			cmd.add(":");
+
+			int min = (int)(dValue/60f);
+			dValue -= (min*60);
+
+			cmd.add("0");
+			cmd.add(String.format(Locale.US,"%s",min));
+			cmd.add(":");
+
+			cmd.add(String.format(Locale.US,"%f",dValue));
+
+			//cmd.add("00:00:" + String.format(Locale.US,"%f",mediaIn.duration));
+
+
+		}
+
+		cmd.add("-i");
+		cmd.add(mediaPath);
+
+		cmd.add("-f");
+		cmd.add("mpegts");
+
+		cmd.add("-c");
+		cmd.add("copy");
+
+		cmd.add("-an");
+
+		//cmd.add(Argument.VIDEOBITSTREAMFILTER);
+		cmd.add("-bsf:v");
+		cmd.add("h264_mp4toannexb");
+
+		File fileOut = new File(mediaOut.path);
+		mediaOut.path = fileOut.getCanonicalPath();
+
+		cmd.add(mediaOut.path);
+
+		execFFMPEG(cmd, sc);
+
+		return mediaOut;
+	}
+
+
+	public Clip convertToWaveAudio (Clip mediaIn, String outPath, int sampleRate, int channels, ShellCallback sc) throws Exception
+	{
+		ArrayList<String> cmd = new ArrayList<String>();
+
+		cmd.add(mFfmpegBin);
+		cmd.add("-y");
+
+		if (mediaIn.startTime != null)
+		{
+			cmd.add("-ss");
+			cmd.add(mediaIn.startTime);
+		}
+
+		if (mediaIn.duration != -1)
+		{
+			cmd.add("-t");
+			cmd.add(String.format(Locale.US,"%f",mediaIn.duration));
+		}
+
+		cmd.add("-i");
+		cmd.add(new File(mediaIn.path).getCanonicalPath());
+
+
+		cmd.add("-ar");
+		cmd.add(sampleRate + "");
+
+		cmd.add("-ac");
+		cmd.add(channels + "");
+
+		cmd.add("-vn");
+
+		Clip mediaOut = new Clip();
+
+		File fileOut = new File(outPath);
+		mediaOut.path = fileOut.getCanonicalPath();
+
+		cmd.add(mediaOut.path);
+
+		execFFMPEG(cmd, sc);
+
+		return mediaOut;
+	}
+
+	public Clip convertTo3GPAudio (Clip mediaIn, Clip mediaOut, ShellCallback sc) throws Exception
+	{
+		ArrayList<String> cmd = new ArrayList<String>();
+
+		cmd.add(mFfmpegBin);
+		cmd.add("-y");
+		cmd.add("-i");
+		cmd.add(new File(mediaIn.path).getCanonicalPath());
+
+		if (mediaIn.startTime != null)
+		{
+			cmd.add("-ss");
+			cmd.add(mediaIn.startTime);
+		}
+
+		if (mediaIn.duration != -1)
+		{
+			cmd.add("-t");
+			cmd.add(String.format(Locale.US,"%f",mediaIn.duration));
+
+		}
+
+		cmd.add("-vn");
+
+		if (mediaOut.audioCodec != null)
+		{
+			cmd.add("-acodec");
+			cmd.add(mediaOut.audioCodec);
+		}
+
+		if (mediaOut.audioBitrate != -1)
+		{
+			cmd.add("-ab");
+			cmd.add(mediaOut.audioBitrate + "k");
+		}
+
+		cmd.add("-strict");
+		cmd.add("-2");
+
+		File fileOut = new File(mediaOut.path);
+
+		cmd.add(fileOut.getCanonicalPath());
+
+		execFFMPEG(cmd, sc);
+
+		return mediaOut;
+	}
+
+	public Clip convert (Clip mediaIn, String outPath, ShellCallback sc) throws Exception
+	{
+		ArrayList<String> cmd = new ArrayList<String>();
+
+		cmd.add(mFfmpegBin);
+		cmd.add("-y");
+		cmd.add("-i");
+		cmd.add(new File(mediaIn.path).getCanonicalPath());
+
+		if (mediaIn.startTime != null)
+		{
+			cmd.add("-ss");
+			cmd.add(mediaIn.startTime);
+		}
+
+		if (mediaIn.duration != -1)
+		{
+			cmd.add("-t");
+			cmd.add(String.format(Locale.US,"%f",mediaIn.duration));
+
+		}
+
+
+		Clip mediaOut = new Clip();
+
+
+		File fileOut = new File(outPath);
+
+		mediaOut.path = fileOut.getCanonicalPath();
+
+		cmd.add(mediaOut.path);
+
+		execFFMPEG(cmd, sc);
+
+		return mediaOut;
+	}
+
+	public Clip convertToMPEG (Clip mediaIn, String outPath, ShellCallback sc) throws Exception
+	{
+		ArrayList<String> cmd = new ArrayList<String>();
+
+		cmd.add(mFfmpegBin);
+		cmd.add("-y");
+		cmd.add("-i");
+		cmd.add(new File(mediaIn.path).getCanonicalPath());
+
+		if (mediaIn.startTime != null)
+		{
+			cmd.add("-ss");
+			cmd.add(mediaIn.startTime);
+		}
+
+		if (mediaIn.duration != -1)
+		{
+			cmd.add("-t");
+			cmd.add(String.format(Locale.US,"%f",mediaIn.duration));
+
+		}
+
+
+		//cmd.add("-strict");
+		//cmd.add("experimental");
+
+		//everything to mpeg
+		cmd.add("-f");
+		cmd.add("mpeg");
+
+		Clip mediaOut = mediaIn.clone();
+
+		File fileOut = new File(outPath);
+
+		mediaOut.path = fileOut.getCanonicalPath();
+
+		cmd.add(mediaOut.path);
+
+		execFFMPEG(cmd, sc);
+
+		return mediaOut;
+	}
+
+	public void concatAndTrimFilesMPEG (ArrayList<Clip> videos,Clip out, boolean preConvert, ShellCallback sc) throws Exception
+	{
+
+		int idx = 0;
+
+		if (preConvert)
+		{
+			for (Clip mdesc : videos)
+			{
+				if (mdesc.path == null)
+					continue;
+
+				//extract MPG video
+				ArrayList<String> cmd = new ArrayList<String>();
+
+				cmd.add(mFfmpegBin);
+				cmd.add("-y");
+				cmd.add("-i");
+				cmd.add(mdesc.path);
+
+				if (mdesc.startTime != null)
+				{
+					cmd.add("-ss");
+					cmd.add(mdesc.startTime);
+				}
+
+				if (mdesc.duration != -1)
+				{
+					cmd.add("-t");
+					cmd.add(String.format(Locale.US,"%f",mdesc.duration));
+
+				}
+
+				/*
+				cmd.add ("-acodec");
+				cmd.add("pcm_s16le");
+
+				cmd.add ("-vcodec");
+				cmd.add("mpeg2video");
+				*/
+
+				if (out.audioCodec == null)
+					cmd.add("-an"); //no audio
+
+				//cmd.add("-strict");
+				//cmd.add("experimental");
+
+				//everything to mpeg
+				cmd.add("-f");
+				cmd.add("mpeg");
+				cmd.add(out.path + '.' + idx + ".mpg");
+
+				execFFMPEG(cmd, sc);
+
+				idx++;
+			}
+		}
+
+		StringBuffer cmdRun = new StringBuffer();
+
+		cmdRun.append(mCmdCat);
+
+		idx = 0;
+
+		for (Clip vdesc : videos)
+		{
+			if (vdesc.path == null)
+				continue;
+
+			if (preConvert)
+				cmdRun.append(out.path).append('.').append(idx++).append(".mpg").append(' '); //leave a space at the end!
+			else
+				cmdRun.append(vdesc.path).append(' ');
+		}
+
+		String mCatPath = out.path + ".full.mpg";
+
+		cmdRun.append("> ");
+		cmdRun.append(mCatPath);
+
+		String[] cmds = {"sh","-c",cmdRun.toString()};
+		Runtime.getRuntime().exec(cmds).waitFor();
+
+
+		Clip mInCat = new Clip();
+		mInCat.path = mCatPath;
+
+		processVideo(mInCat, out, false, sc);
+
+		out.path = mCatPath;
+	}
+
+	public void extractAudio (Clip mdesc, String audioFormat, File audioOutPath, ShellCallback sc) throws IOException, InterruptedException
+	{
+
+		//no just extract the audio
+		ArrayList<String> cmd = new ArrayList<String>();
+
+		cmd.add(mFfmpegBin);
+		cmd.add("-y");
+		cmd.add("-i");
+		cmd.add(new File(mdesc.path).getCanonicalPath());
+
+		cmd.add("-vn");
+
+		if (mdesc.startTime != null)
+		{
+			cmd.add("-ss");
+			cmd.add(mdesc.startTime);
+		}
+
+		if (mdesc.duration != -1)
+		{
+			cmd.add("-t");
+			cmd.add(String.format(Locale.US,"%f",mdesc.duration));
+
+		}
+
+		cmd.add("-f");
+		cmd.add(audioFormat); //wav
+
+		//everything to WAV!
+		cmd.add(audioOutPath.getCanonicalPath());
+
+		execFFMPEG(cmd, sc);
 
-		//convert images to MP4
-		cmd.add(mFfmpegBin);
-		cmd.add("-y");
+	}
 
-		cmd.add("-loop");
-		cmd.add("1");
+	private class FileMover {
 
-		cmd.add("-i");
-		cmd.add(new File(mediaIn.path).getCanonicalPath());
+		InputStream inputStream;
+		File destination;
 
-		cmd.add(Argument.FRAMERATE);
-		cmd.add(mediaIn.videoFps);
+		public FileMover(InputStream _inputStream, File _destination) {
+			inputStream = _inputStream;
+			destination = _destination;
+		}
 
-		cmd.add("-t");
-		cmd.add(duration + "");
+		public void moveIt() throws IOException {
 
-		cmd.add("-qscale");
-		cmd.add("5"); //a good value 1 is best 30 is worst
+			OutputStream destinationOut = new BufferedOutputStream(new FileOutputStream(destination));
 
-		if (mediaIn.width != -1)
-		{
-			cmd.add(Argument.SIZE);
-			cmd.add(mediaIn.width + "x" + mediaIn.height);
-		//	cmd.add("-vf");
-		//	cmd.add("\"scale=-1:" + mediaIn.width + "\"");
-		}
+			int numRead;
+			byte[] buf = new byte[1024];
+			while ((numRead = inputStream.read(buf) ) >= 0) {
+				destinationOut.write(buf, 0, numRead);
+			}
 
-		if (mediaIn.videoBitrate != -1)
-		{
-			cmd.add(Argument.BITRATE_VIDEO);
-			cmd.add(mediaIn.videoBitrate + "");
+			destinationOut.flush();
+			destinationOut.close();
 		}
+	}
 
+	/**
+	 * Kills the ffmpeg processes started by this app, found through the
+	 * process runner rather than by scanning ps output.
+	 * @param asRoot unused, the processes are always our own
+	 * @return 0 if anything was killed, -1 otherwise
+	 */
+	public int killVideoProcessor (boolean asRoot, boolean waitFor) throws IOException
+	{
+		int result = -1;
 
-	//	-ar 44100 -acodec pcm_s16le -f s16le -ac 2 -i /dev/zero -acodec aac -ab 128k \
-	//	-map 0:0 -map 1:0
+		for (ProcessRunner.Handle handle : ProcessRunner.getInstance().getLiveHandles())
+		{
+			List<String> cmd = handle.getCommand();
 
-		result.path = outPath;
-		result.videoBitrate = mediaIn.videoBitrate;
-		result.videoFps = mediaIn.videoFps;
-		result.mimeType = "video/mp4";
+			if (cmd.isEmpty() || !cmd.get(0).equals(mFfmpegBin))
+				continue;
 
-		cmd.add(new File(result.path).getCanonicalPath());
+			handle.kill();
+			result = 0;
 
-		execFFMPEG(cmd, sc);
+			if (waitFor)
+			{
+				try {
+					handle.getProcess().waitFor();
+				} catch (InterruptedException e) {}
+			}
+		}
 
 		return result;
 	}
 
-	//based on this gist: https://gist.github.com/3757344
-	//ffmpeg -i input1.mp4 -vcodec copy -vbsf h264_mp4toannexb -acodec copy part1.ts
-	//ffmpeg -i input2.mp4 -c copy -bsf:v h264_mp4toannexb -f mpegts intermediate2.ts
 
-	public Clip convertToMP4Stream (Clip mediaIn, String startTime, double duration, String outPath, ShellCallback sc) throws Exception
+	public Clip trim (Clip mediaIn, boolean withSound, String outPath, ShellCallback sc) throws Exception
 	{
 		ArrayList<String> cmd = new ArrayList<String>();
 
 		Clip mediaOut = new Clip();
-		mediaOut.path = outPath;
 
-		String mediaPath = new File(mediaIn.path).getCanonicalPath();
+		String mediaPath = mediaIn.path;
 
 		cmd = new ArrayList<String>();
 
 		cmd.add(mFfmpegBin);
 		cmd.add("-y");
 
-		if (startTime != null)
+		if (mediaIn.startTime != null)
 		{
 			cmd.add(Argument.STARTTIME);
-			cmd.add(startTime);
+			cmd.add(mediaIn.startTime);
 		}
 
-		if (duration != -1)
+		if (mediaIn.duration != -1)
 		{
-			cmd.add(Argument.DURATION);
-
-			double dValue = mediaIn.duration;
-			int hours = (int)(dValue/3600f);
-			dValue -= (hours*3600);
-
-			cmd.add("0");
-			cmd.add(String.format(Locale.US,"%s",hours));
-			cmd.add(":");
-
-			int min = (int)(dValue/60f);
-			dValue -= (min*60);
-
-			cmd.add("0");
-			cmd.add(String.format(Locale.US,"%s",min));
-			cmd.add(":");
-
-			cmd.add(String.format(Locale.US,"%f",dValue));
-
-			//cmd.add("00:00:" + String.format(Locale.US,"%f",mediaIn.duration));
-
+			cmd.add("-t");
+			cmd.add(String.format(Locale.US,"%f",mediaIn.duration));
 
 		}
 
 		cmd.add("-i");
 		cmd.add(mediaPath);
 
-		cmd.add("-f");
-		cmd.add("mpegts");
-
-		cmd.add("-c");
-		cmd.add("copy");
-
-		cmd.add("-an");
+		if (!withSound)
+			cmd.add("-an");
 
-		//cmd.add(Argument.VIDEOBITSTREAMFILTER);
-		cmd.add("-bsf:v");
-		cmd.add("h264_mp4toannexb");
+		cmd.add("-strict");
+		cmd.add("-2");//experimental
 
-		File fileOut = new File(mediaOut.path);
-		mediaOut.path = fileOut.getCanonicalPath();
+		mediaOut.path = outPath;
 
 		cmd.add(mediaOut.path);
 
@@ -716,412 +1956,939 @@ out.avi – create this output file. Change it as you like, for example using an
 		return mediaOut;
 	}
 
+	//a keyframe this close to the cut point counts as being on it
+	private final static double KEYFRAME_TOLERANCE = 0.002;
 
-	public Clip convertToWaveAudio (Clip mediaIn, String outPath, int sampleRate, int channels, ShellCallback sc) throws Exception
+	/**
+	 * Cuts [start, start + duration) out of the clip frame accurately, but
+	 * re-encodes as little as possible.
+	 *
+	 * For H.264 video only the frames from the cut to the next keyframe are
+	 * encoded; from that keyframe on the video is stream copied. Both parts
+	 * are written as MPEG-TS so each carries its own parameter sets in band,
+	 * then joined with the concat demuxer and muxed with the audio, which is
+	 * stream copied with output side seeking so it starts exactly at the cut.
+	 * The encoded part keeps the source's profile, level and pixel format, so
+	 * decoders that configure themselves from the first parameter sets can
+	 * play across the join.
+	 *
+	 * A cut that already starts on a keyframe is a plain stream copy. A range
+	 * without a keyframe in it, video in another codec, or a source whose
+	 * profile, level or pixel format is unknown or beyond libx264 is encoded
+	 * in full.
+	 */
+	public Clip trimPrecise (Clip mediaIn, double start, double duration, String outPath, ShellCallback sc) throws Exception
 	{
-		ArrayList<String> cmd = new ArrayList<String>();
+		getInfo(mediaIn);
 
-		cmd.add(mFfmpegBin);
-		cmd.add("-y");
+		double end = start + duration;
+		if (mediaIn.duration > 0)
+			end = Math.min(end, mediaIn.duration);
 
-		if (mediaIn.startTime != null)
+		if (end <= start)
+			throw new Exception("trim range is empty");
+
+		Clip mediaOut = new Clip(outPath);
+
+		double keyframe = -1;
+		if (mediaIn.videoCodec != null)
+			keyframe = getKeyframes(mediaIn).ceiling(start);
+
+		if (mediaIn.videoCodec == null || (keyframe >= 0 && keyframe - start < KEYFRAME_TOLERANCE))
 		{
-			cmd.add("-ss");
-			cmd.add(mediaIn.startTime);
+			//audio only, or the cut is on a keyframe: a stream copy is already exact
+			ArrayList<String> cmd = new ArrayList<String>();
+			cmd.add(mFfmpegBin);
+			cmd.add("-y");
+			cmd.add(Argument.STARTTIME);
+			cmd.add(ProgressParser.formatTime(start));
+			cmd.add("-i");
+			cmd.add(mediaIn.path);
+			cmd.add(Argument.DURATION);
+			cmd.add(ProgressParser.formatTime(end - start));
+			cmd.add("-c");
+			cmd.add("copy");
+			cmd.add(outPath);
+
+			execFFMPEG(cmd, sc);
+			checkOutput(outPath);
+			return mediaOut;
 		}
 
-		if (mediaIn.duration != -1)
+		//the head has to be encoded as the source was, or the joined stream
+		//switches parameter sets where the copy starts
+		boolean matchable = x264Profile(mediaIn.videoProfile) != null && mediaIn.videoLevel > 0
+				&& mediaIn.pixelFormat != null && X264_PIXEL_FORMATS.contains(mediaIn.pixelFormat);
+
+		if (!"h264".equals(mediaIn.videoCodec) || !matchable || keyframe < 0 || keyframe >= end - KEYFRAME_TOLERANCE)
 		{
-			cmd.add("-t");
-			cmd.add(String.format(Locale.US,"%f",mediaIn.duration));
+			ArrayList<String> cmd = new ArrayList<String>();
+			cmd.add(mFfmpegBin);
+			cmd.add("-y");
+			cmd.add(Argument.STARTTIME);
+			cmd.add(ProgressParser.formatTime(start));
+			cmd.add("-i");
+			cmd.add(mediaIn.path);
+			cmd.add(Argument.DURATION);
+			cmd.add(ProgressParser.formatTime(end - start));
+			addSegmentEncoder(cmd, null);
+			cmd.add("-c:a");
+			cmd.add("copy");
+			cmd.add(outPath);
+
+			execFFMPEG(cmd, sc);
+			checkOutput(outPath);
+			return mediaOut;
 		}
 
-		cmd.add("-i");
-		cmd.add(new File(mediaIn.path).getCanonicalPath());
+		File dirWork = new File(outPath).getParentFile();
+		String prefix = "trim" + System.nanoTime();
 
+		File fileHead = new File(dirWork, prefix + "-head.ts");
+		File fileTail = new File(dirWork, prefix + "-tail.ts");
+		File fileAudio = new File(dirWork, prefix + "-audio.mka");
+		File fileList = new File(dirWork, prefix + "-list.txt");
 
-		cmd.add("-ar");
-		cmd.add(sampleRate + "");
+		try
+		{
+			//the partial GOP from the cut to the next keyframe; -noautorotate keeps
+			//the pixels in the same orientation as the copied part
+			ArrayList<String> cmd = new ArrayList<String>();
+			cmd.add(mFfmpegBin);
+			cmd.add("-y");
+			cmd.add("-noautorotate");
+			cmd.add(Argument.STARTTIME);
+			cmd.add(ProgressParser.formatTime(start));
+			cmd.add("-i");
+			cmd.add(mediaIn.path);
+			cmd.add(Argument.DURATION);
+			cmd.add(ProgressParser.formatTime(keyframe - start));
+			cmd.add("-map");
+			cmd.add("0:v:0");
+			addSegmentEncoder(cmd, mediaIn);
+			cmd.add("-f");
+			cmd.add("mpegts");
+			cmd.add(fileHead.getCanonicalPath());
 
-		cmd.add("-ac");
-		cmd.add(channels + "");
+			execFFMPEG(cmd, StepProgress.wrap(sc, 0, 60, false));
+			checkOutput(fileHead.getPath());
 
-		cmd.add("-vn");
+			//everything from the keyframe on, copied; seeking just past the keyframe
+			//lands on it even if the index rounded its time down
+			cmd = new ArrayList<String>();
+			cmd.add(mFfmpegBin);
+			cmd.add("-y");
+			cmd.add(Argument.STARTTIME);
+			cmd.add(ProgressParser.formatTime(keyframe + KEYFRAME_TOLERANCE / 2));
+			cmd.add("-i");
+			cmd.add(mediaIn.path);
+			cmd.add(Argument.DURATION);
+			cmd.add(ProgressParser.formatTime(end - keyframe));
+			cmd.add("-map");
+			cmd.add("0:v:0");
+			cmd.add("-c");
+			cmd.add("copy");
+			cmd.add(Argument.VIDEOBITSTREAMFILTER);
+			cmd.add("h264_mp4toannexb");
+			cmd.add("-f");
+			cmd.add("mpegts");
+			cmd.add(fileTail.getCanonicalPath());
 
-		Clip mediaOut = new Clip();
+			execFFMPEG(cmd, StepProgress.wrap(sc, 60, 80, false));
+			checkOutput(fileTail.getPath());
 
-		File fileOut = new File(outPath);
-		mediaOut.path = fileOut.getCanonicalPath();
+			boolean hasAudio = mediaIn.audioCodec != null;
 
-		cmd.add(mediaOut.path);
+			if (hasAudio)
+			{
+				cmd = new ArrayList<String>();
+				cmd.add(mFfmpegBin);
+				cmd.add("-y");
+				cmd.add("-i");
+				cmd.add(mediaIn.path);
+				cmd.add(Argument.STARTTIME);
+				cmd.add(ProgressParser.formatTime(start));
+				cmd.add(Argument.DURATION);
+				cmd.add(ProgressParser.formatTime(end - start));
+				cmd.add("-map");
+				cmd.add("0:a:0");
+				cmd.add("-c");
+				cmd.add("copy");
+				cmd.add(fileAudio.getCanonicalPath());
+
+				execFFMPEG(cmd, StepProgress.wrap(sc, 80, 90, false));
+				checkOutput(fileAudio.getPath());
+			}
 
-		execFFMPEG(cmd, sc);
+			writeConcatList(fileList, fileHead, fileTail);
 
-		return mediaOut;
-	}
+			cmd = new ArrayList<String>();
+			cmd.add(mFfmpegBin);
+			cmd.add("-y");
+			cmd.add("-f");
+			cmd.add("concat");
+			cmd.add("-safe");
+			cmd.add("0");
+			cmd.add("-i");
+			cmd.add(fileList.getCanonicalPath());
 
-	public Clip convertTo3GPAudio (Clip mediaIn, Clip mediaOut, ShellCallback sc) throws Exception
-	{
-		ArrayList<String> cmd = new ArrayList<String>();
+			if (hasAudio)
+			{
+				cmd.add("-i");
+				cmd.add(fileAudio.getCanonicalPath());
+			}
 
-		cmd.add(mFfmpegBin);
-		cmd.add("-y");
-		cmd.add("-i");
-		cmd.add(new File(mediaIn.path).getCanonicalPath());
+			cmd.add("-map");
+			cmd.add("0:v:0");
 
-		if (mediaIn.startTime != null)
-		{
-			cmd.add("-ss");
-			cmd.add(mediaIn.startTime);
-		}
+			if (hasAudio)
+			{
+				cmd.add("-map");
+				cmd.add("1:a:0");
+			}
 
-		if (mediaIn.duration != -1)
-		{
-			cmd.add("-t");
-			cmd.add(String.format(Locale.US,"%f",mediaIn.duration));
+			cmd.add("-c");
+			cmd.add("copy");
 
-		}
+			if (mediaIn.rotation != 0)
+			{
+				cmd.add("-metadata:s:v:0");
+				cmd.add("rotate=" + mediaIn.rotation);
+			}
 
-		cmd.add("-vn");
+			cmd.add(outPath);
 
-		if (mediaOut.audioCodec != null)
+			execFFMPEG(cmd, StepProgress.wrap(sc, 90, 100, true));
+			checkOutput(outPath);
+		}
+		finally
 		{
-			cmd.add("-acodec");
-			cmd.add(mediaOut.audioCodec);
+			fileHead.delete();
+			fileTail.delete();
+			fileAudio.delete();
+			fileList.delete();
 		}
 
-		if (mediaOut.audioBitrate != -1)
+		return mediaOut;
+	}
+
+	/**
+	 * Writes several ranges of one input to separate files in a single
+	 * ffmpeg run. The input is read once, starting at the keyframe before the
+	 * earliest range, and every output takes its range with output side
+	 * seeking, stream copied. Range starts are moved back to the keyframe
+	 * before them so each output starts with a decodable frame.
+	 * @param ranges one clip per output, with path, startTime and duration set
+	 */
+	public ArrayList<Clip> splitRanges (Clip mediaIn, ArrayList<Clip> ranges, ShellCallback sc) throws Exception
+	{
+		double[] starts = new double[ranges.size()];
+		double readFrom = Double.MAX_VALUE;
+
+		for (int i = 0; i < ranges.size(); i++)
 		{
-			cmd.add("-ab");
-			cmd.add(mediaOut.audioBitrate + "k");
+			Clip range = ranges.get(i);
+			starts[i] = keyframeBefore(mediaIn.path, ProgressParser.parseTime(range.startTime));
+			readFrom = Math.min(readFrom, starts[i]);
 		}
 
-		cmd.add("-strict");
-		cmd.add("-2");
+		ArrayList<String> cmd = new ArrayList<String>();
+		cmd.add(mFfmpegBin);
+		cmd.add("-y");
+		//keyframe times are never rounded to the millisecond: one rounded up
+		//would drop its keyframe and start the chunk a GOP late
+		cmd.add(Argument.STARTTIME);
+		cmd.add(seekTime(readFrom));
+		cmd.add("-i");
+		cmd.add(mediaIn.path);
 
-		File fileOut = new File(mediaOut.path);
+		ArrayList<Clip> result = new ArrayList<Clip>();
+
+		for (int i = 0; i < ranges.size(); i++)
+		{
+			Clip range = ranges.get(i);
+			double end = ProgressParser.parseTime(range.startTime) + range.duration;
+
+			//timestamps start at zero at readFrom
+			cmd.add(Argument.STARTTIME);
+			cmd.add(seekTime(starts[i] - readFrom));
+			cmd.add(Argument.DURATION);
+			cmd.add(String.format(Locale.US, "%.6f", end - starts[i] + KEYFRAME_TOLERANCE / 2));
+			cmd.add("-map");
+			cmd.add("0:v:0?");
+			cmd.add("-map");
+			cmd.add("0:a:0?");
+			cmd.add("-c");
+			cmd.add("copy");
+			cmd.add(range.path);
 
-		cmd.add(fileOut.getCanonicalPath());
+			Clip mediaOut = new Clip(range.path);
+			mediaOut.startTime = ProgressParser.formatTime(starts[i]);
+			mediaOut.duration = end - starts[i];
+			result.add(mediaOut);
+		}
 
 		execFFMPEG(cmd, sc);
 
-		return mediaOut;
+		for (Clip mediaOut : result)
+			checkOutput(mediaOut.path);
+
+		return result;
 	}
 
-	public Clip convert (Clip mediaIn, String outPath, ShellCallback sc) throws Exception
+	/**
+	 * @return a -ss value just before the keyframe at time
+	 */
+	private static String seekTime (double time)
 	{
-		ArrayList<String> cmd = new ArrayList<String>();
+		return String.format(Locale.US, "%.6f", Math.max(0, time - KEYFRAME_TOLERANCE / 2));
+	}
 
-		cmd.add(mFfmpegBin);
-		cmd.add("-y");
-		cmd.add("-i");
-		cmd.add(new File(mediaIn.path).getCanonicalPath());
+	/**
+	 * Joins ranges of one or more inputs into a single file in one ffmpeg
+	 * run, using the concat demuxer's inpoint/outpoint directives so only the
+	 * ranges are read, stream copied. Range starts are moved back to the
+	 * keyframe before them. The inputs must share codecs and parameters.
+	 * @param ranges one clip per range, with path, startTime and duration set
+	 */
+	public Clip joinRanges (ArrayList<Clip> ranges, Clip out, ShellCallback sc) throws Exception
+	{
+		File fileList = new File(new File(out.path).getParentFile(), "join" + System.nanoTime() + "-list.txt");
 
-		if (mediaIn.startTime != null)
+		StringBuilder list = new StringBuilder();
+		for (Clip range : ranges)
 		{
-			cmd.add("-ss");
-			cmd.add(mediaIn.startTime);
+			double start = ProgressParser.parseTime(range.startTime);
+			double end = start + range.duration;
+
+			list.append("file '");
+			list.append(new File(range.path).getCanonicalPath().replace("'", "'\\''"));
+			list.append("'\n");
+			list.append("inpoint ");
+			list.append(String.format(Locale.US, "%.6f", keyframeBefore(range.path, start)));
+			list.append('\n');
+			list.append("outpoint ");
+			list.append(String.format(Locale.US, "%.6f", end));
+			list.append('\n');
 		}
 
-		if (mediaIn.duration != -1)
+		try
 		{
-			cmd.add("-t");
-			cmd.add(String.format(Locale.US,"%f",mediaIn.duration));
-
-		}
-
-
-		Clip mediaOut = new Clip();
-
-
-		File fileOut = new File(outPath);
-
-		mediaOut.path = fileOut.getCanonicalPath();
+			writeFile(fileList, list.toString());
 
-		cmd.add(mediaOut.path);
+			ArrayList<String> cmd = new ArrayList<String>();
+			cmd.add(mFfmpegBin);
+			cmd.add("-y");
+			cmd.add("-f");
+			cmd.add("concat");
+			cmd.add("-safe");
+			cmd.add("0");
+			cmd.add("-i");
+			cmd.add(fileList.getCanonicalPath());
+			cmd.add("-map");
+			cmd.add("0:v:0?");
+			cmd.add("-map");
+			cmd.add("0:a:0?");
+			cmd.add("-c");
+			cmd.add("copy");
+			cmd.add(out.path);
 
-		execFFMPEG(cmd, sc);
+			execFFMPEG(cmd, sc);
+			checkOutput(out.path);
+		}
+		finally
+		{
+			fileList.delete();
+		}
 
-		return mediaOut;
+		return out;
 	}
 
-	public Clip convertToMPEG (Clip mediaIn, String outPath, ShellCallback sc) throws Exception
+	/**
+	 * Splits a clip into consecutive chunks in a single stream copy run of
+	 * the segment muxer. Chunks start on keyframes. With only a duration,
+	 * ffmpeg cuts at the first keyframe after each interval; with a size,
+	 * the cut points are picked from the keyframe index and the average
+	 * bitrate, so chunks stay under the size unless the bitrate swings well
+	 * above average. When sc is a SegmentCallback it is told about each chunk
+	 * as soon as ffmpeg closes it.
+	 * @param segmentDuration seconds per chunk, 0 for no limit
+	 * @param segmentSize bytes per chunk, 0 for no limit
+	 * @param outPattern output path with a printf style index, e.g. out_%03d.mp4
+	 * @return the chunks, in order
+	 */
+	public ArrayList<Clip> split (Clip mediaIn, double segmentDuration, long segmentSize, String outPattern, ShellCallback sc) throws Exception
 	{
-		ArrayList<String> cmd = new ArrayList<String>();
+		if (segmentDuration <= 0 && segmentSize <= 0)
+			throw new IllegalArgumentException("split needs a chunk duration or size");
 
+		ArrayList<String> cmd = new ArrayList<String>();
 		cmd.add(mFfmpegBin);
 		cmd.add("-y");
 		cmd.add("-i");
-		cmd.add(new File(mediaIn.path).getCanonicalPath());
+		cmd.add(mediaIn.path);
+		cmd.add("-map");
+		cmd.add("0:v:0?");
+		cmd.add("-map");
+		cmd.add("0:a:0?");
+		cmd.add("-c");
+		cmd.add("copy");
+		cmd.add("-f");
+		cmd.add("segment");
 
-		if (mediaIn.startTime != null)
+		String times = segmentSize > 0 ? sizedSegmentTimes(mediaIn, segmentDuration, segmentSize) : null;
+		if (times == null)
 		{
-			cmd.add("-ss");
-			cmd.add(mediaIn.startTime);
+			cmd.add("-segment_time");
+			cmd.add(String.format(Locale.US, "%.3f", segmentDuration));
 		}
-
-		if (mediaIn.duration != -1)
+		else if (times.length() > 0)
 		{
-			cmd.add("-t");
-			cmd.add(String.format(Locale.US,"%f",mediaIn.duration));
-
+			cmd.add("-segment_times");
+			cmd.add(times);
+		}
+		else
+		{
+			//the whole input fits in one chunk
+			cmd.add("-segment_time");
+			cmd.add("1000000");
 		}
 
+		cmd.add("-reset_timestamps");
+		cmd.add("1");
 
-		//cmd.add("-strict");
-		//cmd.add("experimental");
+		//ffmpeg appends "name,start,end" as each chunk is closed; a file, not
+		//stdout, since -progress pipe:1 writes there too
+		File listFile = new File(new File(outPattern).getAbsoluteFile().getParentFile(), "split" + System.nanoTime() + "-list.csv");
+		cmd.add("-segment_list");
+		cmd.add(listFile.getCanonicalPath());
+		cmd.add("-segment_list_type");
+		cmd.add("csv");
+		cmd.add(outPattern);
+
+		SegmentListParser parser = new SegmentListParser(listFile, new File(outPattern), sc);
+		try
+		{
+			execFFMPEG(cmd, parser);
+			parser.poll();
+		}
+		finally
+		{
+			listFile.delete();
+		}
 
-		//everything to mpeg
-		cmd.add("-f");
-		cmd.add("mpeg");
+		if (parser.mSegments.isEmpty())
+			throw new Exception("There was a problem rendering the video: " + outPattern);
 
-		Clip mediaOut = mediaIn.clone();
+		for (Clip segment : parser.mSegments)
+			checkOutput(segment.path);
 
-		File fileOut = new File(outPath);
+		return parser.mSegments;
+	}
 
-		mediaOut.path = fileOut.getCanonicalPath();
+	//room for container overhead and bitrate swings when sizing chunks
+	private final static double SEGMENT_SIZE_HEADROOM = 0.9;
 
-		cmd.add(mediaOut.path);
+	/**
+	 * Picks cut points so each chunk stays under the size, and the duration
+	 * if there is one, at the average byte rate of the file.
+	 * @return comma separated times for -segment_times, empty for a single chunk
+	 */
+	private String sizedSegmentTimes (Clip mediaIn, double segmentDuration, long segmentSize) throws IOException, InterruptedException
+	{
+		Clip info = getInfo(new Clip(mediaIn.path));
+		long length = new File(mediaIn.path).length();
+		if (info.duration <= 0 || length <= 0)
+			throw new IOException("split: cannot size chunks of " + mediaIn.path);
 
-		execFFMPEG(cmd, sc);
+		double maxSeconds = segmentSize * SEGMENT_SIZE_HEADROOM / (length / info.duration);
+		if (segmentDuration > 0)
+			maxSeconds = Math.min(maxSeconds, segmentDuration);
 
-		return mediaOut;
-	}
+		StringBuilder times = new StringBuilder();
 
-	public void concatAndTrimFilesMPEG (ArrayList<Clip> videos,Clip out, boolean preConvert, ShellCallback sc) throws Exception
-	{
+		if (info.videoCodec == null)
+		{
+			//every audio packet can start a chunk
+			for (double time = maxSeconds; time < info.duration; time += maxSeconds)
+				appendTime(times, time);
+			return times.toString();
+		}
 
-		int idx = 0;
+		double[] keyframes = getKeyframes(info).getTimes();
+		double chunkStart = 0;
+		double last = 0;
 
-		if (preConvert)
+		for (int i = 0; i <= keyframes.length; i++)
 		{
-			for (Clip mdesc : videos)
-			{
-				if (mdesc.path == null)
-					continue;
+			double keyframe = i < keyframes.length ? keyframes[i] : info.duration;
+			if (keyframe <= chunkStart)
+				continue;
 
-				//extract MPG video
-				ArrayList<String> cmd = new ArrayList<String>();
+			//a chunk that would grow past the limit ends at the previous keyframe
+			if (keyframe - chunkStart > maxSeconds && last > chunkStart)
+			{
+				//just before the keyframe, so rounding cannot push the cut to the next one
+				appendTime(times, last - KEYFRAME_TOLERANCE / 2);
+				chunkStart = last;
+			}
+			last = keyframe;
+		}
 
-				cmd.add(mFfmpegBin);
-				cmd.add("-y");
-				cmd.add("-i");
-				cmd.add(mdesc.path);
+		return times.toString();
+	}
 
-				if (mdesc.startTime != null)
-				{
-					cmd.add("-ss");
-					cmd.add(mdesc.startTime);
-				}
+	private static void appendTime (StringBuilder times, double time)
+	{
+		if (times.length() > 0)
+			times.append(',');
+		times.append(String.format(Locale.US, "%.3f", time));
+	}
 
-				if (mdesc.duration != -1)
-				{
-					cmd.add("-t");
-					cmd.add(String.format(Locale.US,"%f",mdesc.duration));
+	/**
+	 * Follows the segment muxer's csv list while ffmpeg runs, reading what
+	 * was appended on each progress tick, and announces the chunks listed.
+	 */
+	private static class SegmentListParser implements ProgressCallback
+	{
+		private final File mList;
+		private final File mDir;
+		private final String mPrefix; //file name up to the index
+		private final ShellCallback mCallback;
+		private long mOffset = 0;
 
-				}
+		final ArrayList<Clip> mSegments = new ArrayList<Clip>();
 
-				/*
-				cmd.add ("-acodec");
-				cmd.add("pcm_s16le");
+		public SegmentListParser (File list, File outPattern, ShellCallback callback)
+		{
+			String name = outPattern.getName();
+			int idx = name.indexOf('%');
 
-				cmd.add ("-vcodec");
-				cmd.add("mpeg2video");
-				*/
+			mList = list;
+			mDir = outPattern.getParentFile();
+			mPrefix = idx == -1 ? name : name.substring(0, idx);
+			mCallback = callback;
+		}
 
-				if (out.audioCodec == null)
-					cmd.add("-an"); //no audio
+		@Override
+		public void shellOut (String line)
+		{
+			if (mCallback != null)
+				mCallback.shellOut(line);
+		}
 
-				//cmd.add("-strict");
-				//cmd.add("experimental");
+		@Override
+		public void progress (ProgressEvent event)
+		{
+			poll();
 
-				//everything to mpeg
-				cmd.add("-f");
-				cmd.add("mpeg");
-				cmd.add(out.path + '.' + idx + ".mpg");
+			if (mCallback instanceof ProgressCallback)
+				((ProgressCallback) mCallback).progress(event);
+		}
 
-				execFFMPEG(cmd, sc);
+		@Override
+		public void processComplete (int exitValue)
+		{
+			poll();
 
-				idx++;
-			}
+			if (mCallback != null)
+				mCallback.processComplete(exitValue);
 		}
 
-		StringBuffer cmdRun = new StringBuffer();
+		/**
+		 * Reads the lines appended since the last call. A line still being
+		 * written is left for the next one.
+		 */
+		synchronized void poll ()
+		{
+			long length = mList.length();
+			if (length <= mOffset)
+				return;
 
-		cmdRun.append(mCmdCat);
+			byte[] bytes = new byte[(int) (length - mOffset)];
+			RandomAccessFile file = null;
+			try
+			{
+				file = new RandomAccessFile(mList, "r");
+				file.seek(mOffset);
+				file.readFully(bytes);
+			}
+			catch (IOException e)
+			{
+				Log.w(TAG, "could not read " + mList, e);
+				return;
+			}
+			finally
+			{
+				if (file != null)
+					try { file.close(); } catch (IOException e) {}
+			}
 
-		idx = 0;
+			int start = 0;
+			for (int i = 0; i < bytes.length; i++)
+			{
+				if (bytes[i] != '\n')
+					continue;
 
-		for (Clip vdesc : videos)
-		{
-			if (vdesc.path == null)
-				continue;
+				String line;
+				try {
+					line = new String(bytes, start, i - start, "UTF-8").trim();
+				} catch (UnsupportedEncodingException e) {
+					line = new String(bytes, start, i - start).trim();
+				}
+				start = i + 1;
 
-			if (preConvert)
-				cmdRun.append(out.path).append('.').append(idx++).append(".mpg").append(' '); //leave a space at the end!
-			else
-				cmdRun.append(vdesc.path).append(' ');
-		}
+				Clip segment = parseEntry(line);
+				if (segment == null)
+					continue;
 
-		String mCatPath = out.path + ".full.mpg";
+				mSegments.add(segment);
 
-		cmdRun.append("> ");
-		cmdRun.append(mCatPath);
+				if (mCallback instanceof SegmentCallback)
+					((SegmentCallback) mCallback).segment(segment, mSegments.size() - 1);
+			}
+			mOffset += start;
+		}
 
-		String[] cmds = {"sh","-c",cmdRun.toString()};
-		Runtime.getRuntime().exec(cmds).waitFor();
+		/**
+		 * @return the chunk for a "name,start,end" line, or null for any other line
+		 */
+		private Clip parseEntry (String line)
+		{
+			int endIdx = line.lastIndexOf(',');
+			int startIdx = endIdx > 0 ? line.lastIndexOf(',', endIdx - 1) : -1;
+			if (startIdx <= 0)
+				return null;
 
+			double start;
+			double end;
+			try {
+				start = Double.parseDouble(line.substring(startIdx + 1, endIdx));
+				end = Double.parseDouble(line.substring(endIdx + 1).trim());
+			} catch (NumberFormatException e) {
+				return null;
+			}
 
-		Clip mInCat = new Clip();
-		mInCat.path = mCatPath;
+			String name = line.substring(0, startIdx);
+			if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\""))
+				name = name.substring(1, name.length() - 1).replace("\"\"", "\"");
 
-		processVideo(mInCat, out, false, sc);
+			if (!name.startsWith(mPrefix))
+				return null;
 
-		out.path = mCatPath;
+			Clip segment = new Clip(new File(mDir, name).getPath());
+			segment.startTime = ProgressParser.formatTime(start);
+			segment.duration = end - start;
+			return segment;
+		}
 	}
 
-	public void extractAudio (Clip mdesc, String audioFormat, File audioOutPath, ShellCallback sc) throws IOException, InterruptedException
+	/**
+	 * Encodes into an HLS playlist and its segments instead of one file. The
+	 * segments are plain MPEG-TS, or fragmented MP4 with an init segment
+	 * (CMAF) when fragmented is set. Keyframes are forced at every segment
+	 * boundary so each segment starts on one. ffmpeg rewrites the playlist
+	 * as each segment is closed; when sc is a SegmentCallback it is told
+	 * about each segment listed there, so it can be used, uploaded for
+	 * instance, while the rest is still being encoded.
+	 * @param out the playlist, e.g. out.m3u8; segments are written next to it
+	 * as out_00000.ts (or .m4s) and out_init.mp4
+	 * @param segmentDuration target seconds per segment
+	 * @return the segments, in order
+	 */
+	public ArrayList<Clip> processStreaming (Clip in, Clip out, boolean fragmented, double segmentDuration, ShellCallback sc) throws Exception
 	{
+		File playlist = new File(out.path).getCanonicalFile();
+		String name = playlist.getName();
+		int dot = name.lastIndexOf('.');
+		String base = dot > 0 ? name.substring(0, dot) : name;
+		String seconds = String.format(Locale.US, "%.3f", segmentDuration);
 
-		//no just extract the audio
 		ArrayList<String> cmd = new ArrayList<String>();
-
 		cmd.add(mFfmpegBin);
 		cmd.add("-y");
 		cmd.add("-i");
-		cmd.add(new File(mdesc.path).getCanonicalPath());
+		cmd.add(new File(in.path).getCanonicalPath());
+		cmd.add("-map");
+		cmd.add("0:v:0?");
+		cmd.add("-map");
+		cmd.add("0:a:0?");
 
-		cmd.add("-vn");
+		addVideoEncoder(cmd, out);
+		cmd.add("-force_key_frames");
+		cmd.add("expr:gte(t,n_forced*" + seconds + ")");
 
-		if (mdesc.startTime != null)
+		cmd.add(Argument.AUDIOCODEC);
+		cmd.add(out.audioCodec != null ? out.audioCodec : "aac");
+		if (out.audioChannels > 0)
 		{
-			cmd.add("-ss");
-			cmd.add(mdesc.startTime);
+			cmd.add(Argument.CHANNELS_AUDIO);
+			cmd.add(out.audioChannels + "");
 		}
-
-		if (mdesc.duration != -1)
+		if (out.audioBitrate > 0)
 		{
-			cmd.add("-t");
-			cmd.add(String.format(Locale.US,"%f",mdesc.duration));
+			cmd.add(Argument.BITRATE_AUDIO);
+			cmd.add(out.audioBitrate + "k");
+		}
+		cmd.add("-strict");
+		cmd.add("-2");
 
+		if (out.duration > 0)
+		{
+			cmd.add(Argument.DURATION);
+			cmd.add(out.duration + "");
 		}
 
 		cmd.add("-f");
-		cmd.add(audioFormat); //wav
-
-		//everything to WAV!
-		cmd.add(audioOutPath.getCanonicalPath());
-
-		execFFMPEG(cmd, sc);
+		cmd.add("hls");
+		cmd.add("-hls_time");
+		cmd.add(seconds);
+		cmd.add("-hls_list_size");
+		cmd.add("0");
+		cmd.add("-hls_playlist_type");
+		cmd.add("event");
+		//segments are written under a temporary name and renamed when closed
+		cmd.add("-hls_flags");
+		cmd.add("temp_file+independent_segments");
 
-	}
+		if (fragmented)
+		{
+			cmd.add("-hls_segment_type");
+			cmd.add("fmp4");
+			cmd.add("-hls_fmp4_init_filename");
+			cmd.add(base + "_init.mp4");
+		}
 
-	private class FileMover {
+		cmd.add("-hls_segment_filename");
+		cmd.add(new File(playlist.getParentFile(), base + "_%05d" + (fragmented ? ".m4s" : ".ts")).getPath());
+		cmd.add(playlist.getPath());
 
-		InputStream inputStream;
-		File destination;
+		PlaylistWatcher watcher = new PlaylistWatcher(playlist, sc);
+		execFFMPEG(cmd, watcher);
+		watcher.poll();
 
-		public FileMover(InputStream _inputStream, File _destination) {
-			inputStream = _inputStream;
-			destination = _destination;
-		}
+		checkOutput(out.path);
+		if (watcher.mSegments.isEmpty())
+			throw new Exception("There was a problem rendering the video: " + out.path);
 
-		public void moveIt() throws IOException {
+		return watcher.mSegments;
+	}
 
-			OutputStream destinationOut = new BufferedOutputStream(new FileOutputStream(destination));
+	/**
+	 * Re-reads an HLS playlist on every progress report from the ffmpeg run
+	 * that writes it, and reports the segments that were added since.
+	 */
+	private static class PlaylistWatcher implements ProgressCallback
+	{
+		private final File mPlaylist;
+		private final ShellCallback mCallback;
+		private long mLastModified = -1;
+		private long mLastLength = -1;
+		private double mNextStart = 0;
 
-			int numRead;
-			byte[] buf = new byte[1024];
-			while ((numRead = inputStream.read(buf) ) >= 0) {
-				destinationOut.write(buf, 0, numRead);
-			}
+		final ArrayList<Clip> mSegments = new ArrayList<Clip>();
 
-			destinationOut.flush();
-			destinationOut.close();
+		public PlaylistWatcher (File playlist, ShellCallback callback)
+		{
+			mPlaylist = playlist;
+			mCallback = callback;
 		}
-	}
 
-	public int killVideoProcessor (boolean asRoot, boolean waitFor) throws IOException
-	{
-		int killDelayMs = 300;
+		@Override
+		public void shellOut (String line)
+		{
+			if (mCallback != null)
+				mCallback.shellOut(line);
+		}
 
-		int result = -1;
+		@Override
+		public void progress (ProgressEvent event)
+		{
+			poll();
 
-		int procId = -1;
+			if (mCallback instanceof ProgressCallback)
+				((ProgressCallback) mCallback).progress(event);
+		}
 
-		while ((procId = ShellUtils.findProcessId(mFfmpegBin)) != -1)
+		@Override
+		public void processComplete (int exitValue)
 		{
+			if (mCallback != null)
+				mCallback.processComplete(exitValue);
+		}
 
-		//	Log.d(TAG, "Found PID=" + procId + " - killing now...");
+		/**
+		 * Reads the playlist if it changed. ffmpeg replaces it with a rename,
+		 * so it is never seen half written.
+		 */
+		synchronized void poll ()
+		{
+			long modified = mPlaylist.lastModified();
+			long length = mPlaylist.length();
+			if (modified == 0 || (modified == mLastModified && length == mLastLength))
+				return;
 
-			String[] cmd = { ShellUtils.SHELL_CMD_KILL + ' ' + procId + "" };
+			mLastModified = modified;
+			mLastLength = length;
 
-			try {
-			result = ShellUtils.doShellCommand(cmd,new ShellCallback ()
+			ArrayList<String> lines = new ArrayList<String>();
+			BufferedReader reader = null;
+			try
 			{
+				reader = new BufferedReader(new FileReader(mPlaylist));
+				String line;
+				while ((line = reader.readLine()) != null)
+					lines.add(line.trim());
+			}
+			catch (IOException e)
+			{
+				Log.w(TAG, "could not read " + mPlaylist, e);
+				return;
+			}
+			finally
+			{
+				if (reader != null)
+					try { reader.close(); } catch (IOException e) {}
+			}
 
-				@Override
-				public void shellOut(String msg) {
-
+			//#EXTINF:<seconds>, followed by the segment's uri
+			int index = 0;
+			double duration = -1;
+			for (String line : lines)
+			{
+				if (line.startsWith("#EXTINF:"))
+				{
+					int end = line.indexOf(',');
+					try {
+						duration = Double.parseDouble(line.substring(8, end > 0 ? end : line.length()));
+					} catch (NumberFormatException e) {
+						duration = 0;
+					}
 				}
+				else if (duration >= 0 && line.length() > 0 && !line.startsWith("#"))
+				{
+					if (index == mSegments.size())
+						announce(line, duration);
+					index++;
+					duration = -1;
+				}
+			}
+		}
 
-				@Override
-				public void processComplete(int exitValue) {
-
+		private void announce (String uri, double duration)
+		{
+			Clip segment = new Clip(new File(mPlaylist.getParentFile(), uri).getPath());
+			segment.startTime = ProgressParser.formatTime(mNextStart);
+			segment.duration = duration;
+			mNextStart += duration;
 
-				}
+			mSegments.add(segment);
 
-			}, asRoot, waitFor);
-			Thread.sleep(killDelayMs); }
-			catch (Exception e){}
+			if (mCallback instanceof SegmentCallback)
+				((SegmentCallback) mCallback).segment(segment, mSegments.size() - 1);
 		}
-
-		return result;
 	}
 
-
-	public Clip trim (Clip mediaIn, boolean withSound, String outPath, ShellCallback sc) throws Exception
+	/**
+	 * @return the last keyframe at or before the time, or the time itself
+	 * when the file has no video or no keyframe before it
+	 */
+	private double keyframeBefore (String path, double time) throws IOException, InterruptedException
 	{
-		ArrayList<String> cmd = new ArrayList<String>();
+		Clip info = getInfo(new Clip(path));
+		if (info.videoCodec == null)
+			return time;
 
-		Clip mediaOut = new Clip();
+		double keyframe = getKeyframes(info).floor(time);
+		return keyframe >= 0 ? keyframe : time;
+	}
 
-		String mediaPath = mediaIn.path;
+	//what libx264 can encode to from the formats sources come in
+	private final static List<String> X264_PIXEL_FORMATS = Arrays.asList(
+			"yuv420p", "yuvj420p", "yuv422p", "yuvj422p", "yuv444p", "yuvj444p",
+			"yuv420p10le", "yuv422p10le", "yuv444p10le");
 
-		cmd = new ArrayList<String>();
+	/**
+	 * @return libx264's -profile:v for ffmpeg's name of an H.264 profile, or
+	 * null if libx264 cannot produce it
+	 */
+	private static String x264Profile (String profile)
+	{
+		if ("Baseline".equals(profile) || "Constrained Baseline".equals(profile))
+			return "baseline";
+		if ("Main".equals(profile))
+			return "main";
+		if ("High".equals(profile))
+			return "high";
+		if ("High 10".equals(profile))
+			return "high10";
+		if ("High 4:2:2".equals(profile))
+			return "high422";
+		if ("High 4:4:4 Predictive".equals(profile))
+			return "high444";
+		return null;
+	}
 
-		cmd.add(mFfmpegBin);
-		cmd.add("-y");
+	/**
+	 * @param match the probed source, whose profile, level and pixel format
+	 * the encode keeps so it can be joined with copied video; null for a
+	 * standalone encode
+	 */
+	private static void addSegmentEncoder (ArrayList<String> cmd, Clip match)
+	{
+		cmd.add(Argument.VIDEOCODEC);
+		cmd.add("libx264");
+		cmd.add("-preset");
+		cmd.add("veryfast");
+		cmd.add("-crf");
+		cmd.add("18");
 
-		if (mediaIn.startTime != null)
+		if (match == null)
 		{
-			cmd.add(Argument.STARTTIME);
-			cmd.add(mediaIn.startTime);
+			cmd.add("-pix_fmt");
+			cmd.add("yuv420p");
+			return;
 		}
 
-		if (mediaIn.duration != -1)
-		{
-			cmd.add("-t");
-			cmd.add(String.format(Locale.US,"%f",mediaIn.duration));
+		cmd.add("-profile:v");
+		cmd.add(x264Profile(match.videoProfile));
+		cmd.add("-level");
+		cmd.add(String.format(Locale.US, "%d.%d", match.videoLevel / 10, match.videoLevel % 10));
+		cmd.add("-pix_fmt");
+		cmd.add(match.pixelFormat);
+	}
 
+	/**
+	 * Writes a concat demuxer list, quoting paths the way it expects.
+	 */
+	private static void writeConcatList (File fileList, File... files) throws IOException
+	{
+		StringBuilder list = new StringBuilder();
+		for (File file : files)
+		{
+			list.append("file '");
+			list.append(file.getCanonicalPath().replace("'", "'\\''"));
+			list.append("'\n");
 		}
 
-		cmd.add("-i");
-		cmd.add(mediaPath);
-
-		if (!withSound)
-			cmd.add("-an");
-
-		cmd.add("-strict");
-		cmd.add("-2");//experimental
-
-		mediaOut.path = outPath;
-
-		cmd.add(mediaOut.path);
+		writeFile(fileList, list.toString());
+	}
 
-		execFFMPEG(cmd, sc);
+	private static void writeFile (File file, String contents) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
 
-		return mediaOut;
+	private static void checkOutput (String path) throws Exception
+	{
+		File file = new File(path);
+		if (!file.exists() || file.length() == 0)
+			throw new Exception("There was a problem rendering the video: " + path);
 	}
 
 	public void concatAndTrimFilesMP4Stream (ArrayList<Clip> videos,Clip out, boolean preconvertClipsToMP4, boolean useCatCmd, ShellCallback sc) throws Exception
@@ -1247,34 +3014,169 @@ out.avi – create this output file. Change it as you like, for example using an
 
 	}
 
+	/**
+	 * Probes a clip and fills in its duration, codecs, dimensions, frame rate,
+	 * bitrates, rotation, audio sample rate and channels, and the keyframe
+	 * interval.
+	 *
+	 * MP4/MOV files are read directly with Mp4Parser. Anything else goes to
+	 * ffmpeg, which also reads the first KEYFRAME_PROBE_SECONDS of video
+	 * packets without decoding to measure the keyframe spacing. Returns once
+	 * ffmpeg has exited and all of its output has been parsed.
+	 *
+	 * Results are kept in the ProbeCache until the file changes.
+	 */
 	public Clip getInfo (Clip in) throws IOException, InterruptedException
 	{
-		ArrayList<String> cmd = new ArrayList<String>();
+		File file = new File(in.path);
 
-		cmd = new ArrayList<String>();
+		if (mProbeCache.get(file, in))
+			return in;
+
+		probe(in);
+
+		if (in.duration > 0 || in.videoCodec != null || in.audioCodec != null)
+			mProbeCache.put(file, in);
+
+		return in;
+	}
+
+	private Clip probe (Clip in) throws IOException, InterruptedException
+	{
+		try
+		{
+			Mp4Parser movie = Mp4Parser.parse(new File(in.path));
+			if (movie != null)
+			{
+				movie.fill(in);
+				return in;
+			}
+		}
+		catch (IOException e)
+		{
+			Log.w(TAG, "could not read " + in.path + ", probing with ffmpeg", e);
+		}
+
+		ArrayList<String> cmd = new ArrayList<String>();
 
 		cmd.add(mFfmpegBin);
-		cmd.add("-y");
+		cmd.add("-dump");
 		cmd.add("-i");
-
 		cmd.add(new File(in.path).getCanonicalPath());
 
-		InfoParser ip = new InfoParser(in);
-		execFFMPEG(cmd,ip, null);
+		cmd.add("-map");
+		cmd.add("0:v:0?");
+		cmd.add("-c");
+		cmd.add("copy");
+		cmd.add(Argument.DURATION);
+		cmd.add(KEYFRAME_PROBE_SECONDS + "");
+		cmd.add("-f");
+		cmd.add("null");
+		cmd.add("-");
 
-		try{Thread.sleep(200);}
-		catch (Exception e){}
+		//a failed read still leaves what was printed up to it
+		InfoParser ip = new InfoParser(in);
+		execProcess(cmd, ip, null);
 
+		ip.finish();
 
 		return in;
+	}
+
+	/**
+	 * Returns the presentation times of the clip's video keyframes. MP4/MOV
+	 * files are indexed from their sample tables; anything else by scanning
+	 * all video packets with ffmpeg, without decoding. Indexes are kept in
+	 * the ProbeCache until the file changes.
+	 */
+	public KeyframeIndex getKeyframes (Clip in) throws IOException, InterruptedException
+	{
+		File file = new File(in.path);
+
+		KeyframeIndex index = mProbeCache.getKeyframes(file);
+		if (index != null)
+			return index;
+
+		try
+		{
+			Mp4Parser movie = Mp4Parser.parse(file);
+			Mp4Parser.Track video = movie != null ? movie.getVideoTrack() : null;
+			if (video != null)
+				index = KeyframeIndex.fromTrack(video);
+		}
+		catch (IOException e)
+		{
+			Log.w(TAG, "could not read " + in.path + ", scanning with ffmpeg", e);
+		}
+
+		boolean complete = index != null;
+
+		if (index == null)
+		{
+			ArrayList<String> cmd = new ArrayList<String>();
+
+			cmd.add(mFfmpegBin);
+			cmd.add("-dump");
+			cmd.add("-i");
+			cmd.add(file.getCanonicalPath());
+
+			cmd.add("-map");
+			cmd.add("0:v:0");
+			cmd.add("-c");
+			cmd.add("copy");
+			cmd.add("-f");
+			cmd.add("null");
+			cmd.add("-");
+
+			InfoParser ip = new InfoParser(new Clip(in.path));
+			ip.collectKeyframes();
+			execProcess(cmd, ip, null);
+
+			index = ip.getKeyframes();
+			complete = ip.retValue == 0;
+		}
+
+		if (complete)
+			mProbeCache.putKeyframes(file, index);
 
+		return index;
 	}
 
+	private final static int KEYFRAME_PROBE_SECONDS = 10;
+
+	private final static Pattern PATTERN_SIZE = Pattern.compile(", (\\d+)x(\\d+)");
+	private final static Pattern PATTERN_FPS = Pattern.compile("([\\d.]+) fps");
+	private final static Pattern PATTERN_TBR = Pattern.compile("([\\d.]+) tbr");
+	private final static Pattern PATTERN_KBPS = Pattern.compile("(\\d+) kb/s");
+	private final static Pattern PATTERN_START = Pattern.compile("start: (-?\\d+(\\.\\d+)?)");
+	private final static Pattern PATTERN_HZ = Pattern.compile("(\\d+) Hz");
+	private final static Pattern PATTERN_CHANNELS = Pattern.compile("(\\d+) channels");
+	private final static Pattern PATTERN_LAYOUT = Pattern.compile("(\\d+)\\.(\\d)(\\(|,|$)");
+	private final static Pattern PATTERN_ROTATE = Pattern.compile("^\\s*rotate\\s*:\\s*(-?\\d+)");
+	private final static Pattern PATTERN_DISPLAYMATRIX = Pattern.compile("rotation of (-?[\\d.]+) degrees");
+	private final static Pattern PATTERN_STREAM_INDEX = Pattern.compile("^stream #(\\d+):");
+
 	private class InfoParser implements ShellCallback {
 
 		private Clip mMedia;
 		private int retValue;
 
+		private boolean mInOutput = false;
+		private boolean mSawVideo = false;
+		private boolean mSawAudio = false;
+		private boolean mInVideoStream = false;
+
+		//-dump state
+		private int mVideoStreamIndex = -1;
+		private int mPacketStream = -1;
+		private boolean mPacketKey = false;
+		private double mFirstKeyTime = -1;
+		private double mLastKeyTime = -1;
+		private int mKeyCount = 0;
+		private ArrayList<Double> mKeyTimes;
+		//container start time; packet timestamps count from it, not from 0
+		private double mStartTime = 0;
+
 		public InfoParser (Clip media)
 		{
 			mMedia = media;
@@ -1282,44 +3184,142 @@ out.avi – create this output file. Change it as you like, for example using an
 
 		@Override
 		public void shellOut(String shellLine) {
-			if (shellLine.contains("Duration:"))
+
+			if (shellLine.startsWith("stream #") || shellLine.startsWith("  keyframe=") || shellLine.startsWith("  dts="))
 			{
+				parsePacketLine(shellLine);
+				return;
+			}
 
-//		  Duration: 00:01:01.75, start: 0.000000, bitrate: 8184 kb/s
+			if (shellLine.startsWith("Output #"))
+			{
+				//stream lines from here on describe our null output, not the input
+				mInOutput = true;
+				return;
+			}
 
-				String[] timecode = shellLine.split(",")[0].split(":");
+			if (mInOutput)
+				return;
 
+			if (shellLine.contains("Duration:"))
+			{
 
-				double duration = 0;
+//		  Duration: 00:01:01.75, start: 0.000000, bitrate: 8184 kb/s
 
-				duration = Double.parseDouble(timecode[1].trim())*60*60; //hours
-				duration += Double.parseDouble(timecode[2].trim())*60; //minutes
-				duration += Double.parseDouble(timecode[3].trim()); //seconds
+				int idx = shellLine.indexOf("Duration:") + 9;
+				int end = shellLine.indexOf(',', idx);
+				double duration = ProgressParser.parseTime(shellLine.substring(idx, end == -1 ? shellLine.length() : end));
 
-				mMedia.duration = duration;
+				if (duration >= 0)
+					mMedia.duration = duration;
 
+				Integer bitrate = findInt(PATTERN_KBPS, shellLine);
+				if (bitrate != null)
+					mMedia.bitrate = bitrate;
 
+				Matcher m = PATTERN_START.matcher(shellLine);
+				if (m.find())
+					mStartTime = Double.parseDouble(m.group(1));
 			}
 
 			//   Stream #0:0(eng): Video: h264 (High) (avc1 / 0x31637661), yuv420p, 1920x1080, 16939 kb/s, 30.02 fps, 30 tbr, 90k tbn, 180k tbc
 			else if (shellLine.contains(": Video:"))
 			{
-				String[] line = shellLine.split(":");
-				String[] videoInfo = line[3].split(",");
+				mInVideoStream = false;
+
+				if (mSawVideo)
+					return;
+
+				mSawVideo = true;
+				mInVideoStream = true;
+				mVideoStreamIndex = parseStreamIndex(shellLine);
 
-				mMedia.videoCodec = videoInfo[0];
+				String info = shellLine.substring(shellLine.indexOf(": Video:") + 8);
+				mMedia.videoCodec = firstWord(info);
+
+				//"h264 (High) (avc1 / 0x31637661), yuv420p(tv, bt709), ..."; the
+				//codec tag is in parens too, but always with a slash
+				List<String> fields = topLevelFields(info);
+				String codec = fields.get(0);
+				int open = codec.indexOf('(');
+				int close = open >= 0 ? codec.indexOf(')', open) : -1;
+				if (close > open && codec.substring(open, close).indexOf('/') == -1)
+					mMedia.videoProfile = codec.substring(open + 1, close);
+
+				if (fields.size() > 1)
+				{
+					String format = fields.get(1).trim();
+					int paren = format.indexOf('(');
+					mMedia.pixelFormat = paren >= 0 ? format.substring(0, paren) : format;
+				}
+
+				Matcher m = PATTERN_SIZE.matcher(info);
+				if (m.find())
+				{
+					mMedia.width = Integer.parseInt(m.group(1));
+					mMedia.height = Integer.parseInt(m.group(2));
+				}
+
+				Integer kbps = findInt(PATTERN_KBPS, info);
+				if (kbps != null)
+					mMedia.videoBitrate = kbps;
+
+				m = PATTERN_FPS.matcher(info);
+				if (!m.find())
+				{
+					m = PATTERN_TBR.matcher(info);
+					if (!m.find())
+						m = null;
+				}
+				if (m != null)
+					mMedia.videoFps = m.group(1);
 			}
 
 			//Stream #0:1(eng): Audio: aac (mp4a / 0x6134706D), 48000 Hz, stereo, s16, 121 kb/s
 			else if (shellLine.contains(": Audio:"))
 			{
-				String[] line = shellLine.split(":");
-				String[] audioInfo = line[3].split(",");
+				mInVideoStream = false;
+
+				if (mSawAudio)
+					return;
+
+				mSawAudio = true;
+
+				String info = shellLine.substring(shellLine.indexOf(": Audio:") + 8);
+				mMedia.audioCodec = firstWord(info);
+
+				Integer hz = findInt(PATTERN_HZ, info);
+				if (hz != null)
+					mMedia.audioSampleRate = hz;
+
+				Integer kbps = findInt(PATTERN_KBPS, info);
+				if (kbps != null)
+					mMedia.audioBitrate = kbps;
 
-				mMedia.audioCodec = audioInfo[0];
+				mMedia.audioChannels = parseChannels(info);
+			}
 
+			else if (shellLine.contains("Stream #"))
+			{
+				mInVideoStream = false;
 			}
 
+			//    rotate          : 90
+			//    displaymatrix: rotation of -90.00 degrees
+			else if (mInVideoStream)
+			{
+				Integer rotate = findInt(PATTERN_ROTATE, shellLine);
+				if (rotate != null)
+				{
+					mMedia.rotation = normalizeRotation(rotate);
+				}
+				else
+				{
+					Matcher m = PATTERN_DISPLAYMATRIX.matcher(shellLine);
+					if (m.find())
+						mMedia.rotation = normalizeRotation(-(int) Math.round(Double.parseDouble(m.group(1))));
+				}
+			}
 
 	//
     //Stream #0.0(und): Video: h264 (Baseline), yuv420p, 1280x720, 8052 kb/s, 29.97 fps, 90k tbr, 90k tbn, 180k tbc
@@ -1327,6 +3327,70 @@ out.avi – create this output file. Change it as you like, for example using an
 
 		}
 
+		/**
+		 * -dump prints a block per packet:
+		 * stream #0:
+		 *   keyframe=1
+		 *   duration=0.033
+		 *   dts=0.000  pts=0.000
+		 *   size=1234
+		 */
+		private void parsePacketLine (String line)
+		{
+			if (line.startsWith("stream #"))
+			{
+				Integer stream = findInt(PATTERN_STREAM_INDEX, line);
+				mPacketStream = stream != null ? stream : -1;
+				mPacketKey = false;
+			}
+			else if (line.startsWith("  keyframe="))
+			{
+				mPacketKey = line.trim().equals("keyframe=1");
+			}
+			else if (mPacketKey && mPacketStream == mVideoStreamIndex)
+			{
+				//  dts=0.000  pts=0.000
+				double time = parsePacketTime(line, "pts=");
+				if (time < 0)
+					time = parsePacketTime(line, "dts=");
+
+				if (time >= 0)
+				{
+					//seeks count from 0, MPEG-TS packets from around 1.4s
+					time = Math.max(0, time - mStartTime);
+
+					if (mFirstKeyTime < 0)
+						mFirstKeyTime = time;
+					mLastKeyTime = Math.max(mLastKeyTime, time);
+					mKeyCount++;
+
+					if (mKeyTimes != null)
+						mKeyTimes.add(time);
+				}
+			}
+		}
+
+		void collectKeyframes ()
+		{
+			mKeyTimes = new ArrayList<Double>();
+		}
+
+		KeyframeIndex getKeyframes ()
+		{
+			double[] times = new double[mKeyTimes.size()];
+			for (int i = 0; i < times.length; i++)
+				times[i] = mKeyTimes.get(i);
+			return new KeyframeIndex(times);
+		}
+
+		void finish ()
+		{
+			if (mKeyCount > 1 && mLastKeyTime > mFirstKeyTime)
+				mMedia.keyframeInterval = (mLastKeyTime - mFirstKeyTime) / (mKeyCount - 1);
+			else if (mKeyCount == 1) //no second keyframe within the probed window
+				mMedia.keyframeInterval = mMedia.duration > 0 ? Math.min(mMedia.duration, KEYFRAME_PROBE_SECONDS) : KEYFRAME_PROBE_SECONDS;
+		}
+
 		@Override
 		public void processComplete(int exitValue) {
 			retValue = exitValue;
@@ -1334,44 +3398,210 @@ out.avi – create this output file. Change it as you like, for example using an
 		}
 	}
 
-	private class StreamGobbler extends Thread
+	/**
+	 * @return the comma separated fields of a stream line, commas inside
+	 * parens or brackets left alone
+	 */
+	private static List<String> topLevelFields (String info)
+	{
+		ArrayList<String> fields = new ArrayList<String>();
+		int depth = 0;
+		int start = 0;
+		for (int i = 0; i < info.length(); i++)
+		{
+			char c = info.charAt(i);
+			if (c == '(' || c == '[')
+				depth++;
+			else if ((c == ')' || c == ']') && depth > 0)
+				depth--;
+			else if (c == ',' && depth == 0)
+			{
+				fields.add(info.substring(start, i));
+				start = i + 1;
+			}
+		}
+		fields.add(info.substring(start));
+		return fields;
+	}
+
+	private static int parseStreamIndex (String streamLine)
+	{
+		//Stream #0:0(eng): or the older Stream #0.0(und):
+		int idx = streamLine.indexOf("Stream #");
+		if (idx == -1)
+			return -1;
+
+		String rest = streamLine.substring(idx + 8);
+		int sep = rest.indexOf(':');
+		int dot = rest.indexOf('.');
+		if (dot != -1 && (sep == -1 || dot < sep))
+			sep = dot;
+
+		StringBuilder digits = new StringBuilder();
+		for (int i = sep + 1; i < rest.length() && Character.isDigit(rest.charAt(i)); i++)
+			digits.append(rest.charAt(i));
+
+		return digits.length() > 0 ? Integer.parseInt(digits.toString()) : -1;
+	}
+
+	private static double parsePacketTime (String line, String key)
+	{
+		int idx = line.indexOf(key);
+		if (idx == -1)
+			return -1;
+
+		int end = line.indexOf(' ', idx);
+		try {
+			return Double.parseDouble(line.substring(idx + key.length(), end == -1 ? line.length() : end));
+		} catch (NumberFormatException e) {
+			return -1; //N/A
+		}
+	}
+
+	private static int parseChannels (String audioInfo)
+	{
+		if (audioInfo.contains(" mono"))
+			return 1;
+		if (audioInfo.contains(" stereo"))
+			return 2;
+		if (audioInfo.contains(" quad"))
+			return 4;
+
+		Integer channels = findInt(PATTERN_CHANNELS, audioInfo);
+		if (channels != null)
+			return channels;
+
+		//5.1, 7.1(wide), ...
+		for (String part : audioInfo.split(","))
+		{
+			Matcher m = PATTERN_LAYOUT.matcher(part.trim());
+			if (m.lookingAt())
+				return Integer.parseInt(m.group(1)) + Integer.parseInt(m.group(2));
+		}
+
+		return -1;
+	}
+
+	private static Integer findInt (Pattern pattern, String text)
+	{
+		Matcher m = pattern.matcher(text);
+		return m.find() ? Integer.valueOf(m.group(1)) : null;
+	}
+
+	private static String firstWord (String text)
+	{
+		text = text.trim();
+		int end = 0;
+		while (end < text.length() && text.charAt(end) != ' ' && text.charAt(end) != ',')
+			end++;
+		return text.substring(0, end);
+	}
+
+	private static int normalizeRotation (int degrees)
+	{
+		return ((degrees % 360) + 360) % 360;
+	}
+
+	/**
+	 * Renders thumbnails at a fixed interval into sprite sheets in one ffmpeg
+	 * run. Only keyframes are decoded; each tile shows the last keyframe at or
+	 * before its time, so on long GOPs neighbouring tiles can repeat. Tiles
+	 * are laid out left to right, top to bottom, and a new sheet is started
+	 * when one is full; the last sheet is padded.
+	 * @param interval seconds between tiles
+	 * @param tileWidth tile size in pixels; the frame is scaled to fit exactly
+	 * @param columns tiles per row
+	 * @param rows rows per sheet
+	 * @param outPattern output path with a printf style index from 1, e.g.
+	 * sprite_%03d.jpg; the extension picks the image format
+	 * @return the sheets, in order
+	 */
+	public ArrayList<File> createThumbnailStrip (Clip in, double interval, int tileWidth, int tileHeight,
+			int columns, int rows, String outPattern, ShellCallback sc) throws Exception
 	{
-	    InputStream is;
-	    String type;
-	    ShellCallback sc;
+		ArrayList<String> cmd = new ArrayList<String>();
+		cmd.add(mFfmpegBin);
+		cmd.add("-y");
+		//the decoder drops everything but keyframes before decoding them
+		cmd.add("-skip_frame");
+		cmd.add("nokey");
+		cmd.add("-i");
+		cmd.add(new File(in.path).getCanonicalPath());
+		cmd.add("-map");
+		cmd.add("0:v:0");
+		cmd.add("-an");
+
+		if (in.duration > 0)
+		{
+			cmd.add(Argument.DURATION);
+			cmd.add(in.duration + "");
+		}
+
+		cmd.add("-vf");
+		cmd.add(String.format(Locale.US, "fps=1/%.6f:round=down,scale=%d:%d,tile=%dx%d",
+				interval, tileWidth, tileHeight, columns, rows));
+		cmd.add("-vsync");
+		cmd.add("vfr");
+		cmd.add("-q:v");
+		cmd.add("5");
+		cmd.add("-start_number");
+		cmd.add("1");
+		cmd.add(outPattern);
+
+		//sheets left from an earlier run would be taken for this one's
+		deleteSheets(outPattern);
+
+		try
+		{
+			execFFMPEG(cmd, sc);
+		}
+		catch (Exception e)
+		{
+			//cancelled or failed, the sheets written so far are of no use
+			deleteSheets(outPattern);
+			throw e;
+		}
+
+		ArrayList<File> sheets = new ArrayList<File>();
+		for (int i = 1; ; i++)
+		{
+			File sheet = new File(String.format(Locale.US, outPattern, i));
+			if (!sheet.isFile() || sheet.length() == 0)
+				break;
+			sheets.add(sheet);
+		}
 
-	    StreamGobbler(InputStream is, String type, ShellCallback sc)
-	    {
-	        this.is = is;
-	        this.type = type;
-	        this.sc = sc;
-	    }
+		if (sheets.isEmpty())
+		{
+			deleteSheets(outPattern);
+			throw new Exception("There was a problem rendering the thumbnails: " + outPattern);
+		}
 
-	    public void run()
-	    {
-	        try
-	        {
-	            InputStreamReader isr = new InputStreamReader(is);
-	            BufferedReader br = new BufferedReader(isr);
-	            String line=null;
-	            while ( (line = br.readLine()) != null)
-	            	if (sc != null)
-	            		sc.shellOut(line);
+		return sheets;
+	}
 
-	            } catch (IOException ioe)
-	              {
-	             //   Log.e(TAG,"error reading shell slog",ioe);
-	            	ioe.printStackTrace();
-	              }
-	    }
+	private static void deleteSheets (String outPattern)
+	{
+		for (int i = 1; new File(String.format(Locale.US, outPattern, i)).delete(); i++)
+			;
 	}
 
 	public static Bitmap getVideoFrame(String videoPath,long frameTime) throws Exception {
+        return getVideoFrame(videoPath, frameTime, MediaMetadataRetriever.OPTION_CLOSEST);
+    }
+
+	/**
+	 * @param frameTime microseconds, or negative to let the platform pick a
+	 * representative frame
+	 * @param option one of the MediaMetadataRetriever.OPTION_ constants
+	 * @return the frame, or null if it could not be decoded
+	 */
+	public static Bitmap getVideoFrame(String videoPath, long frameTime, int option) throws Exception {
         MediaMetadataRetriever retriever = new MediaMetadataRetriever();
 
         try {
             retriever.setDataSource(videoPath);
-            return retriever.getFrameAtTime(frameTime, MediaMetadataRetriever.OPTION_CLOSEST);
+            return frameTime < 0 ? retriever.getFrameAtTime() : retriever.getFrameAtTime(frameTime, option);
 
         } finally {
             try {
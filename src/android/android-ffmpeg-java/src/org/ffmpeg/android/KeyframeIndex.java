@@ -0,0 +1,169 @@
+package org.ffmpeg.android;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Presentation times, in seconds, of the video keyframes of a clip.
+ *
+ * For MP4/MOV it is computed straight from the sync sample (stss), decoding
+ * time (stts) and composition offset (ctts) tables, shifted by the first
+ * edit, so no packet has to be read. Other containers are indexed by
+ * FfmpegController from a packet scan. Use floor() and ceiling() to snap a
+ * cut to the keyframe a stream copy can start from.
+ */
+public class KeyframeIndex {
+
+	//keyframe times closer than this to the requested time count as a match
+	private final static double EPSILON = 0.0005;
+
+	private final double[] mTimes;
+
+	public KeyframeIndex (double[] times)
+	{
+		mTimes = times.clone();
+		Arrays.sort(mTimes);
+	}
+
+	public int size ()
+	{
+		return mTimes.length;
+	}
+
+	public double get (int index)
+	{
+		return mTimes[index];
+	}
+
+	public double[] getTimes ()
+	{
+		return mTimes.clone();
+	}
+
+	/**
+	 * @return the last keyframe at or before the time, or -1 if there is none
+	 */
+	public double floor (double time)
+	{
+		int idx = Arrays.binarySearch(mTimes, time + EPSILON);
+		if (idx < 0)
+			idx = -idx - 2;
+
+		return idx >= 0 ? mTimes[idx] : -1;
+	}
+
+	/**
+	 * @return the first keyframe at or after the time, or -1 if there is none
+	 */
+	public double ceiling (double time)
+	{
+		int idx = Arrays.binarySearch(mTimes, time - EPSILON);
+		if (idx < 0)
+			idx = -idx - 1;
+
+		return idx < mTimes.length ? mTimes[idx] : -1;
+	}
+
+	/**
+	 * Builds the index from the sample tables of an MP4 video track.
+	 * @return the index, or null if the track lacks timing information
+	 */
+	public static KeyframeIndex fromTrack (Mp4Parser.Track track)
+	{
+		if (track.stts == null || track.timescale <= 0)
+			return null;
+
+		try {
+			return readTables(track);
+		} catch (BufferUnderflowException e) {
+			return null; //a table shorter than its entry count says
+		}
+	}
+
+	private static KeyframeIndex readTables (Mp4Parser.Track track)
+	{
+		ByteBuffer stts = track.stts.duplicate();
+		stts.position(4);
+		int sttsCount = stts.getInt();
+
+		ByteBuffer ctts = null;
+		int cttsCount = 0;
+		if (track.ctts != null)
+		{
+			ctts = track.ctts.duplicate();
+			ctts.position(4);
+			cttsCount = ctts.getInt();
+		}
+
+		ByteBuffer stss = null;
+		long syncCount;
+		if (track.stss != null)
+		{
+			stss = track.stss.duplicate();
+			stss.position(4);
+			syncCount = stss.getInt() & 0xffffffffL;
+		}
+		else
+		{
+			//no stss, every sample is a sync sample
+			syncCount = track.sampleCount;
+		}
+
+		double[] times = new double[(int) syncCount];
+		int found = 0;
+
+		long shift = track.editMediaTime > 0 ? track.editMediaTime : 0;
+
+		//decode time cursor: stts entry covering samples [sttsFirst, sttsFirst + sttsSamples)
+		int sttsIdx = 0;
+		long sttsFirst = 1;
+		long sttsSamples = 0;
+		long sttsDelta = 0;
+		long sttsBase = 0; //decode time of sample sttsFirst
+
+		//composition offset cursor, same idea
+		int cttsIdx = 0;
+		long cttsFirst = 1;
+		long cttsSamples = 0;
+		long cttsOffset = 0;
+
+		for (long i = 0; i < syncCount; i++)
+		{
+			long sample = stss != null ? stss.getInt() & 0xffffffffL : i + 1;
+
+			while (sample >= sttsFirst + sttsSamples)
+			{
+				if (sttsIdx == sttsCount)
+					break;
+
+				sttsBase += sttsSamples * sttsDelta;
+				sttsFirst += sttsSamples;
+				sttsSamples = stts.getInt() & 0xffffffffL;
+				sttsDelta = stts.getInt() & 0xffffffffL;
+				sttsIdx++;
+			}
+
+			if (sample >= sttsFirst + sttsSamples)
+				break; //sync sample past the end of the timing table
+
+			long dts = sttsBase + (sample - sttsFirst) * sttsDelta;
+
+			if (ctts != null)
+			{
+				while (sample >= cttsFirst + cttsSamples && cttsIdx < cttsCount)
+				{
+					cttsFirst += cttsSamples;
+					cttsSamples = ctts.getInt() & 0xffffffffL;
+					cttsOffset = ctts.getInt(); //signed in version 1, and in practice in version 0 too
+					cttsIdx++;
+				}
+			}
+
+			long pts = dts + (ctts != null ? cttsOffset : 0) - shift;
+			times[found++] = Math.max(0, pts / (double) track.timescale);
+		}
+
+		return new KeyframeIndex(found == times.length ? times : Arrays.copyOf(times, found));
+	}
+}
@@ -0,0 +1,819 @@
+package org.ffmpeg.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Reads stream parameters out of MP4/MOV/M4V files without running ffmpeg.
+ *
+ * Only the box headers at the top level of the file are read to find the
+ * moov box, which is then memory mapped on its own; mdat is never touched.
+ * From moov the movie header, and for every track the track header (with its
+ * display matrix), media header, handler, first sample description, edit
+ * list and the sample tables needed for frame rate, bitrate and keyframe
+ * spacing are read. The sample tables are kept as mapped so KeyframeIndex
+ * and Mp4Trimmer can use them without reading the file again.
+ *
+ * parse() returns null for anything that is not an ISO base media file with
+ * a complete moov, including fragmented files, so callers can fall back to
+ * probing with ffmpeg.
+ */
+public class Mp4Parser {
+
+	private final static int HEADER_SIZE = 8;
+
+	//moov is usually a few hundred KB, refuse to map anything absurd
+	private final static long MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+	private final static HashMap<String, String> sCodecNames = new HashMap<String, String>();
+
+	static
+	{
+		sCodecNames.put("avc1", "h264");
+		sCodecNames.put("avc3", "h264");
+		sCodecNames.put("hvc1", "hevc");
+		sCodecNames.put("hev1", "hevc");
+		sCodecNames.put("mp4v", "mpeg4");
+		sCodecNames.put("s263", "h263");
+		sCodecNames.put("h263", "h263");
+		sCodecNames.put("vp08", "vp8");
+		sCodecNames.put("vp09", "vp9");
+		sCodecNames.put("av01", "av1");
+		sCodecNames.put("jpeg", "mjpeg");
+		sCodecNames.put("mp4a", "aac");
+		sCodecNames.put(".mp3", "mp3");
+		sCodecNames.put("samr", "amr_nb");
+		sCodecNames.put("sawb", "amr_wb");
+		sCodecNames.put("ac-3", "ac3");
+		sCodecNames.put("ec-3", "eac3");
+		sCodecNames.put("Opus", "opus");
+		sCodecNames.put("alac", "alac");
+		sCodecNames.put("sowt", "pcm_s16le");
+		sCodecNames.put("twos", "pcm_s16be");
+	}
+
+	public static class Track
+	{
+		public int id;
+		public String handler; //"vide", "soun", ...
+		public String fourcc;
+		public String codec; //ffmpeg's name for the codec
+
+		public long timescale;
+		public long duration; //in timescale units
+
+		public int width = -1;
+		public int height = -1;
+		public int rotation = 0;
+
+		//from avcC, H.264 only
+		public int profile = -1; //profile_idc
+		public int profileCompatibility = 0; //the constraint_set flags
+		public int level = -1; //level_idc
+		public String pixelFormat;
+
+		public int sampleRate = -1;
+		public int channels = -1;
+
+		public long sampleCount = 0;
+		public long sampleBytes = 0;
+		public long syncSampleCount = -1; //-1 when there is no stss, every sample is a sync sample
+
+		public long editMediaTime = -1; //media time the first edit starts at
+		public long editDuration = -1; //summed duration of the edits, in movie timescale units
+
+		//sample tables as mapped, each positioned at its full box version byte
+		public ByteBuffer stts;
+		public ByteBuffer ctts;
+		public ByteBuffer stss;
+		public ByteBuffer stsz;
+		public ByteBuffer stsc;
+		public ByteBuffer stco; //or co64, see largeChunkOffsets
+		public boolean largeChunkOffsets = false;
+
+		public boolean isVideo()
+		{
+			return "vide".equals(handler);
+		}
+
+		public boolean isAudio()
+		{
+			return "soun".equals(handler);
+		}
+
+		/**
+		 * @return the presentation duration in seconds
+		 */
+		public double getDurationSeconds(long movieTimescale)
+		{
+			if (editDuration > 0 && movieTimescale > 0)
+				return editDuration / (double) movieTimescale;
+
+			return timescale > 0 ? duration / (double) timescale : -1;
+		}
+	}
+
+	public String majorBrand;
+	public long fileLength;
+
+	//where the top level boxes sit in the file, header included; -1 when absent
+	public long ftypOffset = -1;
+	public long ftypSize;
+	public long moovOffset = -1;
+	public long moovSize;
+	public int moovHeaderSize; //8, or 16 with a 64 bit size, whatever the size
+
+	public long timescale;
+	public long duration; //in timescale units
+	public final ArrayList<Track> tracks = new ArrayList<Track>();
+
+	private Mp4Parser()
+	{
+	}
+
+	/**
+	 * @return the parsed movie, or null if the file is not an ISO base media
+	 * file this parser can fully describe
+	 */
+	public static Mp4Parser parse(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try
+		{
+			FileChannel channel = raf.getChannel();
+
+			Mp4Parser movie = new Mp4Parser();
+			movie.fileLength = channel.size();
+
+			ByteBuffer header = ByteBuffer.allocate(16);
+			long offset = 0;
+			boolean first = true;
+
+			while (offset + HEADER_SIZE <= movie.fileLength)
+			{
+				header.clear();
+				header.limit(16);
+				channel.read(header, offset);
+				header.flip();
+
+				if (header.remaining() < HEADER_SIZE)
+					return null;
+
+				long size = header.getInt() & 0xffffffffL;
+				String type = readType(header);
+				int headerSize = HEADER_SIZE;
+
+				if (size == 1)
+				{
+					if (header.remaining() < 8)
+						return null;
+					size = header.getLong();
+					headerSize = 16;
+				}
+				else if (size == 0)
+				{
+					size = movie.fileLength - offset;
+				}
+
+				if (size < headerSize || offset + size > movie.fileLength)
+					return null;
+
+				if (first)
+				{
+					//anything else is not ISO BMFF, or at least not one we want to guess at
+					if (!type.equals("ftyp") && !type.equals("moov") && !type.equals("mdat")
+							&& !type.equals("free") && !type.equals("wide") && !type.equals("skip"))
+						return null;
+					first = false;
+				}
+
+				if (type.equals("ftyp"))
+				{
+					movie.ftypOffset = offset;
+					movie.ftypSize = size;
+
+					ByteBuffer ftyp = ByteBuffer.allocate(4);
+					channel.read(ftyp, offset + headerSize);
+					ftyp.flip();
+					if (ftyp.remaining() == 4)
+						movie.majorBrand = readType(ftyp);
+				}
+				else if (type.equals("moov"))
+				{
+					long moovSize = size - headerSize;
+					if (moovSize > MAX_MOOV_SIZE)
+						return null;
+
+					movie.moovOffset = offset;
+					movie.moovSize = size;
+					movie.moovHeaderSize = headerSize;
+
+					ByteBuffer moov = channel.map(FileChannel.MapMode.READ_ONLY, offset + headerSize, moovSize);
+					try {
+						return movie.parseMoov(moov) ? movie : null;
+					} catch (BufferUnderflowException e) {
+						return null; //a box shorter than its fields say
+					}
+				}
+
+				offset += size;
+			}
+
+			return null;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the first video track, or null if there is none
+	 */
+	public Track getVideoTrack()
+	{
+		for (Track track : tracks)
+		{
+			if (track.isVideo())
+				return track;
+		}
+		return null;
+	}
+
+	/**
+	 * Fills in the clip from the first video and first audio track.
+	 */
+	public void fill(Clip clip)
+	{
+		double seconds = timescale > 0 ? duration / (double) timescale : -1;
+
+		Track video = null;
+		Track audio = null;
+		for (Track track : tracks)
+		{
+			if (video == null && track.isVideo())
+				video = track;
+			else if (audio == null && track.isAudio())
+				audio = track;
+
+			if (seconds <= 0)
+				seconds = Math.max(seconds, track.getDurationSeconds(timescale));
+		}
+
+		if (seconds > 0)
+		{
+			clip.duration = seconds;
+			clip.bitrate = (int) (fileLength * 8 / seconds / 1000);
+		}
+
+		if (video != null)
+		{
+			double trackSeconds = video.timescale > 0 ? video.duration / (double) video.timescale : -1;
+
+			clip.videoCodec = video.codec;
+			clip.width = video.width;
+			clip.height = video.height;
+			clip.rotation = video.rotation;
+
+			if (video.profile >= 0)
+			{
+				clip.videoProfile = profileName(video.profile, video.profileCompatibility);
+				clip.videoLevel = video.level;
+				clip.pixelFormat = video.pixelFormat;
+			}
+
+			if (trackSeconds > 0)
+			{
+				clip.videoFps = formatFps(video.sampleCount / trackSeconds);
+				clip.videoBitrate = (int) (video.sampleBytes * 8 / trackSeconds / 1000);
+
+				long syncCount = video.syncSampleCount < 0 ? video.sampleCount : video.syncSampleCount;
+				if (syncCount > 0)
+					clip.keyframeInterval = trackSeconds / syncCount;
+			}
+		}
+
+		if (audio != null)
+		{
+			double trackSeconds = audio.timescale > 0 ? audio.duration / (double) audio.timescale : -1;
+
+			clip.audioCodec = audio.codec;
+			clip.audioSampleRate = audio.sampleRate;
+			clip.audioChannels = audio.channels;
+
+			if (trackSeconds > 0)
+				clip.audioBitrate = (int) (audio.sampleBytes * 8 / trackSeconds / 1000);
+		}
+
+		if (clip.mimeType == null)
+		{
+			boolean quicktime = "qt  ".equals(majorBrand);
+			if (video != null)
+				clip.mimeType = quicktime ? "video/quicktime" : "video/mp4";
+			else if (audio != null)
+				clip.mimeType = "audio/mp4";
+		}
+	}
+
+	private boolean parseMoov(ByteBuffer moov)
+	{
+		boolean sawHeader = false;
+
+		while (moov.remaining() >= HEADER_SIZE)
+		{
+			ByteBuffer box = nextBox(moov);
+			if (box == null)
+				return false;
+
+			String type = mLastType;
+
+			if (type.equals("mvhd"))
+			{
+				int version = box.get();
+				skip(box, 3);
+				skip(box, version == 1 ? 16 : 8);
+				timescale = box.getInt() & 0xffffffffL;
+				duration = version == 1 ? box.getLong() : box.getInt() & 0xffffffffL;
+				sawHeader = true;
+			}
+			else if (type.equals("trak"))
+			{
+				Track track = new Track();
+				parseTrak(box, track);
+				if (track.handler != null)
+					tracks.add(track);
+			}
+			else if (type.equals("mvex"))
+			{
+				//fragmented, the sample tables in moov are empty
+				return false;
+			}
+		}
+
+		return sawHeader && !tracks.isEmpty();
+	}
+
+	private void parseTrak(ByteBuffer trak, Track track)
+	{
+		ByteBuffer box;
+		while ((box = nextBox(trak)) != null)
+		{
+			String type = mLastType;
+
+			if (type.equals("tkhd"))
+			{
+				int version = box.get();
+				skip(box, 3);
+				skip(box, version == 1 ? 16 : 8);
+				track.id = box.getInt();
+				skip(box, 4);
+				skip(box, version == 1 ? 8 : 4);
+				skip(box, 8 + 2 + 2 + 2 + 2);
+
+				//{ a b u, c d v, x y w }, a-d in 16.16
+				int a = box.getInt();
+				int b = box.getInt();
+				skip(box, 4);
+				skip(box, 4); //c
+				skip(box, 4); //d
+				skip(box, 4 * 4);
+
+				track.rotation = normalizeRotation((int) Math.round(Math.toDegrees(Math.atan2(b, a))));
+
+				int width = box.getInt() >> 16;
+				int height = box.getInt() >> 16;
+				if (width > 0 && height > 0)
+				{
+					track.width = width;
+					track.height = height;
+				}
+			}
+			else if (type.equals("edts"))
+			{
+				ByteBuffer elst;
+				while ((elst = nextBox(box)) != null)
+				{
+					if (mLastType.equals("elst"))
+						parseElst(elst, track);
+				}
+			}
+			else if (type.equals("mdia"))
+			{
+				parseMdia(box, track);
+			}
+		}
+	}
+
+	private void parseElst(ByteBuffer elst, Track track)
+	{
+		int version = elst.get();
+		skip(elst, 3);
+		long count = elst.getInt() & 0xffffffffL;
+
+		long total = 0;
+		for (long i = 0; i < count && elst.remaining() >= (version == 1 ? 20 : 12); i++)
+		{
+			long segmentDuration = version == 1 ? elst.getLong() : elst.getInt() & 0xffffffffL;
+			long mediaTime = version == 1 ? elst.getLong() : elst.getInt();
+			skip(elst, 4); //rate
+
+			//an empty edit (media time -1) only delays the track
+			if (mediaTime >= 0)
+			{
+				if (track.editMediaTime < 0)
+					track.editMediaTime = mediaTime;
+				total += segmentDuration;
+			}
+		}
+
+		if (total > 0)
+			track.editDuration = total;
+	}
+
+	private void parseMdia(ByteBuffer mdia, Track track)
+	{
+		ByteBuffer box;
+		while ((box = nextBox(mdia)) != null)
+		{
+			String type = mLastType;
+
+			if (type.equals("mdhd"))
+			{
+				int version = box.get();
+				skip(box, 3);
+				skip(box, version == 1 ? 16 : 8);
+				track.timescale = box.getInt() & 0xffffffffL;
+				track.duration = version == 1 ? box.getLong() : box.getInt() & 0xffffffffL;
+			}
+			else if (type.equals("hdlr"))
+			{
+				skip(box, 4 + 4);
+				track.handler = readType(box);
+			}
+			else if (type.equals("minf"))
+			{
+				ByteBuffer stbl;
+				while ((stbl = nextBox(box)) != null)
+				{
+					if (mLastType.equals("stbl"))
+						parseStbl(stbl, track);
+				}
+			}
+		}
+	}
+
+	private void parseStbl(ByteBuffer stbl, Track track)
+	{
+		ByteBuffer box;
+		while ((box = nextBox(stbl)) != null)
+		{
+			String type = mLastType;
+
+			if (type.equals("stsd"))
+			{
+				skip(box, 4);
+				if (box.getInt() > 0)
+				{
+					ByteBuffer entry = nextBox(box);
+					if (entry != null)
+						parseSampleEntry(entry, mLastType, track);
+				}
+			}
+			else if (type.equals("stts"))
+			{
+				track.stts = box.slice();
+				skip(box, 4);
+				long count = box.getInt() & 0xffffffffL;
+				long samples = 0;
+				for (long i = 0; i < count && box.remaining() >= 8; i++)
+				{
+					samples += box.getInt() & 0xffffffffL;
+					skip(box, 4);
+				}
+				if (track.sampleCount == 0)
+					track.sampleCount = samples;
+			}
+			else if (type.equals("stsz"))
+			{
+				track.stsz = box.slice();
+				skip(box, 4);
+				long sampleSize = box.getInt() & 0xffffffffL;
+				long count = box.getInt() & 0xffffffffL;
+
+				track.sampleCount = count;
+
+				if (sampleSize != 0)
+				{
+					track.sampleBytes = sampleSize * count;
+				}
+				else
+				{
+					long bytes = 0;
+					for (long i = 0; i < count && box.remaining() >= 4; i++)
+						bytes += box.getInt() & 0xffffffffL;
+					track.sampleBytes = bytes;
+				}
+			}
+			else if (type.equals("stss"))
+			{
+				track.stss = box.slice();
+				skip(box, 4);
+				track.syncSampleCount = box.getInt() & 0xffffffffL;
+			}
+			else if (type.equals("ctts"))
+			{
+				track.ctts = box.slice();
+			}
+			else if (type.equals("stsc"))
+			{
+				track.stsc = box.slice();
+			}
+			else if (type.equals("stco") || type.equals("co64"))
+			{
+				track.stco = box.slice();
+				track.largeChunkOffsets = type.equals("co64");
+			}
+		}
+	}
+
+	private void parseSampleEntry(ByteBuffer entry, String fourcc, Track track)
+	{
+		track.fourcc = fourcc;
+
+		String codec = sCodecNames.get(fourcc);
+		track.codec = codec != null ? codec : fourcc.trim();
+
+		skip(entry, 6 + 2); //reserved, data reference index
+
+		if (track.isVideo())
+		{
+			skip(entry, 2 + 2 + 12);
+			int width = entry.getShort() & 0xffff;
+			int height = entry.getShort() & 0xffff;
+
+			//tkhd holds the display size, prefer the coded size
+			if (width > 0 && height > 0)
+			{
+				track.width = width;
+				track.height = height;
+			}
+
+			//resolution, reserved, frame count, compressor name, depth, pre-defined
+			skip(entry, 4 + 4 + 4 + 2 + 32 + 2 + 2);
+
+			if (fourcc.equals("avc1") || fourcc.equals("avc3"))
+			{
+				ByteBuffer child;
+				while ((child = nextBox(entry)) != null)
+				{
+					if (mLastType.equals("avcC"))
+						parseAvcC(child, track);
+				}
+			}
+		}
+		else if (track.isAudio())
+		{
+			int version = entry.getShort();
+			skip(entry, 2 + 4);
+			track.channels = entry.getShort() & 0xffff;
+			skip(entry, 2 + 2 + 2);
+			track.sampleRate = (int) ((entry.getInt() & 0xffffffffL) >> 16);
+
+			//QuickTime sound description v1/v2 carry extra fields before the child boxes
+			if (version == 1)
+			{
+				skip(entry, 16);
+			}
+			else if (version == 2)
+			{
+				skip(entry, 4);
+				double rate = Double.longBitsToDouble(entry.getLong());
+				track.sampleRate = (int) rate;
+				track.channels = entry.getInt();
+				skip(entry, 20);
+			}
+
+			if (fourcc.equals("mp4a"))
+			{
+				ByteBuffer child;
+				while ((child = nextBox(entry)) != null)
+				{
+					if (mLastType.equals("esds"))
+						parseEsds(child, track);
+					else if (mLastType.equals("wave"))
+					{
+						ByteBuffer inner;
+						while ((inner = nextBox(child)) != null)
+						{
+							if (mLastType.equals("esds"))
+								parseEsds(inner, track);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The decoder configuration record: profile and level up front, then the
+	 * parameter sets, and for the high profiles the chroma format and bit
+	 * depth after them.
+	 */
+	private static void parseAvcC(ByteBuffer avcC, Track track)
+	{
+		if (avcC.remaining() < 6)
+			return;
+
+		skip(avcC, 1); //configurationVersion
+		track.profile = avcC.get() & 0xff;
+		track.profileCompatibility = avcC.get() & 0xff;
+		track.level = avcC.get() & 0xff;
+		skip(avcC, 1); //NAL length size
+
+		int spsCount = avcC.get() & 0x1f;
+		for (int i = 0; i < spsCount; i++)
+		{
+			if (avcC.remaining() < 2)
+				return;
+			skip(avcC, avcC.getShort() & 0xffff);
+		}
+
+		if (avcC.remaining() < 1)
+			return;
+
+		int ppsCount = avcC.get() & 0xff;
+		for (int i = 0; i < ppsCount; i++)
+		{
+			if (avcC.remaining() < 2)
+				return;
+			skip(avcC, avcC.getShort() & 0xffff);
+		}
+
+		boolean highProfile = track.profile == 100 || track.profile == 110 || track.profile == 122 || track.profile == 144;
+
+		if (highProfile && avcC.remaining() >= 3)
+		{
+			int chroma = avcC.get() & 0x03;
+			int depth = 8 + (avcC.get() & 0x07);
+			String[] names = { "gray", "yuv420p", "yuv422p", "yuv444p" };
+			track.pixelFormat = depth == 8 ? names[chroma] : names[chroma] + depth + "le";
+		}
+		else if (!highProfile || track.profile == 100)
+		{
+			//below High 10 the pictures are always 8 bit 4:2:0
+			track.pixelFormat = "yuv420p";
+		}
+	}
+
+	/**
+	 * @return ffmpeg's name for an H.264 profile_idc, or null for one it is
+	 * not worth telling apart
+	 */
+	static String profileName(int profile, int compatibility)
+	{
+		switch (profile)
+		{
+			case 66: return (compatibility & 0x40) != 0 ? "Constrained Baseline" : "Baseline";
+			case 77: return "Main";
+			case 88: return "Extended";
+			case 100: return "High";
+			case 110: return (compatibility & 0x10) != 0 ? "High 10 Intra" : "High 10";
+			case 122: return (compatibility & 0x10) != 0 ? "High 4:2:2 Intra" : "High 4:2:2";
+			case 244: return (compatibility & 0x10) != 0 ? "High 4:4:4 Intra" : "High 4:4:4 Predictive";
+			default: return null;
+		}
+	}
+
+	/**
+	 * mp4a covers more than AAC, the decoder config descriptor tells which.
+	 */
+	private static void parseEsds(ByteBuffer esds, Track track)
+	{
+		skip(esds, 4);
+
+		while (esds.remaining() > 2)
+		{
+			int tag = esds.get() & 0xff;
+			int length = readDescriptorLength(esds);
+
+			if (tag == 0x03) //ES_Descriptor
+			{
+				int flags;
+				skip(esds, 2);
+				flags = esds.get() & 0xff;
+				if ((flags & 0x80) != 0)
+					skip(esds, 2);
+				if ((flags & 0x40) != 0)
+					skip(esds, esds.get() & 0xff);
+				if ((flags & 0x20) != 0)
+					skip(esds, 2);
+			}
+			else if (tag == 0x04) //DecoderConfigDescriptor
+			{
+				int objectType = esds.get() & 0xff;
+				if (objectType == 0x69 || objectType == 0x6B)
+					track.codec = "mp3";
+				else if (objectType == 0xA5)
+					track.codec = "ac3";
+				return;
+			}
+			else
+			{
+				skip(esds, length);
+			}
+		}
+	}
+
+	private static int readDescriptorLength(ByteBuffer buf)
+	{
+		int length = 0;
+		for (int i = 0; i < 4 && buf.hasRemaining(); i++)
+		{
+			int b = buf.get() & 0xff;
+			length = (length << 7) | (b & 0x7f);
+			if ((b & 0x80) == 0)
+				break;
+		}
+		return length;
+	}
+
+	//type of the box last returned by nextBox
+	private String mLastType;
+
+	/**
+	 * Slices the next child box off the parent, leaving the parent positioned
+	 * after it.
+	 * @return the box contents without the header, or null at the end or on
+	 * a malformed box
+	 */
+	private ByteBuffer nextBox(ByteBuffer parent)
+	{
+		if (parent.remaining() < HEADER_SIZE)
+			return null;
+
+		int start = parent.position();
+		long size = parent.getInt() & 0xffffffffL;
+		mLastType = readType(parent);
+		int headerSize = HEADER_SIZE;
+
+		if (size == 1)
+		{
+			if (parent.remaining() < 8)
+				return null;
+			size = parent.getLong();
+			headerSize = 16;
+		}
+		else if (size == 0)
+		{
+			size = parent.limit() - start;
+		}
+
+		if (size < headerSize || size > parent.limit() - start)
+		{
+			parent.position(parent.limit());
+			return null;
+		}
+
+		ByteBuffer box = parent.duplicate();
+		box.position(start + headerSize);
+		box.limit(start + (int) size);
+		box = box.slice();
+
+		parent.position(start + (int) size);
+		return box;
+	}
+
+	private static String readType(ByteBuffer buf)
+	{
+		char[] type = new char[4];
+		for (int i = 0; i < 4; i++)
+			type[i] = (char) (buf.get() & 0xff);
+		return new String(type);
+	}
+
+	private static void skip(ByteBuffer buf, int count)
+	{
+		buf.position(Math.min(buf.limit(), buf.position() + count));
+	}
+
+	private static int normalizeRotation(int degrees)
+	{
+		return ((degrees % 360) + 360) % 360;
+	}
+
+	private static String formatFps(double fps)
+	{
+		if (Math.abs(fps - Math.round(fps)) < 0.01)
+			return Long.toString(Math.round(fps));
+
+		return String.format(Locale.US, "%.2f", fps);
+	}
+}
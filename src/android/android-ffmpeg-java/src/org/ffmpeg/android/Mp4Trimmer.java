@@ -0,0 +1,1016 @@
+package org.ffmpeg.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.ffmpeg.android.ShellUtils.ShellCallback;
+
+/**
+ * Cuts MP4/MOV files losslessly without running ffmpeg.
+ *
+ * The cut starts at the last video sync sample at or before the requested
+ * start, as a stream copy with ffmpeg would, and keeps the samples that decode
+ * before the requested end; every other track is cut to the same span. The
+ * sample tables (stts, ctts, stss, stsz, stsc, stco/co64) of the kept samples
+ * are rewritten into a new moov placed ahead of mdat, with an edit list that
+ * lines the tracks up, and the sample data is copied with
+ * FileChannel.transferTo, so media bytes never pass through the Java heap.
+ *
+ * trim() returns false for anything it cannot cut this way (not ISO base
+ * media, fragmented, tables it does not understand), so callers can fall back
+ * to ffmpeg.
+ */
+public class Mp4Trimmer {
+
+	private final static int HEADER_SIZE = 8;
+
+	//tables larger than this would not fit comfortably in memory
+	private final static long MAX_SAMPLES = 8 * 1024 * 1024;
+
+	//kept samples closer together than this are copied as one range, gap included
+	private final static long MERGE_GAP = 64 * 1024;
+
+	//bytes per transferTo call; cancellation and progress are checked in between
+	private final static long TRANSFER_CHUNK = 4 * 1024 * 1024;
+
+	//keyframes closer than this to the requested start count as a match, as in KeyframeIndex
+	private final static double EPSILON = 0.0005;
+
+	//per sample side tables; dropped rather than left describing the wrong samples
+	private final static HashSet<String> sDroppedBoxes = new HashSet<String>(Arrays.asList(
+			"sdtp", "sbgp", "sgpd", "stps", "subs", "saiz", "saio", "stdp", "padb", "stsh", "cslg"));
+
+	//the tables rebuilt for the kept samples
+	private final static HashSet<String> sSampleTables = new HashSet<String>(Arrays.asList(
+			"stts", "ctts", "stss", "stsz", "stsc", "stco", "co64"));
+
+	private static class Samples
+	{
+		Mp4Parser.Track track;
+		int count;
+		int[] sizes;
+		long[] offsets;
+		long[] times; //decode times
+		long lastDelta;
+		int[] cts; //composition offsets, null without ctts
+		boolean[] sync; //null without stss, every sample is a sync sample
+		int[] chunks; //chunk of each sample, 1 based
+		int[] chunkDescriptions; //sample description index of each chunk, by chunk
+
+		//kept samples are [first, end)
+		int first;
+		int end;
+		long mediaTime; //new media time the edit starts at
+		long emptyTime; //delay before the track starts, in media timescale units
+		long movieDuration; //edited duration, in movie timescale units
+
+		long delta(int i)
+		{
+			return i + 1 < count ? times[i + 1] - times[i] : lastDelta;
+		}
+
+		boolean isSync(int i)
+		{
+			return sync == null || sync[i];
+		}
+
+		long shift()
+		{
+			return track.editMediaTime > 0 ? track.editMediaTime : 0;
+		}
+
+		long presentation(int i)
+		{
+			return times[i] + (cts != null ? cts[i] : 0) - shift();
+		}
+
+		long keptDuration()
+		{
+			return times[end - 1] - times[first] + delta(end - 1);
+		}
+
+		//end of the last presented kept sample, in new media time
+		long presentationEnd()
+		{
+			long max = 0;
+			for (int i = first; i < end; i++)
+				max = Math.max(max, times[i] - times[first] + (cts != null ? cts[i] : 0) + delta(i));
+			return max;
+		}
+	}
+
+	private final Mp4Parser mMovie;
+	private final ArrayList<Samples> mKept = new ArrayList<Samples>();
+	private final HashMap<Integer, Samples> mKeptById = new HashMap<Integer, Samples>();
+
+	//source ranges copied into mdat, and where each lands in the mdat payload
+	private long[] mSpanStarts;
+	private long[] mSpanEnds;
+	private long[] mSpanTargets;
+	private long mPayload;
+
+	private boolean mLargeOffsets;
+	private long mDataOffset; //file offset of the mdat payload in the output
+
+	private byte[] mFtyp = new byte[0];
+	private byte[] mMoov;
+
+	//type of the box last returned by nextBox
+	private String mLastType;
+
+	private Mp4Trimmer(Mp4Parser movie)
+	{
+		mMovie = movie;
+	}
+
+	/**
+	 * Writes the movie from the last video keyframe at or before start up to
+	 * start + duration to out.
+	 * @param duration seconds to keep, 0 or less for the rest of the movie
+	 * @param group stops the copy when cancelled, may be null
+	 * @param sc gets copy progress if it is a ProgressCallback, may be null
+	 * @return false if the input cannot be cut this way; nothing is written then
+	 */
+	public static boolean trim(File in, double start, double duration, File out,
+			ProcessGroup group, ShellCallback sc) throws IOException
+	{
+		if (Double.isNaN(start) || start < 0)
+			return false;
+
+		Mp4Parser movie = Mp4Parser.parse(in);
+		if (movie == null || movie.moovOffset < 0 || movie.timescale <= 0)
+			return false;
+
+		RandomAccessFile raf = new RandomAccessFile(in, "r");
+
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			Mp4Trimmer trimmer = new Mp4Trimmer(movie);
+
+			try {
+				if (!trimmer.select(start, duration) || !trimmer.prepare(channel))
+					return false;
+			} catch (BufferUnderflowException e) {
+				return false; //a table shorter than its entry count says
+			}
+
+			boolean written = false;
+			try {
+				trimmer.write(channel, out, group, sc);
+				written = true;
+			} finally {
+				if (!written)
+					out.delete();
+			}
+			return true;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Picks the samples to keep in every track.
+	 */
+	private boolean select(double start, double duration)
+	{
+		Samples ref = null;
+
+		for (Mp4Parser.Track track : mMovie.tracks)
+		{
+			if (track.timescale <= 0)
+				return false;
+
+			Samples samples = readSamples(track);
+			if (samples == null)
+				return false;
+
+			if (samples.count > 0)
+			{
+				mKept.add(samples);
+				if (ref == null || (track.isVideo() && !ref.track.isVideo()))
+					ref = samples;
+			}
+		}
+
+		if (ref == null)
+			return false;
+
+		double movieSeconds = mMovie.duration / (double) mMovie.timescale;
+		if (movieSeconds > 0 && start >= movieSeconds)
+			return false;
+
+		//the last sync sample presented at or before the start
+		long startTicks = (long) Math.floor((start + EPSILON) * ref.track.timescale);
+		int first = -1;
+		for (int i = 0; i < ref.count; i++)
+		{
+			if (ref.isSync(i) && (first < 0 || ref.presentation(i) <= startTicks))
+				first = i;
+		}
+
+		if (first < 0)
+			return false;
+
+		double cutStart = Math.max(0, ref.presentation(first)) / (double) ref.track.timescale;
+		double cutEnd = duration > 0 ? start + duration : Double.POSITIVE_INFINITY;
+		if (cutEnd <= cutStart)
+			return false;
+
+		ArrayList<Samples> tracks = new ArrayList<Samples>(mKept);
+		mKept.clear();
+
+		for (Samples samples : tracks)
+		{
+			long timescale = samples.track.timescale;
+
+			if (samples == ref)
+			{
+				//a prefix in decode order from a sync sample always decodes
+				samples.first = first;
+				samples.end = first;
+				long span = Double.isInfinite(cutEnd) ? Long.MAX_VALUE
+						: (long) Math.ceil(cutEnd * timescale) - ref.presentation(first);
+				while (samples.end < samples.count && samples.times[samples.end] - samples.times[first] < span)
+					samples.end++;
+			}
+			else
+			{
+				long from = Math.round(cutStart * timescale) + samples.shift();
+				samples.first = Math.max(0, upperBound(samples.times, samples.count, from) - 1);
+				while (samples.first > 0 && !samples.isSync(samples.first))
+					samples.first--;
+
+				samples.end = Double.isInfinite(cutEnd) ? samples.count
+						: upperBound(samples.times, samples.count, (long) Math.ceil(cutEnd * timescale) + samples.shift() - 1);
+			}
+
+			if (samples.end <= samples.first)
+				continue; //nothing of this track in the span
+
+			long mediaTime = Math.round(cutStart * timescale) + samples.shift() - samples.times[samples.first];
+			samples.mediaTime = Math.max(0, mediaTime);
+			samples.emptyTime = Math.max(0, -mediaTime);
+
+			long presented = samples.presentationEnd() - samples.mediaTime;
+			if (presented <= 0)
+				continue;
+
+			samples.movieDuration = scale(samples.emptyTime, timescale) + scale(presented, timescale);
+
+			mKept.add(samples);
+			mKeptById.put(samples.track.id, samples);
+		}
+
+		return mKeptById.get(ref.track.id) == ref;
+	}
+
+	/**
+	 * Lays out the kept sample data and builds the new moov.
+	 */
+	private boolean prepare(FileChannel channel) throws IOException
+	{
+		int total = 0;
+		for (Samples samples : mKept)
+			total += samples.end - samples.first;
+
+		//the union of the kept samples, computed from sorted starts and ends
+		long[] starts = new long[total];
+		long[] ends = new long[total];
+		int n = 0;
+		for (Samples samples : mKept)
+		{
+			for (int i = samples.first; i < samples.end; i++)
+			{
+				if (samples.offsets[i] + samples.sizes[i] > mMovie.fileLength)
+					return false; //truncated file
+
+				starts[n] = samples.offsets[i];
+				ends[n] = samples.offsets[i] + samples.sizes[i] + MERGE_GAP;
+				n++;
+			}
+		}
+		Arrays.sort(starts);
+		Arrays.sort(ends);
+
+		ArrayList<long[]> spans = new ArrayList<long[]>();
+		int open = 0;
+		long spanStart = 0;
+		for (int i = 0, j = 0; j < total; )
+		{
+			if (i < total && starts[i] <= ends[j])
+			{
+				if (open++ == 0)
+					spanStart = starts[i];
+				i++;
+			}
+			else
+			{
+				if (--open == 0)
+					spans.add(new long[] { spanStart, ends[j] - MERGE_GAP });
+				j++;
+			}
+		}
+
+		mSpanStarts = new long[spans.size()];
+		mSpanEnds = new long[spans.size()];
+		mSpanTargets = new long[spans.size()];
+		mPayload = 0;
+		for (int i = 0; i < spans.size(); i++)
+		{
+			mSpanStarts[i] = spans.get(i)[0];
+			mSpanEnds[i] = spans.get(i)[1];
+			mSpanTargets[i] = mPayload;
+			mPayload += mSpanEnds[i] - mSpanStarts[i];
+		}
+
+		if (mMovie.ftypOffset >= 0)
+		{
+			if (mMovie.ftypSize > 4096)
+				return false;
+
+			ByteBuffer ftyp = ByteBuffer.allocate((int) mMovie.ftypSize);
+			while (ftyp.hasRemaining() && channel.read(ftyp, mMovie.ftypOffset + ftyp.position()) > 0);
+			if (ftyp.hasRemaining())
+				return false;
+			mFtyp = ftyp.array();
+		}
+
+		//a 64 bit size field is allowed on any box, not only on large ones
+		int moovHeader = mMovie.moovHeaderSize;
+		ByteBuffer moov = channel.map(FileChannel.MapMode.READ_ONLY,
+				mMovie.moovOffset + moovHeader, mMovie.moovSize - moovHeader);
+
+		//the new moov is never much larger than the old one
+		mLargeOffsets = mFtyp.length + 2 * mMovie.moovSize + 2 * MERGE_GAP + mPayload > 0xffffffffL;
+
+		//the table sizes do not depend on the offsets, so a first pass gives the moov size
+		mDataOffset = 0;
+		byte[] sized = buildMoov(moov);
+		if (sized == null)
+			return false;
+		int moovSize = sized.length;
+
+		mDataOffset = mFtyp.length + moovSize + mdatHeaderSize();
+		mMoov = buildMoov(moov);
+
+		return mMoov != null && mMoov.length == moovSize;
+	}
+
+	private int mdatHeaderSize()
+	{
+		return mPayload + HEADER_SIZE > 0xffffffffL ? 16 : HEADER_SIZE;
+	}
+
+	private void write(FileChannel in, File out, ProcessGroup group, ShellCallback sc) throws IOException
+	{
+		ProgressCallback progress = sc instanceof ProgressCallback ? (ProgressCallback) sc : null;
+		long durationUs = mMovie.timescale > 0 ? movieDuration() * 1000000L / mMovie.timescale : -1;
+		long startedMs = System.currentTimeMillis();
+
+		FileOutputStream stream = new FileOutputStream(out);
+
+		try
+		{
+			FileChannel channel = stream.getChannel();
+
+			writeFully(channel, ByteBuffer.wrap(mFtyp));
+			writeFully(channel, ByteBuffer.wrap(mMoov));
+
+			ByteBuffer header = ByteBuffer.allocate(mdatHeaderSize());
+			if (header.capacity() == 16)
+			{
+				header.putInt(1);
+				putType(header, "mdat");
+				header.putLong(mPayload + 16);
+			}
+			else
+			{
+				header.putInt((int) (mPayload + HEADER_SIZE));
+				putType(header, "mdat");
+			}
+			header.flip();
+			writeFully(channel, header);
+
+			long copied = 0;
+			for (int i = 0; i < mSpanStarts.length; i++)
+			{
+				long position = mSpanStarts[i];
+				while (position < mSpanEnds[i])
+				{
+					if (group != null)
+						group.check();
+
+					long count = in.transferTo(position, Math.min(TRANSFER_CHUNK, mSpanEnds[i] - position), channel);
+					if (count <= 0)
+						throw new IOException("could not copy sample data at " + position);
+
+					position += count;
+					copied += count;
+
+					if (progress != null && copied < mPayload)
+					{
+						ProgressEvent event = new ProgressEvent();
+						event.durationUs = durationUs;
+						event.totalSize = mDataOffset + copied;
+						event.percent = copied * 100d / mPayload;
+						event.etaMs = (System.currentTimeMillis() - startedMs) * (mPayload - copied) / copied;
+						progress.progress(event);
+					}
+				}
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+
+		if (progress != null)
+		{
+			ProgressEvent event = new ProgressEvent();
+			event.durationUs = durationUs;
+			event.outTimeUs = durationUs;
+			event.totalSize = mDataOffset + mPayload;
+			event.percent = 100;
+			event.etaMs = 0;
+			event.done = true;
+			progress.progress(event);
+		}
+	}
+
+	private long movieDuration()
+	{
+		long duration = 0;
+		for (Samples samples : mKept)
+			duration = Math.max(duration, samples.movieDuration);
+		return duration;
+	}
+
+	/**
+	 * @return the new moov, or null if it did not come out with a trak for
+	 * every kept track
+	 */
+	private byte[] buildMoov(ByteBuffer moov) throws IOException
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		ByteBuffer src = moov.duplicate();
+		ByteBuffer box;
+		int traks = 0;
+
+		while ((box = nextBox(src)) != null)
+		{
+			String type = mLastType;
+
+			if (type.equals("mvhd"))
+			{
+				writeBox(body, type, patchDuration(box, 16, 24, movieDuration()));
+			}
+			else if (type.equals("trak"))
+			{
+				Samples samples = mKeptById.get(trackId(box));
+				if (samples != null)
+				{
+					writeBox(body, type, buildTrak(box, samples));
+					traks++;
+				}
+			}
+			else
+			{
+				writeBox(body, type, bytes(box));
+			}
+		}
+
+		if (traks != mKept.size())
+			return null;
+
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		writeBox(result, "moov", body.toByteArray());
+		return result.toByteArray();
+	}
+
+	private byte[] buildTrak(ByteBuffer trak, Samples samples) throws IOException
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		ByteBuffer box;
+
+		while ((box = nextBox(trak)) != null)
+		{
+			String type = mLastType;
+
+			if (type.equals("tkhd"))
+			{
+				writeBox(body, type, patchDuration(box, 20, 28, samples.movieDuration));
+
+				ByteArrayOutputStream edts = new ByteArrayOutputStream();
+				writeBox(edts, "elst", buildElst(samples));
+				writeBox(body, "edts", edts.toByteArray());
+			}
+			else if (type.equals("edts"))
+			{
+				//replaced above
+			}
+			else if (type.equals("mdia") || type.equals("minf"))
+			{
+				writeBox(body, type, buildTrak(box, samples));
+			}
+			else if (type.equals("mdhd"))
+			{
+				writeBox(body, type, patchDuration(box, 16, 24, samples.keptDuration()));
+			}
+			else if (type.equals("stbl"))
+			{
+				writeBox(body, type, buildStbl(box, samples));
+			}
+			else
+			{
+				writeBox(body, type, bytes(box));
+			}
+		}
+
+		return body.toByteArray();
+	}
+
+	private byte[] buildStbl(ByteBuffer stbl, Samples samples) throws IOException
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		boolean tablesWritten = false;
+		ByteBuffer box;
+
+		while ((box = nextBox(stbl)) != null)
+		{
+			String type = mLastType;
+
+			if (sSampleTables.contains(type) || sDroppedBoxes.contains(type))
+				continue;
+
+			writeBox(body, type, bytes(box));
+
+			if (type.equals("stsd"))
+			{
+				writeSampleTables(body, samples);
+				tablesWritten = true;
+			}
+		}
+
+		if (!tablesWritten)
+			writeSampleTables(body, samples);
+
+		return body.toByteArray();
+	}
+
+	private void writeSampleTables(ByteArrayOutputStream out, Samples samples) throws IOException
+	{
+		int first = samples.first;
+		int end = samples.end;
+
+		//stts
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(entries);
+		int count = 0;
+		for (int i = first; i < end; )
+		{
+			long delta = samples.delta(i);
+			int run = 1;
+			while (i + run < end && samples.delta(i + run) == delta)
+				run++;
+			data.writeInt(run);
+			data.writeInt((int) delta);
+			count++;
+			i += run;
+		}
+		writeBox(out, "stts", fullBox(0, count, entries));
+
+		//ctts
+		if (samples.cts != null)
+		{
+			entries = new ByteArrayOutputStream();
+			data = new DataOutputStream(entries);
+			count = 0;
+			for (int i = first; i < end; )
+			{
+				int run = 1;
+				while (i + run < end && samples.cts[i + run] == samples.cts[i])
+					run++;
+				data.writeInt(run);
+				data.writeInt(samples.cts[i]);
+				count++;
+				i += run;
+			}
+			writeBox(out, "ctts", fullBox(samples.track.ctts.get(0), count, entries));
+		}
+
+		//stss
+		if (samples.sync != null)
+		{
+			entries = new ByteArrayOutputStream();
+			data = new DataOutputStream(entries);
+			count = 0;
+			for (int i = first; i < end; i++)
+			{
+				if (samples.sync[i])
+				{
+					data.writeInt(i - first + 1);
+					count++;
+				}
+			}
+			writeBox(out, "stss", fullBox(0, count, entries));
+		}
+
+		//stsz, with a single size when all kept samples share it
+		boolean fixed = true;
+		for (int i = first + 1; i < end && fixed; i++)
+			fixed = samples.sizes[i] == samples.sizes[first];
+
+		entries = new ByteArrayOutputStream();
+		data = new DataOutputStream(entries);
+		data.writeInt(0);
+		data.writeInt(fixed ? samples.sizes[first] : 0);
+		data.writeInt(end - first);
+		if (!fixed)
+		{
+			for (int i = first; i < end; i++)
+				data.writeInt(samples.sizes[i]);
+		}
+		writeBox(out, "stsz", entries.toByteArray());
+
+		//chunks follow the original ones, minus the samples cut off their ends
+		int maxChunks = end - first;
+		long[] chunkOffsets = new long[maxChunks];
+		int[] chunkSamples = new int[maxChunks];
+		int[] chunkDescriptions = new int[maxChunks];
+		int chunks = 0;
+		for (int i = first; i < end; i++)
+		{
+			if (i == first || samples.chunks[i] != samples.chunks[i - 1])
+			{
+				chunkOffsets[chunks] = mDataOffset + mapOffset(samples.offsets[i]);
+				chunkDescriptions[chunks] = samples.chunkDescriptions[samples.chunks[i]];
+				chunks++;
+			}
+			chunkSamples[chunks - 1]++;
+		}
+
+		//stsc
+		entries = new ByteArrayOutputStream();
+		data = new DataOutputStream(entries);
+		count = 0;
+		for (int c = 0; c < chunks; c++)
+		{
+			if (c == 0 || chunkSamples[c] != chunkSamples[c - 1] || chunkDescriptions[c] != chunkDescriptions[c - 1])
+			{
+				data.writeInt(c + 1);
+				data.writeInt(chunkSamples[c]);
+				data.writeInt(chunkDescriptions[c]);
+				count++;
+			}
+		}
+		writeBox(out, "stsc", fullBox(0, count, entries));
+
+		//stco or co64
+		entries = new ByteArrayOutputStream();
+		data = new DataOutputStream(entries);
+		for (int c = 0; c < chunks; c++)
+		{
+			if (mLargeOffsets)
+				data.writeLong(chunkOffsets[c]);
+			else
+				data.writeInt((int) chunkOffsets[c]);
+		}
+		writeBox(out, mLargeOffsets ? "co64" : "stco", fullBox(0, chunks, entries));
+	}
+
+	private byte[] buildElst(Samples samples) throws IOException
+	{
+		long timescale = samples.track.timescale;
+		long empty = scale(samples.emptyTime, timescale);
+		long segment = samples.movieDuration - empty;
+
+		boolean large = samples.movieDuration > 0xffffffffL || samples.mediaTime > Integer.MAX_VALUE;
+
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(entries);
+		int count = 0;
+
+		if (empty > 0)
+		{
+			writeEdit(data, large, empty, -1);
+			count++;
+		}
+		writeEdit(data, large, segment, samples.mediaTime);
+		count++;
+
+		return fullBox(large ? 1 : 0, count, entries);
+	}
+
+	private static void writeEdit(DataOutputStream data, boolean large, long duration, long mediaTime) throws IOException
+	{
+		if (large)
+		{
+			data.writeLong(duration);
+			data.writeLong(mediaTime);
+		}
+		else
+		{
+			data.writeInt((int) duration);
+			data.writeInt((int) mediaTime);
+		}
+		data.writeInt(0x00010000); //rate 1.0
+	}
+
+	/**
+	 * Expands the sample tables of a track into per sample arrays.
+	 * @return the samples, or null if the tables are missing or inconsistent
+	 */
+	private static Samples readSamples(Mp4Parser.Track track)
+	{
+		Samples samples = new Samples();
+		samples.track = track;
+
+		if (track.stsz == null)
+			return track.sampleCount == 0 ? samples : null;
+
+		if (track.stts == null || track.stsc == null || track.stco == null)
+			return null;
+
+		ByteBuffer stsz = track.stsz.duplicate();
+		stsz.position(4);
+		long fixedSize = stsz.getInt() & 0xffffffffL;
+		long sampleCount = stsz.getInt() & 0xffffffffL;
+
+		if (sampleCount > MAX_SAMPLES || fixedSize > Integer.MAX_VALUE)
+			return null;
+
+		int count = (int) sampleCount;
+		samples.count = count;
+		if (count == 0)
+			return samples;
+
+		samples.sizes = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			samples.sizes[i] = fixedSize != 0 ? (int) fixedSize : stsz.getInt();
+			if (samples.sizes[i] < 0)
+				return null;
+		}
+
+		//decode times
+		ByteBuffer stts = track.stts.duplicate();
+		stts.position(4);
+		long entries = stts.getInt() & 0xffffffffL;
+		samples.times = new long[count];
+		int n = 0;
+		long time = 0;
+		for (long e = 0; e < entries && n < count; e++)
+		{
+			long run = stts.getInt() & 0xffffffffL;
+			long delta = stts.getInt() & 0xffffffffL;
+			for (long j = 0; j < run && n < count; j++)
+			{
+				samples.times[n++] = time;
+				time += delta;
+			}
+			samples.lastDelta = delta;
+		}
+		if (n < count)
+			return null;
+
+		//composition offsets
+		if (track.ctts != null)
+		{
+			ByteBuffer ctts = track.ctts.duplicate();
+			ctts.position(4);
+			entries = ctts.getInt() & 0xffffffffL;
+			samples.cts = new int[count];
+			n = 0;
+			for (long e = 0; e < entries && n < count; e++)
+			{
+				long run = ctts.getInt() & 0xffffffffL;
+				int offset = ctts.getInt();
+				for (long j = 0; j < run && n < count; j++)
+					samples.cts[n++] = offset;
+			}
+			if (n < count)
+				return null;
+		}
+
+		//sync samples
+		if (track.stss != null)
+		{
+			ByteBuffer stss = track.stss.duplicate();
+			stss.position(4);
+			entries = stss.getInt() & 0xffffffffL;
+			samples.sync = new boolean[count];
+			for (long e = 0; e < entries; e++)
+			{
+				long sample = stss.getInt() & 0xffffffffL;
+				if (sample >= 1 && sample <= count)
+					samples.sync[(int) sample - 1] = true;
+			}
+		}
+
+		//sample to chunk runs and chunk offsets give every sample's offset
+		ByteBuffer stsc = track.stsc.duplicate();
+		stsc.position(4);
+		int runs = stsc.getInt();
+		if (runs <= 0 || runs > count)
+			return null;
+
+		int[] firstChunks = new int[runs];
+		int[] perChunk = new int[runs];
+		int[] descriptions = new int[runs];
+		for (int r = 0; r < runs; r++)
+		{
+			firstChunks[r] = stsc.getInt();
+			perChunk[r] = stsc.getInt();
+			descriptions[r] = stsc.getInt();
+		}
+
+		ByteBuffer stco = track.stco.duplicate();
+		stco.position(4);
+		long chunkCount = stco.getInt() & 0xffffffffL;
+		if (chunkCount > count)
+			return null;
+
+		samples.offsets = new long[count];
+		samples.chunks = new int[count];
+		samples.chunkDescriptions = new int[(int) chunkCount + 1];
+		n = 0;
+		int r = 0;
+		for (int c = 1; c <= chunkCount && n < count; c++)
+		{
+			while (r + 1 < runs && firstChunks[r + 1] <= c)
+				r++;
+
+			long offset = track.largeChunkOffsets ? stco.getLong() : stco.getInt() & 0xffffffffL;
+			samples.chunkDescriptions[c] = descriptions[r];
+
+			for (int j = 0; j < perChunk[r] && n < count; j++)
+			{
+				samples.offsets[n] = offset;
+				samples.chunks[n] = c;
+				offset += samples.sizes[n];
+				n++;
+			}
+		}
+		if (n < count)
+			return null;
+
+		return samples;
+	}
+
+	private long mapOffset(long offset)
+	{
+		int idx = Arrays.binarySearch(mSpanStarts, offset);
+		if (idx < 0)
+			idx = -idx - 2;
+
+		return mSpanTargets[idx] + offset - mSpanStarts[idx];
+	}
+
+	/**
+	 * @return the first index in sorted values[0, count) holding more than value
+	 */
+	private static int upperBound(long[] values, int count, long value)
+	{
+		int low = 0;
+		int high = count;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (values[mid] <= value)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	//media timescale units to movie timescale units
+	private long scale(long value, long timescale)
+	{
+		return Math.round(value * (double) mMovie.timescale / timescale);
+	}
+
+	private int trackId(ByteBuffer trak)
+	{
+		ByteBuffer src = trak.duplicate();
+		ByteBuffer box;
+		while ((box = nextBox(src)) != null)
+		{
+			if (mLastType.equals("tkhd"))
+				return box.getInt(box.get(0) == 1 ? 20 : 12);
+		}
+		return -1;
+	}
+
+	/**
+	 * Copies a movie, track or media header with its duration replaced.
+	 */
+	private static byte[] patchDuration(ByteBuffer box, int offset, int offset64, long duration)
+	{
+		byte[] content = bytes(box);
+		ByteBuffer buf = ByteBuffer.wrap(content);
+
+		if (content[0] == 1)
+			buf.putLong(offset64, duration);
+		else
+			buf.putInt(offset, (int) Math.min(duration, 0xffffffffL));
+
+		return content;
+	}
+
+	private static byte[] fullBox(int version, int count, ByteArrayOutputStream entries) throws IOException
+	{
+		ByteArrayOutputStream content = new ByteArrayOutputStream(entries.size() + 8);
+		DataOutputStream data = new DataOutputStream(content);
+		data.writeInt(version << 24);
+		data.writeInt(count);
+		entries.writeTo(content);
+		return content.toByteArray();
+	}
+
+	private static void writeBox(ByteArrayOutputStream out, String type, byte[] content) throws IOException
+	{
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(HEADER_SIZE + content.length);
+		data.writeBytes(type);
+		data.write(content);
+	}
+
+	private static byte[] bytes(ByteBuffer box)
+	{
+		byte[] content = new byte[box.remaining()];
+		box.duplicate().get(content);
+		return content;
+	}
+
+	private static void putType(ByteBuffer buf, String type)
+	{
+		for (int i = 0; i < 4; i++)
+			buf.put((byte) type.charAt(i));
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException
+	{
+		while (buf.hasRemaining())
+			channel.write(buf);
+	}
+
+	/**
+	 * Slices the next child box off the parent, as Mp4Parser does.
+	 * @return the box contents without the header, or null at the end or on
+	 * a malformed box
+	 */
+	private ByteBuffer nextBox(ByteBuffer parent)
+	{
+		if (parent.remaining() < HEADER_SIZE)
+			return null;
+
+		int start = parent.position();
+		long size = parent.getInt() & 0xffffffffL;
+		char[] type = new char[4];
+		for (int i = 0; i < 4; i++)
+			type[i] = (char) (parent.get() & 0xff);
+		mLastType = new String(type);
+		int headerSize = HEADER_SIZE;
+
+		if (size == 1)
+		{
+			if (parent.remaining() < 8)
+				return null;
+			size = parent.getLong();
+			headerSize = 16;
+		}
+		else if (size == 0)
+		{
+			size = parent.limit() - start;
+		}
+
+		if (size < headerSize || size > parent.limit() - start)
+		{
+			parent.position(parent.limit());
+			return null;
+		}
+
+		ByteBuffer box = parent.duplicate();
+		box.position(start + headerSize);
+		box.limit(start + (int) size);
+		box = box.slice();
+
+		parent.position(start + (int) size);
+		return box;
+	}
+}
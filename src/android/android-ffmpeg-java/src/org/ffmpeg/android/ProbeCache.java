@@ -0,0 +1,536 @@
+package org.ffmpeg.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Remembers what getInfo found out about a file.
+ *
+ * Entries are keyed on the canonical path and stamped with the file's length
+ * and last modified time; an entry whose stamp no longer matches the file is
+ * dropped on lookup, so a changed file is always probed again. Recently used
+ * entries are kept in memory, and every entry is also written as a small
+ * properties file under the app's cache dir so probes survive restarts. Both
+ * tiers evict the least recently used entries once they are full.
+ *
+ * Keyframe indexes are cached the same way, next to the probe entries, in a
+ * compact binary file per path.
+ */
+public class ProbeCache {
+
+	private final static String TAG = "ProbeCache";
+
+	private final static String DIR_NAME = "probe";
+
+	private final static int MAX_MEMORY_ENTRIES = 64;
+	private final static int MAX_MEMORY_KEYFRAMES = 8;
+	private final static int MAX_DISK_ENTRIES = 512;
+
+	private final static String KEY_PATH = "path";
+	private final static String KEY_LENGTH = "length";
+	private final static String KEY_MODIFIED = "modified";
+	private final static String KEY_VERSION = "version";
+
+	//bumped when entries gain fields, so older ones are probed again
+	private final static String VERSION = "2";
+
+	private final static String KEYFRAMES_SUFFIX = ".kf";
+
+	private static ProbeCache sInstance;
+
+	private final File mDir;
+
+	private final LinkedHashMap<String, Entry> mMemory = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+		{
+			return size() > MAX_MEMORY_ENTRIES;
+		}
+	};
+
+	private final LinkedHashMap<String, KeyframeEntry> mKeyframes = new LinkedHashMap<String, KeyframeEntry>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, KeyframeEntry> eldest)
+		{
+			return size() > MAX_MEMORY_KEYFRAMES;
+		}
+	};
+
+	private long mMemoryHits = 0;
+	private long mDiskHits = 0;
+	private long mMisses = 0;
+
+	//keyframe lookups are counted apart from probes
+	private long mKeyframeMemoryHits = 0;
+	private long mKeyframeDiskHits = 0;
+	private long mKeyframeMisses = 0;
+
+	private static class Entry
+	{
+		long length;
+		long modified;
+		Clip info;
+	}
+
+	private static class KeyframeEntry
+	{
+		long length;
+		long modified;
+		KeyframeIndex index;
+	}
+
+	public static synchronized ProbeCache getInstance(Context context)
+	{
+		if (sInstance == null)
+			sInstance = new ProbeCache(new File(context.getCacheDir(), DIR_NAME));
+
+		return sInstance;
+	}
+
+	ProbeCache(File dir)
+	{
+		mDir = dir;
+	}
+
+	/**
+	 * Copies the cached probe of the file into the clip.
+	 * @return false on a miss, the clip is untouched then
+	 */
+	public synchronized boolean get(File file, Clip into) throws IOException
+	{
+		String path = file.getCanonicalPath();
+		long length = file.length();
+		long modified = file.lastModified();
+
+		Entry entry = mMemory.get(path);
+
+		if (entry != null && (entry.length != length || entry.modified != modified))
+		{
+			mMemory.remove(path);
+			entry = null;
+		}
+
+		if (entry != null)
+		{
+			mMemoryHits++;
+		}
+		else
+		{
+			entry = readEntry(path, length, modified);
+
+			if (entry == null)
+			{
+				mMisses++;
+				return false;
+			}
+
+			mDiskHits++;
+			mMemory.put(path, entry);
+		}
+
+		copyInfo(entry.info, into);
+		return true;
+	}
+
+	/**
+	 * Stores the probed fields of the clip for the file.
+	 */
+	public synchronized void put(File file, Clip info) throws IOException
+	{
+		Entry entry = new Entry();
+		entry.length = file.length();
+		entry.modified = file.lastModified();
+		entry.info = new Clip();
+		copyInfo(info, entry.info);
+
+		String path = file.getCanonicalPath();
+		mMemory.put(path, entry);
+
+		writeEntry(path, entry);
+	}
+
+	/**
+	 * @return the cached keyframe index of the file, or null on a miss
+	 */
+	public synchronized KeyframeIndex getKeyframes(File file) throws IOException
+	{
+		String path = file.getCanonicalPath();
+		long length = file.length();
+		long modified = file.lastModified();
+
+		KeyframeEntry entry = mKeyframes.get(path);
+
+		if (entry != null && (entry.length != length || entry.modified != modified))
+		{
+			mKeyframes.remove(path);
+			entry = null;
+		}
+
+		if (entry != null)
+		{
+			mKeyframeMemoryHits++;
+			return entry.index;
+		}
+
+		entry = readKeyframes(path, length, modified);
+
+		if (entry == null)
+		{
+			mKeyframeMisses++;
+			return null;
+		}
+
+		mKeyframeDiskHits++;
+		mKeyframes.put(path, entry);
+		return entry.index;
+	}
+
+	public synchronized void putKeyframes(File file, KeyframeIndex index) throws IOException
+	{
+		KeyframeEntry entry = new KeyframeEntry();
+		entry.length = file.length();
+		entry.modified = file.lastModified();
+		entry.index = index;
+
+		String path = file.getCanonicalPath();
+		mKeyframes.put(path, entry);
+
+		writeKeyframes(path, entry);
+	}
+
+	public synchronized long getHitCount()
+	{
+		return mMemoryHits + mDiskHits;
+	}
+
+	public synchronized long getDiskHitCount()
+	{
+		return mDiskHits;
+	}
+
+	public synchronized long getMissCount()
+	{
+		return mMisses;
+	}
+
+	public synchronized long getKeyframeHitCount()
+	{
+		return mKeyframeMemoryHits + mKeyframeDiskHits;
+	}
+
+	public synchronized long getKeyframeDiskHitCount()
+	{
+		return mKeyframeDiskHits;
+	}
+
+	public synchronized long getKeyframeMissCount()
+	{
+		return mKeyframeMisses;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "ProbeCache[memory hits=" + mMemoryHits + ", disk hits=" + mDiskHits + ", misses=" + mMisses
+				+ ", keyframe memory hits=" + mKeyframeMemoryHits + ", keyframe disk hits=" + mKeyframeDiskHits
+				+ ", keyframe misses=" + mKeyframeMisses + "]";
+	}
+
+	private Entry readEntry(String path, long length, long modified)
+	{
+		File fileEntry = entryFile(path);
+		if (!fileEntry.exists())
+			return null;
+
+		Properties props = new Properties();
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(fileEntry);
+			props.load(in);
+		} catch (IOException e) {
+			Log.w(TAG, "ignoring unreadable entry " + fileEntry + ": " + e.getLocalizedMessage());
+			fileEntry.delete();
+			return null;
+		} finally {
+			if (in != null) {
+				try { in.close(); } catch (IOException e) {}
+			}
+		}
+
+		//a different file with the same hash, an entry from an older version, or the file changed since
+		if (!path.equals(props.getProperty(KEY_PATH))
+				|| !VERSION.equals(props.getProperty(KEY_VERSION))
+				|| length != getLong(props, KEY_LENGTH)
+				|| modified != getLong(props, KEY_MODIFIED))
+		{
+			fileEntry.delete();
+			return null;
+		}
+
+		Entry entry = new Entry();
+		entry.length = length;
+		entry.modified = modified;
+		entry.info = new Clip();
+
+		Clip info = entry.info;
+		info.duration = getDouble(props, "duration");
+		info.bitrate = (int) getLong(props, "bitrate");
+		info.mimeType = props.getProperty("mimeType");
+		info.videoCodec = props.getProperty("videoCodec");
+		info.videoFps = props.getProperty("videoFps");
+		info.videoBitrate = (int) getLong(props, "videoBitrate");
+		info.width = (int) getLong(props, "width");
+		info.height = (int) getLong(props, "height");
+		info.rotation = Math.max(0, (int) getLong(props, "rotation"));
+		info.keyframeInterval = getDouble(props, "keyframeInterval");
+		info.videoProfile = props.getProperty("videoProfile");
+		info.videoLevel = (int) getLong(props, "videoLevel");
+		info.pixelFormat = props.getProperty("pixelFormat");
+		info.audioCodec = props.getProperty("audioCodec");
+		info.audioChannels = (int) getLong(props, "audioChannels");
+		info.audioBitrate = (int) getLong(props, "audioBitrate");
+		info.audioSampleRate = (int) getLong(props, "audioSampleRate");
+
+		//keeps the most recently used entries when trimming
+		fileEntry.setLastModified(System.currentTimeMillis());
+
+		return entry;
+	}
+
+	private void writeEntry(String path, Entry entry)
+	{
+		Clip info = entry.info;
+
+		Properties props = new Properties();
+		props.setProperty(KEY_PATH, path);
+		props.setProperty(KEY_LENGTH, Long.toString(entry.length));
+		props.setProperty(KEY_MODIFIED, Long.toString(entry.modified));
+		props.setProperty(KEY_VERSION, VERSION);
+		props.setProperty("duration", Double.toString(info.duration));
+		props.setProperty("bitrate", Integer.toString(info.bitrate));
+		setIfPresent(props, "mimeType", info.mimeType);
+		setIfPresent(props, "videoCodec", info.videoCodec);
+		setIfPresent(props, "videoFps", info.videoFps);
+		props.setProperty("videoBitrate", Integer.toString(info.videoBitrate));
+		props.setProperty("width", Integer.toString(info.width));
+		props.setProperty("height", Integer.toString(info.height));
+		props.setProperty("rotation", Integer.toString(info.rotation));
+		props.setProperty("keyframeInterval", Double.toString(info.keyframeInterval));
+		setIfPresent(props, "videoProfile", info.videoProfile);
+		props.setProperty("videoLevel", Integer.toString(info.videoLevel));
+		setIfPresent(props, "pixelFormat", info.pixelFormat);
+		setIfPresent(props, "audioCodec", info.audioCodec);
+		props.setProperty("audioChannels", Integer.toString(info.audioChannels));
+		props.setProperty("audioBitrate", Integer.toString(info.audioBitrate));
+		props.setProperty("audioSampleRate", Integer.toString(info.audioSampleRate));
+
+		if (!mDir.exists() && !mDir.mkdirs())
+			return;
+
+		File fileEntry = entryFile(path);
+		File fileTmp = new File(fileEntry.getPath() + ".tmp");
+
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(fileTmp);
+			props.store(out, null);
+			out.close();
+			out = null;
+
+			if (!fileTmp.renameTo(fileEntry))
+				fileTmp.delete();
+		} catch (IOException e) {
+			Log.w(TAG, "unable to write entry " + fileEntry + ": " + e.getLocalizedMessage());
+			fileTmp.delete();
+		} finally {
+			if (out != null) {
+				try { out.close(); } catch (IOException e) {}
+			}
+		}
+
+		trimDisk();
+	}
+
+	/**
+	 * Layout: path (UTF), length, modified, count, count doubles.
+	 */
+	private KeyframeEntry readKeyframes(String path, long length, long modified)
+	{
+		File fileEntry = new File(mDir, sha1(path) + KEYFRAMES_SUFFIX);
+		if (!fileEntry.exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileEntry)));
+
+			if (!path.equals(in.readUTF()) || length != in.readLong() || modified != in.readLong())
+			{
+				fileEntry.delete();
+				return null;
+			}
+
+			double[] times = new double[in.readInt()];
+			for (int i = 0; i < times.length; i++)
+				times[i] = in.readDouble();
+
+			KeyframeEntry entry = new KeyframeEntry();
+			entry.length = length;
+			entry.modified = modified;
+			entry.index = new KeyframeIndex(times);
+
+			fileEntry.setLastModified(System.currentTimeMillis());
+			return entry;
+		} catch (IOException e) {
+			Log.w(TAG, "ignoring unreadable entry " + fileEntry + ": " + e.getLocalizedMessage());
+			fileEntry.delete();
+			return null;
+		} finally {
+			if (in != null) {
+				try { in.close(); } catch (IOException e) {}
+			}
+		}
+	}
+
+	private void writeKeyframes(String path, KeyframeEntry entry)
+	{
+		if (!mDir.exists() && !mDir.mkdirs())
+			return;
+
+		File fileEntry = new File(mDir, sha1(path) + KEYFRAMES_SUFFIX);
+		File fileTmp = new File(fileEntry.getPath() + ".tmp");
+
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileTmp)));
+			out.writeUTF(path);
+			out.writeLong(entry.length);
+			out.writeLong(entry.modified);
+			out.writeInt(entry.index.size());
+			for (int i = 0; i < entry.index.size(); i++)
+				out.writeDouble(entry.index.get(i));
+			out.close();
+			out = null;
+
+			if (!fileTmp.renameTo(fileEntry))
+				fileTmp.delete();
+		} catch (IOException e) {
+			Log.w(TAG, "unable to write entry " + fileEntry + ": " + e.getLocalizedMessage());
+			fileTmp.delete();
+		} finally {
+			if (out != null) {
+				try { out.close(); } catch (IOException e) {}
+			}
+		}
+
+		trimDisk();
+	}
+
+	private void trimDisk()
+	{
+		File[] files = mDir.listFiles();
+		if (files == null || files.length <= MAX_DISK_ENTRIES)
+			return;
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+
+		for (int i = 0; i < files.length - MAX_DISK_ENTRIES; i++)
+			files[i].delete();
+	}
+
+	private File entryFile(String path)
+	{
+		return new File(mDir, sha1(path));
+	}
+
+	/**
+	 * Copies the fields getInfo fills in.
+	 */
+	static void copyInfo(Clip from, Clip to)
+	{
+		to.duration = from.duration;
+		to.bitrate = from.bitrate;
+		to.mimeType = from.mimeType;
+		to.videoCodec = from.videoCodec;
+		to.videoFps = from.videoFps;
+		to.videoBitrate = from.videoBitrate;
+		to.width = from.width;
+		to.height = from.height;
+		to.rotation = from.rotation;
+		to.keyframeInterval = from.keyframeInterval;
+		to.videoProfile = from.videoProfile;
+		to.videoLevel = from.videoLevel;
+		to.pixelFormat = from.pixelFormat;
+		to.audioCodec = from.audioCodec;
+		to.audioChannels = from.audioChannels;
+		to.audioBitrate = from.audioBitrate;
+		to.audioSampleRate = from.audioSampleRate;
+	}
+
+	private static void setIfPresent(Properties props, String key, String value)
+	{
+		if (value != null)
+			props.setProperty(key, value);
+	}
+
+	private static long getLong(Properties props, String key)
+	{
+		try {
+			return Long.parseLong(props.getProperty(key, "-1"));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static double getDouble(Properties props, String key)
+	{
+		try {
+			return Double.parseDouble(props.getProperty(key, "-1"));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String sha1(String value)
+	{
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			StringBuilder hex = new StringBuilder();
+			for (byte b : md.digest(value.getBytes("UTF-8")))
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(value.hashCode());
+		} catch (IOException e) {
+			return Integer.toHexString(value.hashCode());
+		}
+	}
+}
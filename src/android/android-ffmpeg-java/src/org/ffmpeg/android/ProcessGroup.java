@@ -0,0 +1,80 @@
+package org.ffmpeg.android;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * The processes started on behalf of one piece of work.
+ *
+ * Controllers register every process they start with their group, so work
+ * made of several ffmpeg/sox steps can be stopped as a whole: cancel() kills
+ * whatever is running and any later attempt to start a process in the group
+ * fails with a CancelledException.
+ */
+public class ProcessGroup {
+
+	private final HashSet<ProcessRunner.Handle> mLive = new HashSet<ProcessRunner.Handle>();
+	private boolean mCancelled = false;
+
+	public static class CancelledException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		public CancelledException()
+		{
+			super("cancelled");
+		}
+	}
+
+	/**
+	 * Kills every live process in the group, along with their children.
+	 */
+	public void cancel()
+	{
+		ArrayList<ProcessRunner.Handle> live;
+
+		synchronized (this)
+		{
+			mCancelled = true;
+			live = new ArrayList<ProcessRunner.Handle>(mLive);
+		}
+
+		for (ProcessRunner.Handle handle : live)
+			handle.kill();
+	}
+
+	public synchronized boolean isCancelled()
+	{
+		return mCancelled;
+	}
+
+	/**
+	 * Throws if the group has been cancelled.
+	 */
+	public void check() throws CancelledException
+	{
+		if (isCancelled())
+			throw new CancelledException();
+	}
+
+	void add(ProcessRunner.Handle handle) throws CancelledException
+	{
+		synchronized (this)
+		{
+			if (!mCancelled)
+			{
+				mLive.add(handle);
+				return;
+			}
+		}
+
+		handle.kill();
+		throw new CancelledException();
+	}
+
+	synchronized void remove(ProcessRunner.Handle handle)
+	{
+		mLive.remove(handle);
+	}
+}
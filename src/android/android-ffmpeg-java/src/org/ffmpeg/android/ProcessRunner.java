@@ -0,0 +1,481 @@
+package org.ffmpeg.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.ffmpeg.android.ShellUtils.ShellCallback;
+
+import android.util.Log;
+
+/**
+ * Starts ffmpeg/sox processes and drains their output.
+ *
+ * Instead of two gobbler threads per process, the stdout and stderr of every
+ * live process are spread over a small fixed set of reader threads. Each
+ * reader polls its streams with available(), reads whatever is buffered into
+ * a pooled byte array and splits it into lines on both '\r' and '\n', so
+ * ffmpeg's carriage-return progress lines arrive as they are written. Once a
+ * process has exited its streams are drained of what it wrote, one buffer
+ * per pass so no stream holds a reader, and the handle's latch is released,
+ * so callers can wait for complete output without spinning.
+ */
+public class ProcessRunner {
+
+	private final static String TAG = "ProcessRunner";
+
+	private final static int BUFFER_SIZE = 8 * 1024;
+	private final static int MAX_POOLED_BUFFERS = 16;
+
+	private final static long MIN_IDLE_WAIT_MS = 2;
+	private final static long MAX_IDLE_WAIT_MS = 32;
+
+	private static ProcessRunner sInstance;
+
+	private final BufferPool mBuffers = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+	private final ReaderThread[] mReaders;
+	private int mNextReader = 0;
+
+	private final Set<Handle> mLive = Collections.synchronizedSet(new HashSet<Handle>());
+
+	public static synchronized ProcessRunner getInstance()
+	{
+		if (sInstance == null)
+			sInstance = new ProcessRunner(Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors())));
+
+		return sInstance;
+	}
+
+	private ProcessRunner(int readerCount)
+	{
+		mReaders = new ReaderThread[readerCount];
+
+		for (int i = 0; i < readerCount; i++)
+		{
+			mReaders[i] = new ReaderThread("ProcessRunner-" + i);
+			mReaders[i].start();
+		}
+	}
+
+	/**
+	 * Runs the command and blocks until it has exited and all of its output
+	 * has been delivered to the callback.
+	 * @return the process exit value
+	 */
+	public int run(List<String> cmds, File dir, ShellCallback sc) throws IOException, InterruptedException
+	{
+		return run(cmds, dir, sc, null);
+	}
+
+	/**
+	 * As {@link #run(List, File, ShellCallback)}, with the process registered
+	 * in the group for the time it is alive.
+	 * @throws ProcessGroup.CancelledException if the group was cancelled
+	 * before or while the process ran
+	 */
+	public int run(List<String> cmds, File dir, ShellCallback sc, ProcessGroup group) throws IOException, InterruptedException
+	{
+		int exitVal = start(cmds, dir, sc, group).waitFor();
+
+		if (group != null)
+			group.check();
+
+		return exitVal;
+	}
+
+	public Handle start(List<String> cmds, File dir, ShellCallback sc) throws IOException
+	{
+		return start(cmds, dir, sc, null);
+	}
+
+	/**
+	 * Starts the command and registers its output streams with the readers.
+	 * Call {@link Handle#waitFor()} to collect the exit value.
+	 */
+	public Handle start(List<String> cmds, File dir, ShellCallback sc, ProcessGroup group) throws IOException
+	{
+		if (group != null)
+			group.check();
+
+		ProcessBuilder pb = new ProcessBuilder(cmds);
+		pb.directory(dir);
+
+		Process process = pb.start();
+
+		Handle handle = new Handle(this, process, cmds, sc, group);
+
+		//joined before it is published, a group cancelled in the meantime leaves nothing behind
+		if (group != null)
+		{
+			try {
+				group.add(handle);
+			} catch (ProcessGroup.CancelledException e) {
+				process.destroy();
+				throw e;
+			}
+		}
+
+		mLive.add(handle);
+
+		nextReader().add(new StreamReader(handle, process.getErrorStream()));
+		nextReader().add(new StreamReader(handle, process.getInputStream()));
+
+		return handle;
+	}
+
+	/**
+	 * @return the processes started through this runner that are still alive
+	 */
+	public List<Handle> getLiveHandles()
+	{
+		synchronized (mLive)
+		{
+			return new ArrayList<Handle>(mLive);
+		}
+	}
+
+	private synchronized ReaderThread nextReader()
+	{
+		ReaderThread reader = mReaders[mNextReader];
+		mNextReader = (mNextReader + 1) % mReaders.length;
+		return reader;
+	}
+
+	/**
+	 * A running process and the state of its two output streams.
+	 */
+	public static class Handle
+	{
+		private final ProcessRunner mRunner;
+		private final Process mProcess;
+		private final List<String> mCommand;
+		private final ShellCallback mCallback;
+		private final ProcessGroup mGroup;
+		private final CountDownLatch mDrained = new CountDownLatch(2);
+		private Runnable mDoneListener;
+
+		Handle(ProcessRunner runner, Process process, List<String> cmds, ShellCallback sc, ProcessGroup group)
+		{
+			mRunner = runner;
+			mProcess = process;
+			mCommand = cmds;
+			mCallback = sc;
+			mGroup = group;
+		}
+
+		public Process getProcess()
+		{
+			return mProcess;
+		}
+
+		public List<String> getCommand()
+		{
+			return mCommand;
+		}
+
+		/**
+		 * Kills the process and any children it started. Output already
+		 * written is still drained, so waitFor() returns normally.
+		 */
+		public void kill()
+		{
+			ShellUtils.killProcessTree(mProcess);
+		}
+
+		public boolean hasExited()
+		{
+			try {
+				mProcess.exitValue();
+				return true;
+			} catch (IllegalThreadStateException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Waits for the process to exit and for stdout and stderr to be
+		 * read to the end, then reports completion to the callback.
+		 */
+		public int waitFor() throws InterruptedException
+		{
+			int exitVal;
+			try {
+				exitVal = mProcess.waitFor();
+			} finally {
+				mRunner.mLive.remove(this);
+				if (mGroup != null)
+					mGroup.remove(this);
+			}
+
+			mDrained.await();
+
+			if (mCallback != null)
+				mCallback.processComplete(exitVal);
+
+			return exitVal;
+		}
+
+		void shellOut(String line)
+		{
+			if (mCallback != null)
+				mCallback.shellOut(line);
+		}
+
+		/**
+		 * Runs the listener on a reader thread once the process has exited
+		 * and its output has been read, or right away if that already
+		 * happened. waitFor() then returns without blocking, so callers
+		 * juggling several processes can wait for whichever ends first.
+		 */
+		public void setDoneListener(Runnable listener)
+		{
+			synchronized (this)
+			{
+				if (mDrained.getCount() > 0)
+				{
+					mDoneListener = listener;
+					return;
+				}
+			}
+			listener.run();
+		}
+
+		void streamClosed()
+		{
+			Runnable listener = null;
+			synchronized (this)
+			{
+				mDrained.countDown();
+				if (mDrained.getCount() == 0)
+					listener = mDoneListener;
+			}
+			if (listener != null)
+				listener.run();
+		}
+	}
+
+	/**
+	 * Incremental reader for one stream. Bytes are accumulated until a line
+	 * terminator is seen; "\r\n" counts as a single terminator.
+	 */
+	private class StreamReader
+	{
+		private final Handle mHandle;
+		private final InputStream mStream;
+
+		private byte[] mLine = new byte[256];
+		private int mLineLength = 0;
+		private boolean mLastWasCR = false;
+
+		StreamReader(Handle handle, InputStream stream)
+		{
+			mHandle = handle;
+			mStream = stream;
+		}
+
+		/**
+		 * Reads whatever is available without blocking.
+		 * @return true if data was consumed or the stream finished
+		 */
+		boolean poll() throws IOException
+		{
+			//checked first, so once it has exited everything it wrote is already counted below
+			boolean exited = mHandle.hasExited();
+			int available = mStream.available();
+
+			if (available > 0)
+			{
+				byte[] buf = mBuffers.acquire();
+				try {
+					int read = mStream.read(buf, 0, Math.min(available, buf.length));
+					if (read < 0)
+						throw new EOFReached();
+					feed(buf, read);
+				} finally {
+					mBuffers.release(buf);
+				}
+				return true;
+			}
+
+			if (!exited)
+				return false;
+
+			//never read to EOF here: a child that inherited the pipe could keep it
+			//open and block the thread, starving the other streams it serves
+			throw new EOFReached();
+		}
+
+		private void feed(byte[] buf, int len)
+		{
+			for (int i = 0; i < len; i++)
+			{
+				byte b = buf[i];
+
+				if (b == '\n' || b == '\r')
+				{
+					if (!(b == '\n' && mLastWasCR))
+						flushLine();
+					mLastWasCR = (b == '\r');
+				}
+				else
+				{
+					mLastWasCR = false;
+
+					if (mLineLength == mLine.length)
+					{
+						byte[] grown = new byte[mLine.length * 2];
+						System.arraycopy(mLine, 0, grown, 0, mLineLength);
+						mLine = grown;
+					}
+					mLine[mLineLength++] = b;
+				}
+			}
+		}
+
+		private void flushLine()
+		{
+			String line;
+			try {
+				line = new String(mLine, 0, mLineLength, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				line = new String(mLine, 0, mLineLength);
+			}
+			mLineLength = 0;
+
+			mHandle.shellOut(line);
+		}
+
+		void close()
+		{
+			if (mLineLength > 0)
+				flushLine();
+
+			try {
+				mStream.close();
+			} catch (IOException e) {}
+
+			mHandle.streamClosed();
+		}
+	}
+
+	private static class EOFReached extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+	}
+
+	private class ReaderThread extends Thread
+	{
+		private final ConcurrentLinkedQueue<StreamReader> mAdded = new ConcurrentLinkedQueue<StreamReader>();
+		private final ArrayList<StreamReader> mActive = new ArrayList<StreamReader>();
+
+		ReaderThread(String name)
+		{
+			super(name);
+			setDaemon(true);
+		}
+
+		void add(StreamReader reader)
+		{
+			mAdded.add(reader);
+
+			synchronized (this) {
+				notify();
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			long idleWait = MIN_IDLE_WAIT_MS;
+
+			while (true)
+			{
+				StreamReader added;
+				while ((added = mAdded.poll()) != null)
+					mActive.add(added);
+
+				boolean progressed = false;
+
+				Iterator<StreamReader> it = mActive.iterator();
+				while (it.hasNext())
+				{
+					StreamReader reader = it.next();
+					try {
+						progressed |= reader.poll();
+					} catch (IOException e) {
+						if (!(e instanceof EOFReached))
+							Log.w(TAG, "error reading process output", e);
+						reader.close();
+						it.remove();
+						progressed = true;
+					} catch (RuntimeException e) {
+						//a misbehaving callback must not take the other streams down with it
+						Log.e(TAG, "output callback failed", e);
+						progressed = true;
+					}
+				}
+
+				if (progressed)
+				{
+					idleWait = MIN_IDLE_WAIT_MS;
+					continue;
+				}
+
+				synchronized (this)
+				{
+					if (!mAdded.isEmpty())
+						continue;
+
+					try {
+						if (mActive.isEmpty())
+							wait();
+						else
+							wait(idleWait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+
+				idleWait = Math.min(idleWait * 2, MAX_IDLE_WAIT_MS);
+			}
+		}
+	}
+
+	/**
+	 * Fixed size byte arrays shared by all reader threads.
+	 */
+	private static class BufferPool
+	{
+		private final ArrayDeque<byte[]> mFree = new ArrayDeque<byte[]>();
+		private final int mBufferSize;
+		private final int mMaxPooled;
+
+		BufferPool(int bufferSize, int maxPooled)
+		{
+			mBufferSize = bufferSize;
+			mMaxPooled = maxPooled;
+		}
+
+		synchronized byte[] acquire()
+		{
+			byte[] buf = mFree.poll();
+			return buf != null ? buf : new byte[mBufferSize];
+		}
+
+		synchronized void release(byte[] buf)
+		{
+			if (mFree.size() < mMaxPooled)
+				mFree.push(buf);
+		}
+	}
+}
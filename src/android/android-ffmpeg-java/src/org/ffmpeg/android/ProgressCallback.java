@@ -0,0 +1,15 @@
+package org.ffmpeg.android;
+
+import org.ffmpeg.android.ShellUtils.ShellCallback;
+
+/**
+ * A ShellCallback that also wants ffmpeg's machine readable progress.
+ *
+ * Passing one of these to FfmpegController.execFFMPEG makes ffmpeg report
+ * through -progress; the key=value lines are parsed into ProgressEvents and
+ * everything else still arrives through shellOut.
+ */
+public interface ProgressCallback extends ShellCallback
+{
+	public void progress (ProgressEvent event);
+}
@@ -0,0 +1,39 @@
+package org.ffmpeg.android;
+
+/**
+ * One progress report from a running ffmpeg process.
+ *
+ * Values that ffmpeg did not report, or that cannot be derived yet, are -1.
+ */
+public class ProgressEvent
+{
+	public long frame = -1;
+	public double fps = -1;
+	public long outTimeUs = -1;
+	public long totalSize = -1;
+	public double speed = -1;
+
+	public long durationUs = -1; //expected length of the output, probed or requested
+	public double percent = -1; //0 - 100
+	public long etaMs = -1; //smoothed estimate of the time left
+
+	public boolean done = false;
+
+	public ProgressEvent ()
+	{
+
+	}
+
+	public ProgressEvent (ProgressEvent other)
+	{
+		frame = other.frame;
+		fps = other.fps;
+		outTimeUs = other.outTimeUs;
+		totalSize = other.totalSize;
+		speed = other.speed;
+		durationUs = other.durationUs;
+		percent = other.percent;
+		etaMs = other.etaMs;
+		done = other.done;
+	}
+}
@@ -0,0 +1,207 @@
+package org.ffmpeg.android;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.ffmpeg.android.ShellUtils.ShellCallback;
+
+/**
+ * Turns ffmpeg's "-progress" output into ProgressEvents.
+ *
+ * ffmpeg writes a block of key=value lines per update, terminated by
+ * "progress=continue" or "progress=end". Percent complete is computed against
+ * the requested duration (-t) when there is one, otherwise against the input
+ * duration ffmpeg prints on stderr, less any -ss offset. The ETA uses an
+ * exponentially weighted moving average of the encode rate so a single slow
+ * or fast block does not make it jump around.
+ */
+public class ProgressParser implements ShellCallback
+{
+	private final static double EWMA_ALPHA = 0.3;
+
+	private final ProgressCallback mCallback;
+
+	private final long mRequestedUs;
+	private final long mStartUs;
+	private long mDurationUs;
+	private boolean mSawDuration = false;
+
+	private final ProgressEvent mPending = new ProgressEvent();
+
+	private long mLastOutTimeUs = -1;
+	private long mLastWallNs = -1;
+	private double mRate = -1; //media microseconds encoded per wall clock microsecond
+
+	public ProgressParser (ProgressCallback callback, List<String> cmd)
+	{
+		mCallback = callback;
+
+		long requestedUs = -1;
+		long startUs = 0;
+
+		//only options that come before the first output matter here
+		for (int i = 1; i < cmd.size() - 1; i++)
+		{
+			String arg = cmd.get(i);
+
+			if (arg.equals(FfmpegController.Argument.DURATION))
+				requestedUs = toMicros(parseTime(cmd.get(i + 1)));
+			else if (arg.equals(FfmpegController.Argument.STARTTIME))
+				startUs = Math.max(0, toMicros(parseTime(cmd.get(i + 1))));
+		}
+
+		mRequestedUs = requestedUs;
+		mStartUs = startUs;
+		mDurationUs = requestedUs;
+	}
+
+	@Override
+	public void shellOut (String line)
+	{
+		int eq = line.indexOf('=');
+
+		if (eq > 0 && line.indexOf(' ') == -1)
+		{
+			parseField(line.substring(0, eq), line.substring(eq + 1).trim());
+			return;
+		}
+
+		//  Duration: 00:01:01.75, start: 0.000000, bitrate: 8184 kb/s
+		int durationIdx = line.indexOf("Duration:");
+		if (durationIdx != -1 && !mSawDuration)
+		{
+			//the first one printed belongs to input #0
+			mSawDuration = true;
+
+			int end = line.indexOf(',', durationIdx);
+			double probed = parseTime(line.substring(durationIdx + 9, end == -1 ? line.length() : end));
+
+			if (probed > 0)
+			{
+				long remainingUs = Math.max(0, toMicros(probed) - mStartUs);
+				mDurationUs = mRequestedUs > 0 ? Math.min(mRequestedUs, remainingUs) : remainingUs;
+			}
+		}
+
+		mCallback.shellOut(line);
+	}
+
+	@Override
+	public void processComplete (int exitValue)
+	{
+		mCallback.processComplete(exitValue);
+	}
+
+	private void parseField (String key, String value)
+	{
+		try
+		{
+			if (key.equals("frame"))
+				mPending.frame = Long.parseLong(value);
+			else if (key.equals("fps"))
+				mPending.fps = Double.parseDouble(value);
+			else if (key.equals("out_time_us"))
+				mPending.outTimeUs = Long.parseLong(value);
+			else if (key.equals("out_time_ms") && mPending.outTimeUs < 0)
+				mPending.outTimeUs = Long.parseLong(value); //older builds report microseconds under this name
+			else if (key.equals("total_size"))
+				mPending.totalSize = Long.parseLong(value);
+			else if (key.equals("speed"))
+				mPending.speed = Double.parseDouble(value.endsWith("x") ? value.substring(0, value.length() - 1) : value);
+			else if (key.equals("progress"))
+				emit(value.equals("end"));
+		}
+		catch (NumberFormatException e)
+		{
+			//"N/A" while ffmpeg is still starting up
+		}
+	}
+
+	private void emit (boolean end)
+	{
+		ProgressEvent event = new ProgressEvent(mPending);
+		event.durationUs = mDurationUs;
+		event.done = end;
+
+		long now = System.nanoTime();
+
+		if (event.outTimeUs >= 0 && mLastOutTimeUs >= 0 && now > mLastWallNs)
+		{
+			double rate = (event.outTimeUs - mLastOutTimeUs) / ((now - mLastWallNs) / 1000d);
+
+			if (rate >= 0)
+				mRate = mRate < 0 ? rate : EWMA_ALPHA * rate + (1 - EWMA_ALPHA) * mRate;
+		}
+
+		if (event.outTimeUs >= 0)
+		{
+			mLastOutTimeUs = event.outTimeUs;
+			mLastWallNs = now;
+		}
+
+		if (end)
+		{
+			event.percent = 100;
+			event.etaMs = 0;
+		}
+		else if (mDurationUs > 0 && event.outTimeUs >= 0)
+		{
+			long outTimeUs = Math.min(event.outTimeUs, mDurationUs);
+			event.percent = outTimeUs * 100d / mDurationUs;
+
+			if (mRate > 0)
+				event.etaMs = (long) ((mDurationUs - outTimeUs) / mRate / 1000d);
+		}
+
+		mPending.frame = -1;
+		mPending.fps = -1;
+		mPending.outTimeUs = -1;
+		mPending.totalSize = -1;
+		mPending.speed = -1;
+
+		mCallback.progress(event);
+	}
+
+	private static long toMicros (double seconds)
+	{
+		return seconds < 0 ? -1 : (long) (seconds * 1000000d);
+	}
+
+	/**
+	 * Parses an ffmpeg time value, either plain seconds or [hh:]mm:ss[.frac].
+	 * @return seconds, or -1 if the value could not be parsed
+	 */
+	public static double parseTime (String value)
+	{
+		if (value == null)
+			return -1;
+
+		try
+		{
+			String[] parts = value.trim().split(":");
+			double seconds = 0;
+
+			for (String part : parts)
+				seconds = seconds * 60 + Double.parseDouble(part.trim());
+
+			return seconds;
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Formats seconds as hh:mm:ss.fff for use in ffmpeg arguments.
+	 */
+	public static String formatTime (double seconds)
+	{
+		int hours = (int) (seconds / 3600);
+		seconds -= hours * 3600;
+		int min = (int) (seconds / 60);
+		seconds -= min * 60;
+
+		return String.format(Locale.US, "%02d:%02d:%06.3f", hours, min, seconds);
+	}
+}
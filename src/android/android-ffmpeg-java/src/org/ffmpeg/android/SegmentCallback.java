@@ -0,0 +1,16 @@
+package org.ffmpeg.android;
+
+/**
+ * A ProgressCallback that also hears about every chunk of a split.
+ *
+ * FfmpegController.split reports each chunk as soon as ffmpeg closes it, so
+ * the chunk can be used while the rest of the input is still being split.
+ */
+public interface SegmentCallback extends ProgressCallback
+{
+	/**
+	 * @param segment the chunk, with path, startTime and duration set
+	 * @param index position of the chunk in the output, from 0
+	 */
+	public void segment (Clip segment, int index);
+}
@@ -0,0 +1,191 @@
+package org.ffmpeg.android;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import android.util.Log;
+
+/**
+ * The checkpoint of a segmented encode, kept in its work directory.
+ *
+ * The journal is a text file: a line naming what the encode is for, a line
+ * with the segment boundaries, and one line per finished part with its name
+ * and length. Each line is synced to disk as soon as it is written, so after
+ * the app is killed only the parts that were being encoded are lost. A part
+ * only counts as finished if its file is still there with the same length.
+ */
+class SegmentJournal
+{
+	private final static String TAG = "SegmentJournal";
+
+	private final static String FILE_NAME = "journal";
+
+	private final static String KEY_SOURCE = "source ";
+	private final static String KEY_CUTS = "cuts ";
+	private final static String KEY_DONE = "done ";
+
+	private final File mDir;
+	private final File mFile;
+	private final String mSource;
+	private final ArrayList<Double> mCuts = new ArrayList<Double>();
+	private final HashMap<String, Long> mDone = new HashMap<String, Long>();
+
+	private SegmentJournal (File dir, String source)
+	{
+		mDir = dir;
+		mFile = new File(dir, FILE_NAME);
+		mSource = source;
+	}
+
+	/**
+	 * Reads the journal in dir. One written for another source, or one that
+	 * cannot be read, is cleared together with the parts next to it.
+	 * @param source what the encode is for; see FfmpegController.signature
+	 */
+	static SegmentJournal open (File dir, String source) throws IOException
+	{
+		SegmentJournal journal = new SegmentJournal(dir, source);
+
+		if (journal.mFile.exists() && !journal.read())
+		{
+			Log.d(TAG, "starting over in " + dir);
+			journal.mCuts.clear();
+			journal.mDone.clear();
+			journal.delete();
+		}
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create " + dir);
+
+		return journal;
+	}
+
+	/**
+	 * @return false if the journal is for another source or is damaged
+	 */
+	private boolean read ()
+	{
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader(mFile));
+
+			String line = reader.readLine();
+			if (line == null || !line.equals(KEY_SOURCE + mSource))
+				return false;
+
+			line = reader.readLine();
+			if (line == null || !line.startsWith(KEY_CUTS))
+				return false;
+
+			for (String cut : line.substring(KEY_CUTS.length()).split(","))
+				mCuts.add(Double.parseDouble(cut));
+
+			//a line cut short by a crash is ignored, the part is simply done again
+			while ((line = reader.readLine()) != null)
+			{
+				int idx = line.lastIndexOf(' ');
+				if (line.startsWith(KEY_DONE) && idx > KEY_DONE.length())
+					mDone.put(line.substring(KEY_DONE.length(), idx), Long.parseLong(line.substring(idx + 1)));
+			}
+
+			return mCuts.size() >= 2;
+		}
+		catch (IOException e)
+		{
+			Log.w(TAG, "could not read " + mFile, e);
+			return false;
+		}
+		catch (NumberFormatException e)
+		{
+			Log.w(TAG, "damaged journal " + mFile, e);
+			return false;
+		}
+		finally
+		{
+			if (reader != null)
+				try { reader.close(); } catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * @return the segment boundaries from an earlier run, or an empty list
+	 */
+	List<Double> getCuts ()
+	{
+		return mCuts;
+	}
+
+	/**
+	 * Starts a new journal with the segment boundaries.
+	 */
+	void start (List<Double> cuts) throws IOException
+	{
+		StringBuilder line = new StringBuilder(KEY_CUTS);
+		for (int i = 0; i < cuts.size(); i++)
+		{
+			if (i > 0)
+				line.append(',');
+			line.append(String.format(Locale.US, "%.6f", cuts.get(i)));
+		}
+
+		mCuts.clear();
+		mCuts.addAll(cuts);
+		mDone.clear();
+
+		write(KEY_SOURCE + mSource + "\n" + line + "\n", false);
+	}
+
+	/**
+	 * @return true if an earlier run finished the part and it is still intact
+	 */
+	synchronized boolean isDone (File part)
+	{
+		Long length = mDone.get(part.getName());
+		return length != null && part.isFile() && part.length() == length;
+	}
+
+	/**
+	 * Records a finished part.
+	 */
+	synchronized void done (File part) throws IOException
+	{
+		mDone.put(part.getName(), part.length());
+		write(KEY_DONE + part.getName() + " " + part.length() + "\n", true);
+	}
+
+	/**
+	 * Removes the journal and everything else in its directory.
+	 */
+	void delete ()
+	{
+		File[] files = mDir.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+				file.delete();
+		}
+		mDir.delete();
+	}
+
+	private void write (String text, boolean append) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(mFile, append);
+		try
+		{
+			out.write(text.getBytes("UTF-8"));
+			out.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
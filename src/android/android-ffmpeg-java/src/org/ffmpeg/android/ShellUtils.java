@@ -4,9 +4,15 @@ package org.ffmpeg.android;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 
@@ -242,6 +248,127 @@ public class ShellUtils {
 
 	}
 	
+	/**
+	 * Reads the pid of a started process. Process has no public accessor on
+	 * Android, but every implementation keeps it in a "pid" field.
+	 * @return the pid or -1 if it cannot be determined
+	 */
+	public static int getProcessId(Process proc)
+	{
+		try
+		{
+			Field field = proc.getClass().getDeclaredField("pid");
+			field.setAccessible(true);
+			return field.getInt(proc);
+		}
+		catch (Exception e)
+		{
+			logException("Unable to read pid of " + proc, e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Finds all descendants of a process by reading the parent pid out of
+	 * /proc/[pid]/stat, without forking ps.
+	 * @return descendant pids, children before grandchildren
+	 */
+	public static List<Integer> findChildProcessIds(int parentPid)
+	{
+		ArrayList<Integer> result = new ArrayList<Integer>();
+
+		HashMap<Integer, Integer> parents = new HashMap<Integer, Integer>();
+
+		String[] entries = new File("/proc").list();
+		if (entries == null)
+			return result;
+
+		for (String entry : entries)
+		{
+			if (entry.length() == 0 || !Character.isDigit(entry.charAt(0)))
+				continue;
+
+			int ppid = readParentPid(new File("/proc/" + entry + "/stat"));
+			if (ppid > 0)
+			{
+				try {
+					parents.put(Integer.parseInt(entry), ppid);
+				} catch (NumberFormatException e) {}
+			}
+		}
+
+		result.add(parentPid);
+		for (int i = 0; i < result.size(); i++)
+		{
+			int pid = result.get(i);
+			for (Map.Entry<Integer, Integer> entry : parents.entrySet())
+			{
+				if (entry.getValue() == pid)
+					result.add(entry.getKey());
+			}
+		}
+		result.remove(0);
+
+		return result;
+	}
+
+	private static int readParentPid(File fileStat)
+	{
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader(fileStat), 512);
+			String line = reader.readLine();
+			if (line == null)
+				return -1;
+
+			//pid (comm) state ppid ... - comm may itself contain spaces and parens
+			int close = line.lastIndexOf(')');
+			StringTokenizer st = new StringTokenizer(line.substring(close + 1), " ");
+			st.nextToken(); //state
+			return Integer.parseInt(st.nextToken());
+		}
+		catch (Exception e)
+		{
+			//the process went away while we were looking
+			return -1;
+		}
+		finally
+		{
+			if (reader != null)
+			{
+				try { reader.close(); }
+				catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Kills a process and everything it started with SIGKILL. The parent goes
+	 * first so it cannot react to, or respawn, its children. The process
+	 * still has to be reaped with waitFor().
+	 */
+	public static void killProcessTree(Process proc)
+	{
+		int pid = getProcessId(proc);
+
+		if (pid > 0)
+		{
+			//take the snapshot first, the children are reparented once their parent dies
+			List<Integer> children = findChildProcessIds(pid);
+
+			android.os.Process.sendSignal(pid, android.os.Process.SIGNAL_KILL);
+
+			for (int child : children)
+				android.os.Process.sendSignal(child, android.os.Process.SIGNAL_KILL);
+		}
+		else
+		{
+			//destroy() closes our end of the pipes, so only use it when we have to
+			proc.destroy();
+		}
+	}
+
 	public static void logMessage (String msg)
 	{
 		
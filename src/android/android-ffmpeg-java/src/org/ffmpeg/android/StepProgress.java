@@ -0,0 +1,68 @@
+package org.ffmpeg.android;
+
+import org.ffmpeg.android.ShellUtils.ShellCallback;
+
+/**
+ * Reports the progress of one ffmpeg run as a slice of a larger operation.
+ *
+ * Percent is mapped into [from, to] of the overall operation, and only the
+ * last step is allowed to report done, so a caller running several processes
+ * in a row sees a single progress bar that does not restart or finish early.
+ */
+class StepProgress implements ProgressCallback
+{
+	private final ProgressCallback mCallback;
+	private final double mFrom;
+	private final double mTo;
+	private final boolean mLast;
+
+	private StepProgress (ProgressCallback callback, double from, double to, boolean last)
+	{
+		mCallback = callback;
+		mFrom = from;
+		mTo = to;
+		mLast = last;
+	}
+
+	/**
+	 * @return a callback for the step, or sc itself when it does not take
+	 * progress events
+	 */
+	static ShellCallback wrap (ShellCallback sc, double from, double to, boolean last)
+	{
+		if (sc instanceof ProgressCallback)
+			return new StepProgress((ProgressCallback) sc, from, to, last);
+
+		return sc;
+	}
+
+	@Override
+	public void progress (ProgressEvent event)
+	{
+		ProgressEvent scaled = new ProgressEvent(event);
+
+		if (event.percent >= 0)
+			scaled.percent = mFrom + event.percent * (mTo - mFrom) / 100d;
+
+		if (!mLast)
+		{
+			//the remaining steps are not accounted for
+			scaled.etaMs = -1;
+			scaled.done = false;
+		}
+
+		mCallback.progress(scaled);
+	}
+
+	@Override
+	public void shellOut (String shellLine)
+	{
+		mCallback.shellOut(shellLine);
+	}
+
+	@Override
+	public void processComplete (int exitValue)
+	{
+		mCallback.processComplete(exitValue);
+	}
+}
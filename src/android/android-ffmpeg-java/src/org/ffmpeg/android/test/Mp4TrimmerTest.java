@@ -0,0 +1,237 @@
+package org.ffmpeg.android.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.ffmpeg.android.Mp4Parser;
+import org.ffmpeg.android.Mp4Trimmer;
+
+/**
+ * Round trip of Mp4Trimmer on a small movie written here: one H.264 track
+ * of 30 samples at 30 fps, a keyframe every 10 samples, one sample per
+ * chunk, and each sample filled with its own index so the copied data can be
+ * checked. The movie is written once with a plain moov header and once with
+ * a 64 bit size field, which any box may use whatever its size.
+ */
+public class Mp4TrimmerTest {
+
+	private final static int SAMPLES = 30;
+	private final static int GOP = 10;
+
+	public static void main(String[] args) throws Exception
+	{
+		boolean ok = true;
+
+		ok &= test(false);
+		ok &= test(true);
+
+		System.out.println(ok ? "SUCCESS!!" : "FAIL!!");
+	}
+
+	private static boolean test (boolean largeMoovHeader) throws Exception
+	{
+		File fileIn = File.createTempFile("trimtest", ".mp4");
+		File fileOut = File.createTempFile("trimtest", "-out.mp4");
+
+		try
+		{
+			writeMovie(fileIn, largeMoovHeader);
+
+			Mp4Parser in = Mp4Parser.parse(fileIn);
+			if (!check("input parses", in != null)
+					|| !check("moov header size", in.moovHeaderSize == (largeMoovHeader ? 16 : 8)))
+				return false;
+
+			//0.5s is in the second GOP, so the cut starts on sample 10 and runs to 0.7s
+			if (!check("trim", Mp4Trimmer.trim(fileIn, 0.5, 0.2, fileOut, null, null)))
+				return false;
+
+			Mp4Parser out = Mp4Parser.parse(fileOut);
+			if (!check("output parses", out != null) || !check("one track", out.tracks.size() == 1))
+				return false;
+
+			Mp4Parser.Track video = out.getVideoTrack();
+			boolean ok = check("sample count", video.sampleCount == 11)
+					&& check("sync samples", video.syncSampleCount == 2)
+					&& check("profile and level", video.profile == 100 && video.level == 31)
+					&& check("pixel format", "yuv420p".equals(video.pixelFormat));
+
+			//the first kept sample is the keyframe of the second GOP
+			ByteBuffer stss = video.stss.duplicate();
+			stss.position(8);
+			ok &= check("first sample is sync", stss.getInt() == 1);
+
+			ByteBuffer stco = video.stco.duplicate();
+			stco.position(8);
+			long offset = stco.getInt() & 0xffffffffL;
+
+			RandomAccessFile raf = new RandomAccessFile(fileOut, "r");
+			try {
+				raf.seek(offset);
+				ok &= check("sample data", raf.read() == GOP);
+			} finally {
+				raf.close();
+			}
+
+			return ok;
+		}
+		finally
+		{
+			fileIn.delete();
+			fileOut.delete();
+		}
+	}
+
+	private static boolean check (String what, boolean passed)
+	{
+		if (!passed)
+			System.out.println("FAIL!! > " + what);
+		return passed;
+	}
+
+	private static void writeMovie (File file, boolean largeMoovHeader) throws IOException
+	{
+		byte[] ftyp = box("ftyp", concat("isom".getBytes("US-ASCII"), ints(0x200), "isomavc1".getBytes("US-ASCII")));
+
+		//the table sizes do not depend on the offsets, so a first pass gives the moov size
+		int moovSize = moov(0, largeMoovHeader).length;
+		long dataOffset = ftyp.length + moovSize + 8;
+		byte[] moov = moov(dataOffset, largeMoovHeader);
+
+		ByteArrayOutputStream mdat = new ByteArrayOutputStream();
+		for (int i = 0; i < SAMPLES; i++)
+		{
+			for (int j = 0; j < sampleSize(i); j++)
+				mdat.write(i);
+		}
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(ftyp);
+			out.write(moov);
+			out.write(box("mdat", mdat.toByteArray()));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static int sampleSize (int i)
+	{
+		return 100 + i;
+	}
+
+	private static byte[] moov (long dataOffset, boolean largeHeader) throws IOException
+	{
+		byte[] mvhd = fullBox("mvhd", concat(ints(0, 0, 1000, 1000, 0x10000), shorts(0x100, 0), ints(0, 0),
+				matrix(), new byte[24], ints(2)));
+
+		byte[] tkhd = fullBox("tkhd", 3, concat(ints(0, 0, 1, 0, 1000, 0, 0), shorts(0, 0, 0, 0),
+				matrix(), ints(320 << 16, 240 << 16)));
+
+		byte[] mdhd = fullBox("mdhd", concat(ints(0, 0, 30, SAMPLES), shorts(0x55c4, 0)));
+		byte[] hdlr = fullBox("hdlr", concat(ints(0), "vide".getBytes("US-ASCII"), new byte[12], new byte[] { 0 }));
+
+		byte[] avcC = box("avcC", new byte[] {
+				1, 100, 0, 31, (byte) 0xff, (byte) 0xe1,
+				0, 4, 0x67, 100, 0, 31,
+				1, 0, 2, 0x68, (byte) 0xee,
+				(byte) 0xfd, (byte) 0xf8, (byte) 0xf8, 0 });
+		byte[] avc1 = box("avc1", concat(new byte[6], shorts(1, 0, 0), new byte[12], shorts(320, 240),
+				ints(0x480000, 0x480000, 0), shorts(1), new byte[32], shorts(0x18, -1), avcC));
+		byte[] stsd = fullBox("stsd", concat(ints(1), avc1));
+
+		byte[] stts = fullBox("stts", ints(1, SAMPLES, 1));
+
+		int[] sync = new int[SAMPLES / GOP + 1];
+		sync[0] = SAMPLES / GOP;
+		for (int i = 1; i < sync.length; i++)
+			sync[i] = (i - 1) * GOP + 1;
+		byte[] stss = fullBox("stss", ints(sync));
+
+		int[] sizes = new int[SAMPLES + 2];
+		sizes[1] = SAMPLES;
+		int[] offsets = new int[SAMPLES + 1];
+		offsets[0] = SAMPLES;
+		long offset = dataOffset;
+		for (int i = 0; i < SAMPLES; i++)
+		{
+			sizes[i + 2] = sampleSize(i);
+			offsets[i + 1] = (int) offset;
+			offset += sampleSize(i);
+		}
+		byte[] stsz = fullBox("stsz", ints(sizes));
+		byte[] stsc = fullBox("stsc", ints(1, 1, 1, 1));
+		byte[] stco = fullBox("stco", ints(offsets));
+
+		byte[] stbl = box("stbl", concat(stsd, stts, stss, stsz, stsc, stco));
+		byte[] minf = box("minf", concat(fullBox("vmhd", 1, new byte[8]), stbl));
+		byte[] mdia = box("mdia", concat(mdhd, hdlr, minf));
+		byte[] trak = box("trak", concat(tkhd, mdia));
+
+		byte[] body = concat(mvhd, trak);
+		if (!largeHeader)
+			return box("moov", body);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(1);
+		data.writeBytes("moov");
+		data.writeLong(16 + body.length);
+		data.write(body);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] matrix ()
+	{
+		return ints(0x10000, 0, 0, 0, 0x10000, 0, 0, 0, 0x40000000);
+	}
+
+	private static byte[] box (String type, byte[] content) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(8 + content.length);
+		data.writeBytes(type);
+		data.write(content);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] fullBox (String type, byte[] content) throws IOException
+	{
+		return fullBox(type, 0, content);
+	}
+
+	private static byte[] fullBox (String type, int flags, byte[] content) throws IOException
+	{
+		return box(type, concat(ints(flags), content));
+	}
+
+	private static byte[] ints (int... values)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(values.length * 4);
+		for (int value : values)
+			buf.putInt(value);
+		return buf.array();
+	}
+
+	private static byte[] shorts (int... values)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(values.length * 2);
+		for (int value : values)
+			buf.putShort((short) value);
+		return buf.array();
+	}
+
+	private static byte[] concat (byte[]... parts)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (byte[] part : parts)
+			bytes.write(part, 0, part.length);
+		return bytes.toByteArray();
+	}
+}
@@ -42,8 +42,136 @@ declare interface VideoEditorTranscodeProperties {
         saveToLibrary?: boolean,
         /** Not supported in windows, delete the orginal video*/
         deleteInputFile?: boolean,
+        /** Android only, copy streams that already meet the target instead of re-encoding them, defaults to true */
+        passthrough?: boolean,
+        /** Android only, encode the video in keyframe-aligned segments on all cores at once, defaults to false */
+        parallel?: boolean,
+        /** Android only, write several renditions from one decode; the result is then an array of paths */
+        renditions?: VideoEditorRendition[],
+        /** Android only, write an HLS playlist with MPEG-TS ('hls') or fragmented MP4 ('cmaf') segments instead of one file */
+        streaming?: 'hls' | 'cmaf',
+        /** Android only, with streaming, seconds per segment, defaults to 4 */
+        segmentDuration?: number,
+        /** Android only, move the MP4 index to the front of the file so playback can start right away, defaults to false */
+        faststart?: boolean,
+        /** Android only, write a fragmented MP4 that can be read while it is written, defaults to false */
+        fragmented?: boolean,
+        /** Android only, keep finished segments on disk so an interrupted transcode can be resumed, defaults to false */
+        resumable?: boolean,
+        /** Android only, reuse the output of an earlier or running transcode of the same video with the same options, defaults to false */
+        cache?: boolean,
+        /** Android only, minimum milliseconds between progress calls, defaults to 250 */
+        progressIntervalMs?: number,
+        /** Android only, id for this job, generated if missing */
+        jobId?: string,
+        /** Android only, scheduling class, defaults to 'background' */
+        priority?: VideoEditorJobPriority,
         /** Not supported in windows, progress on the transcode*/
-        progress?: (info: any) => void
+        progress?: (info: VideoEditorProgressInfo | VideoEditorTranscodeDecision | VideoEditorChunkInfo | number) => void
+}
+
+/**
+ * One output of a multi-rendition transcode (android only). Every value is an upper limit, the
+ * source is never scaled up.
+ */
+declare interface VideoEditorRendition {
+        /** Bounding box of the output, in either orientation. Defaults to the quality preset. */
+        width?: number,
+        height?: number,
+        /** In kbps, defaults to 2560 */
+        videoBitrate?: number,
+        /** In kbps, defaults to the encoder's default */
+        audioBitrate?: number,
+        /** Defaults to 1 */
+        audioChannels?: number,
+        /** Maximum frame rate, defaults to '30' */
+        fps?: string,
+        /** Suffix of the output file name, defaults to the height followed by 'p'; must be unique */
+        name?: string
+}
+
+/**
+ * Options for resume (android only).
+ */
+declare interface VideoEditorResumeProperties {
+        /** Id of the interrupted resumable transcodeVideo call */
+        jobId: string,
+        /** Minimum milliseconds between progress calls, defaults to 250 */
+        progressIntervalMs?: number,
+        /** Scheduling class, defaults to 'background' */
+        priority?: VideoEditorJobPriority,
+        progress?: (info: VideoEditorProgressInfo | VideoEditorTranscodeDecision | number) => void
+}
+
+/** Android only, scheduling class of a job. Interactive jobs start before normal ones, normal before background. */
+declare type VideoEditorJobPriority = 'interactive' | 'normal' | 'background';
+
+/**
+ * A queued or running job as reported by getJobs (android only).
+ */
+declare interface VideoEditorJobInfo {
+        jobId: string,
+        action: string,
+        priority: VideoEditorJobPriority,
+        state: 'queued' | 'running',
+        /** Time spent waiting in the queue. */
+        queuedMs: number,
+        /** Time spent running so far. */
+        runningMs?: number
+}
+
+/**
+ * Passed to the error callback of a job that was cancelled (android only).
+ */
+declare interface VideoEditorCancelledResult {
+        cancelled: true,
+        jobId: string
+}
+
+/**
+ * Progress reported on android while ffmpeg runs. Unknown values are omitted.
+ */
+declare interface VideoEditorProgressInfo {
+        /** Percent complete, 0 - 100. */
+        percent?: number,
+        /** Smoothed estimate of the time left in milliseconds. */
+        etaMs?: number,
+        /** Frames written so far. */
+        frame?: number,
+        /** Current encode speed in frames per second. */
+        fps?: number,
+        /** Position reached in the output in milliseconds. */
+        outTimeMs?: number,
+        /** Expected output duration in milliseconds. */
+        durationMs?: number,
+        /** Bytes written so far. */
+        totalSize?: number,
+        /** Encode speed relative to realtime. */
+        speed?: number,
+        /** True on the final event. */
+        done: boolean,
+        /** The job this progress belongs to. */
+        jobId?: string
+}
+
+/**
+ * How transcodeVideo is going to produce its output, passed to the progress callback before it starts (android only).
+ */
+declare interface VideoEditorTranscodeDecision {
+        type: 'decision',
+        /** remux: everything is copied; audio: the video is copied and the audio re-encoded; transcode: everything is re-encoded. */
+        mode: 'remux' | 'audio' | 'transcode',
+        /** Why streams have to be re-encoded, empty for a remux. */
+        reasons: string[],
+        jobId?: string
+}
+
+/**
+ * A range of a video in seconds.
+ */
+declare interface VideoEditorTimeRange {
+        start: number,
+        end: number
 }
 
 /**
@@ -52,12 +180,69 @@ declare interface VideoEditorTranscodeProperties {
 declare interface VideoEditorTrimProperties {
         /** A well-known location where the editable video lives. */
         fileUri: string,
-        /** A number of seconds to trim the front of the video. */
-        trimStart: number,
-        /** A number of seconds to trim the front of the video. */
-        trimEnd: number,
+        /** A number of seconds to trim the front of the video. Not used with ranges. */
+        trimStart?: number,
+        /** A number of seconds to trim the front of the video. Not used with ranges. */
+        trimEnd?: number,
+        /**
+         * Android only, several ranges to keep, read in a single pass. The result is an array of paths.
+         * Each range starts at the keyframe before its start.
+         */
+        ranges?: VideoEditorTimeRange[],
+        /** Android only, with ranges: one output per range instead of a single joined output. */
+        split?: boolean,
         /** A string that indicates what type of field this is, home for example. */
-        outputFileName: string
+        outputFileName: string,
+        /**
+         * Android only, cut exactly at trimStart instead of at the keyframe before it. Only the frames up to
+         * the next keyframe are re-encoded, the rest is copied. Defaults to false.
+         */
+        precise?: boolean,
+        /** Android only, minimum milliseconds between progress calls, defaults to 250 */
+        progressIntervalMs?: number,
+        /** Android only, id for this job, generated if missing */
+        jobId?: string,
+        /** Android only, scheduling class, defaults to 'interactive' */
+        priority?: VideoEditorJobPriority,
+        /** Progress on the trim */
+        progress?: (info: VideoEditorProgressInfo | number) => void
+}
+
+/**
+ * Options for split (android only). At least one of segmentDuration and segmentSize is required.
+ */
+declare interface VideoEditorSplitProperties {
+        /** A well-known location where the video lives. */
+        fileUri: string,
+        /** Base name of the chunks, they are named outputFileName_000, outputFileName_001, ... */
+        outputFileName?: string,
+        /** Seconds per chunk. Chunks start on keyframes, so they run to the first keyframe after this. */
+        segmentDuration?: number,
+        /** Bytes per chunk, estimated from the average bitrate, so keep some margin below a hard limit. */
+        segmentSize?: number,
+        /** Minimum milliseconds between progress calls, defaults to 250 */
+        progressIntervalMs?: number,
+        /** Id for this job, generated if missing */
+        jobId?: string,
+        /** Scheduling class, defaults to 'normal' */
+        priority?: VideoEditorJobPriority,
+        /** Progress on the split, and every finished chunk as soon as it is written */
+        progress?: (info: VideoEditorProgressInfo | VideoEditorChunkInfo) => void
+}
+
+/**
+ * A finished chunk of a split, passed to the progress callback (android only).
+ */
+declare interface VideoEditorChunkInfo {
+        type: 'chunk',
+        /** Position of the chunk, from 0. */
+        index: number,
+        /** Full path of the chunk. */
+        path: string,
+        /** Where the chunk starts in the input, in milliseconds. */
+        startMs: number,
+        durationMs: number,
+        jobId?: string
 }
 
 /**
@@ -66,8 +251,89 @@ declare interface VideoEditorTrimProperties {
 declare interface VideoEditorThumbnailProperties {
         /** A well-known location where the editable video lives. */
         fileUri: string,
-        /** A string that indicates what type of field this is, home for example. */
-        outputFileName: string
+        /** A string that indicates what type of field this is, home for example. Optional on android, where
+         * it defaults to a timestamp */
+        outputFileName?: string,
+        /** Android only. Seconds into the video, defaults to a representative frame */
+        atTime?: number,
+        /** Android only. Maximum width, defaults to 512 */
+        width?: number,
+        /** Android only. Maximum height, defaults to 384; the aspect ratio is kept */
+        height?: number,
+        /** Android only. 0 to 100, defaults to 75 */
+        quality?: number,
+        /** Android only. Image format, defaults to 'jpeg' */
+        format?: 'jpeg' | 'png' | 'webp',
+        /** Android only. 'fast' returns the keyframe nearest to atTime instead of decoding up to it, defaults to 'exact' */
+        mode?: 'exact' | 'fast',
+        /** Android only. Id for this job, generated if missing */
+        jobId?: string,
+        /** Android only. Scheduling class, defaults to 'interactive' */
+        priority?: VideoEditorJobPriority
+}
+
+/**
+ * Options for createThumbnailStrip (android only).
+ */
+declare interface VideoEditorThumbnailStripProperties {
+        /** A well-known location where the video lives. */
+        fileUri: string,
+        /** Sheets are named STRIP_<outputFileName>_001.jpg and so on */
+        outputFileName?: string,
+        /** Seconds between tiles, defaults to a hundredth of the duration, at least 1 */
+        interval?: number,
+        /** Tile width in pixels, defaults to 160 */
+        width?: number,
+        /** Tile height in pixels, defaults to keeping the video's aspect ratio */
+        height?: number,
+        /** Tiles per row, defaults to 10 */
+        columns?: number,
+        /** Rows per sheet, defaults to as many as all tiles need */
+        rows?: number,
+        /** Image format of the sheets, defaults to 'jpeg' */
+        format?: 'jpeg' | 'webp',
+        /** Format of the index, defaults to 'vtt' */
+        index?: 'vtt' | 'json',
+        /** Id for this job, generated if missing */
+        jobId?: string,
+        /** Scheduling class, defaults to 'interactive' */
+        priority?: VideoEditorJobPriority
+}
+
+/**
+ * Result of createThumbnailStrip (android only).
+ */
+declare interface VideoEditorThumbnailStrip {
+        /** Paths of the sprite sheets, in order */
+        sprites: string[],
+        /** Path of the WebVTT or JSON index */
+        index: string,
+        tiles: number,
+        /** Tile size in pixels */
+        width: number,
+        height: number,
+        /** Seconds between tiles */
+        interval: number
+}
+
+/**
+ * Options for getKeyframes (android only).
+ */
+declare interface VideoEditorKeyframesProperties {
+        /** A well-known location where the video lives. */
+        fileUri: string,
+        /** Id for this job, generated if missing */
+        jobId?: string,
+        /** Scheduling class, defaults to 'interactive' */
+        priority?: VideoEditorJobPriority
+}
+
+/**
+ * Keyframe times of a video (android only).
+ */
+declare interface VideoEditorKeyframes {
+        /** Presentation times of the keyframes in seconds, ascending. */
+        keyframes: number[]
 }
 
 /**
@@ -82,9 +348,9 @@ interface VideoEditor {
     * @param onError Error callback function, invoked when an error occurs.
     * @param transcodeOptions Transcode options that are required to reencode or change the coding of the video.
     */
-    transcodeVideo(onSuccess: (path: string) => void,
+    transcodeVideo(onSuccess: (path: string | string[]) => void,
         onError: (error: any) => void,
-        options: VideoEditorTranscodeProperties): void;
+        options: VideoEditorTranscodeProperties): string;
 
     /**
      * The VideoEditor.trim method executes asynchronously, taking a video location and trimming the beginning and end of the video
@@ -94,9 +360,21 @@ interface VideoEditor {
      * @param onError Error callback function, invoked when an error occurs.
      * @param trimOptions Trim options that are required to locate, reduce start/end and save the video.
      */
-    trim(onSuccess: (path: string) => void,
+    trim(onSuccess: (path: string | string[]) => void,
+        onError: (error: any) => void,
+        trimOptions: VideoEditorTrimProperties): string;
+
+    /**
+     * Android only. Splits a video into chunks by duration or size in a single pass, without re-encoding.
+     * Each chunk is passed to the progress callback as a VideoEditorChunkInfo as soon as it is written.
+     * @param onSuccess Success callback function invoked with the paths of all chunks, in order
+     * @param onError Error callback function, invoked when an error occurs.
+     * @param options Split options.
+     * @return The job id
+     */
+    split(onSuccess: (paths: string[]) => void,
         onError: (error: any) => void,
-        trimOptions: VideoEditorTrimProperties): void;
+        options: VideoEditorSplitProperties): string;
 
     /**
     * The VideoEditor.trim method executes asynchronously, taking a video location and trimming the beginning and end of the video
@@ -108,7 +386,61 @@ interface VideoEditor {
     */
     createThumbnail(onSuccess: (path: string) => void,
         onError: (error: any) => void,
-        options: VideoEditorThumbnailProperties): void;
+        options: VideoEditorThumbnailProperties): string;
+
+    /**
+     * Android only. Renders thumbnails at a fixed interval into sprite sheets in one pass that decodes only
+     * keyframes, with a WebVTT or JSON index that maps time ranges to tiles.
+     * @param onSuccess Success callback function invoked with the sheets and the index
+     * @param onError Error callback function, invoked when an error occurs.
+     * @param options Strip options
+     * @return The job id
+     */
+    createThumbnailStrip(onSuccess: (result: VideoEditorThumbnailStrip) => void,
+        onError: (error: any) => void,
+        options: VideoEditorThumbnailStripProperties): string;
+
+    /**
+     * Android only. Lists the keyframe times of a video without decoding it, so cuts can be snapped to
+     * points a stream copy can start from. Results are cached until the file changes.
+     * @param onSuccess Success callback function invoked with the keyframe times
+     * @param onError Error callback function, invoked when an error occurs.
+     * @param options Keyframe options, the video to index.
+     * @return The job id
+     */
+    getKeyframes(onSuccess: (result: VideoEditorKeyframes) => void,
+        onError: (error: any) => void,
+        options: VideoEditorKeyframesProperties): string;
+
+    /**
+     * Android only. Lists the jobs that are running or waiting to run, running ones first.
+     * @param onSuccess Success callback function invoked with the list of jobs
+     * @param onError Error callback function, invoked when an error occurs.
+     */
+    getJobs(onSuccess: (jobs: VideoEditorJobInfo[]) => void,
+        onError: (error: any) => void): void;
+
+    /**
+     * Android only. Cancels a queued or running job. Its ffmpeg processes are killed, partial output is
+     * deleted and the job's error callback is invoked with a VideoEditorCancelledResult.
+     * @param onSuccess Success callback function, invoked once the job has been cancelled
+     * @param onError Error callback function, invoked when there is no such active job.
+     * @param jobId Id of the job, as returned by transcode, trim or execFFMPEG
+     */
+    cancel(onSuccess: () => void,
+        onError: (error: any) => void,
+        jobId: string): void;
+
+    /**
+     * Android only. Finishes a resumable transcode that was interrupted, encoding only the missing segments.
+     * @param onSuccess Success callback function invoked with the path of the transcoded video
+     * @param onError Error callback function, invoked when there is nothing to resume for the job id.
+     * @param options Id of the interrupted job, and optionally progress, progressIntervalMs and priority
+     * @return the job id
+     */
+    resume(onSuccess: (path: string) => void,
+        onError: (error: any) => void,
+        options: VideoEditorResumeProperties): string;
 }
 
 declare var VideoEditor: VideoEditor;
\ No newline at end of file
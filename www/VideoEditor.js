@@ -10,6 +10,24 @@ var pluginName = 'VideoEditor';
 
 function VideoEditor() {}
 
+var jobCounter = 0;
+
+// every long running call is a job; callers may pass their own jobId,
+// otherwise one is generated so it can be used with getJobs. It goes on a
+// copy, so an options object reused across calls never repeats an id
+function withJobId(options) {
+  var copy = {};
+  for (var key in options) {
+    if (Object.prototype.hasOwnProperty.call(options, key)) {
+      copy[key] = options[key];
+    }
+  }
+  if (!copy.jobId) {
+    copy.jobId = 'job-' + Date.now() + '-' + (++jobCounter);
+  }
+  return copy;
+}
+
 VideoEditor.prototype.transcodeVideo = function(success, error, options) {
   var self = this;
   var win = function(result) {
@@ -21,7 +39,9 @@ VideoEditor.prototype.transcodeVideo = function(success, error, options) {
       success(result);
     }
   };
-  exec(win, error, pluginName, 'transcodeVideo', [options]);
+  var args = withJobId(options);
+  exec(win, error, pluginName, 'transcodeVideo', [args]);
+  return args.jobId;
 };
 
 VideoEditor.prototype.trim = function(success, error, options) {
@@ -35,11 +55,37 @@ VideoEditor.prototype.trim = function(success, error, options) {
       success(result);
     }
   };
-  exec(win, error, pluginName, 'trim', [options]);
+  var args = withJobId(options);
+  exec(win, error, pluginName, 'trim', [args]);
+  return args.jobId;
+};
+
+VideoEditor.prototype.split = function(success, error, options) {
+  var self = this;
+  var win = function(result) {
+    if (typeof result.progress !== 'undefined') {
+      if (typeof options.progress === 'function') {
+        options.progress(result.progress);
+      }
+    } else {
+      success(result);
+    }
+  };
+  var args = withJobId(options);
+  exec(win, error, pluginName, 'split', [args]);
+  return args.jobId;
 };
 
 VideoEditor.prototype.createThumbnail = function(success, error, options) {
-  exec(success, error, pluginName, 'createThumbnail', [options]);
+  var args = withJobId(options);
+  exec(success, error, pluginName, 'createThumbnail', [args]);
+  return args.jobId;
+};
+
+VideoEditor.prototype.createThumbnailStrip = function(success, error, options) {
+  var args = withJobId(options);
+  exec(success, error, pluginName, 'createThumbnailStrip', [args]);
+  return args.jobId;
 };
 
 VideoEditor.prototype.execFFMPEG = function(success, error, options) {
@@ -53,7 +99,38 @@ VideoEditor.prototype.execFFMPEG = function(success, error, options) {
       success(result);
     }
   };
-  exec(win, error, pluginName, 'execFFMPEG', [options]);
+  var args = withJobId(options);
+  exec(win, error, pluginName, 'execFFMPEG', [args]);
+  return args.jobId;
+};
+
+VideoEditor.prototype.getKeyframes = function(success, error, options) {
+  var args = withJobId(options);
+  exec(success, error, pluginName, 'getKeyframes', [args]);
+  return args.jobId;
+};
+
+VideoEditor.prototype.getJobs = function(success, error) {
+  exec(success, error, pluginName, 'getJobs', []);
+};
+
+VideoEditor.prototype.cancel = function(success, error, jobId) {
+  exec(success, error, pluginName, 'cancel', [{jobId: jobId}]);
+};
+
+VideoEditor.prototype.resume = function(success, error, options) {
+  var self = this;
+  var win = function(result) {
+    if (typeof result.progress !== 'undefined') {
+      if (typeof options.progress === 'function') {
+        options.progress(result.progress);
+      }
+    } else {
+      success(result);
+    }
+  };
+  exec(win, error, pluginName, 'resume', [options]);
+  return options.jobId;
 };
 
 module.exports = new VideoEditor();
\ No newline at end of file